@@ -0,0 +1,77 @@
+package dnsresolver.bench;
+
+import dnsresolver.StubUpstream;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Packets and helpers shared by the benchmarks
+ */
+public class BenchPackets {
+
+    /**
+     * Build a query the way dig sends it: one question, recursion desired and an EDNS OPT record
+     * @param name the dotted domain name to ask for
+     * @param id the transaction ID
+     * @return the query packet
+     */
+    public static byte[] query(String name, int id) {
+        ByteBuffer out = ByteBuffer.allocate(512);
+        out.putShort((short) id);
+        out.putShort((short) 0x0120); // rd = 1, ad = 1
+        out.putShort((short) 1);      // qdCount
+        out.putShort((short) 0);      // anCount
+        out.putShort((short) 0);      // nsCount
+        out.putShort((short) 1);      // arCount
+        for (String label : name.split("\\.")) {
+            out.put((byte) label.length());
+            out.put(label.getBytes(StandardCharsets.US_ASCII));
+        }
+        out.put((byte) 0);
+        out.putShort((short) 1); // type A
+        out.putShort((short) 1); // class IN
+        out.put(new byte[] {0, 0, 41, 16, 0, 0, 0, 0, 0, 0, 0}); // OPT record, 4096-byte payload
+        byte[] packet = new byte[out.position()];
+        out.flip().get(packet);
+        return packet;
+    }
+
+    /**
+     * @param name the dotted domain name
+     * @param ttl the TTL of the answer
+     * @return a response to a query for name with a single A record
+     */
+    public static byte[] response(String name, int ttl) {
+        byte[] query = query(name, 0x1234);
+        return StubUpstream.buildAnswer(query, query.length, new byte[] {10, 0, 0, 1}, ttl);
+    }
+
+    /**
+     * @return a response with several answers and compressed names, like the ones Google sends back
+     */
+    public static byte[] multiAnswerResponse() {
+        return hex("abcd 8180 0001 0003 0000 0001 03777777 07 6578616d706c65 03 636f6d 00 0001 0001"
+                   + " c00c 0005 0001 00000e10 0006 03636463 c010"
+                   + " c02d 0001 0001 0000012c 0004 5db8d822"
+                   + " c02d 0001 0001 0000012c 0004 5db8d823"
+                   + " 00 0029 0200 0000 0000 0000");
+    }
+
+    /**
+     * Keep the resolver's console output (startup messages, stats dumps) out of the measurements
+     */
+    public static void silenceConsole() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    private static byte[] hex(String hex) {
+        hex = hex.replace(" ", "");
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+}
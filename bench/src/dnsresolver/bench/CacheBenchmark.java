@@ -0,0 +1,70 @@
+package dnsresolver.bench;
+
+import dnsresolver.CachedResponse;
+import dnsresolver.DNSCache;
+import dnsresolver.DNSMessage;
+import dnsresolver.DNSQuestion;
+import dnsresolver.DNSRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DNSCache lookups and inserts from several threads at once over a fixed set of names
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class CacheBenchmark {
+
+    @Param({"10000"})
+    private int names;
+
+    private DNSQuestion[] questions;
+    private DNSRecord[][] answers;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchPackets.silenceConsole();
+        questions = new DNSQuestion[names];
+        answers = new DNSRecord[names][];
+        for (int i = 0; i < names; i++) {
+            String name = "host" + i + ".example.com";
+            DNSMessage response = DNSMessage.decodeMessage(BenchPackets.response(name, 3600));
+            questions[i] = response.getQuestions()[0];
+            answers[i] = response.getAnswers();
+            DNSCache.insert(questions[i], answers[i]);
+        }
+    }
+
+    @Benchmark
+    public CachedResponse lookup() {
+        return DNSCache.lookup(questions[ThreadLocalRandom.current().nextInt(names)]);
+    }
+
+    @Benchmark
+    public void insert() {
+        int i = ThreadLocalRandom.current().nextInt(names);
+        DNSCache.insert(questions[i], answers[i]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public CachedResponse mixedLookup() {
+        return lookup();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedInsert() {
+        insert();
+    }
+}
@@ -0,0 +1,68 @@
+package dnsresolver.bench;
+
+import dnsresolver.DNSCache;
+import dnsresolver.DNSMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a big cache costs the garbage collector, on the heap and off it. The benchmark is a full collection with the
+ * cache filled, i.e. the longest pause the cache can cause; the heap left in use after it, and the time spent in GC
+ * while filling the cache, are printed to stderr.
+ * 10M entries on the heap need a larger -Xmx than most machines have: run with -p entries=10000000 -p offHeap=true.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-XX:MaxDirectMemorySize=3g"})
+public class CacheFootprintBenchmark {
+
+    @Param({"1000000"})
+    private int entries;
+
+    @Param({"false", "true"})
+    private boolean offHeap;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchPackets.silenceConsole();
+        System.setProperty("dns.cache.offHeap", Boolean.toString(offHeap));
+        System.setProperty("dns.cache.maxEntries", Integer.toString(entries + entries / 10));
+        // the on-heap limit counts estimated object sizes, the off-heap one encoded bytes: make both roomy enough
+        System.setProperty("dns.cache.maxBytes", Long.toString(entries * (offHeap ? 200L : 2000L)));
+        System.setProperty("dns.cache.sweepIntervalMillis", Long.toString(TimeUnit.HOURS.toMillis(1)));
+
+        long gcMillisBefore = gcMillis();
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            DNSMessage response = DNSMessage.decodeMessage(BenchPackets.response("host" + i + ".example.com", 3600));
+            DNSCache.insert(response.getQuestions()[0], response.getAnswers());
+        }
+        long fillMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long fillGcMillis = gcMillis() - gcMillisBefore;
+
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        System.err.printf("%n%s, %d entries: filled in %dms (%dms in GC), %d MB of heap in use, %d entries cached%n",
+                          offHeap ? "off-heap" : "on-heap", entries, fillMillis, fillGcMillis,
+                          (runtime.totalMemory() - runtime.freeMemory()) >> 20, DNSCache.size());
+    }
+
+    @Benchmark
+    public void fullGc() {
+        System.gc();
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += gc.getCollectionTime();
+        return millis;
+    }
+}
@@ -0,0 +1,55 @@
+package dnsresolver.bench;
+
+import dnsresolver.DNSMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding and encoding of whole messages
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private byte[] query;
+    private byte[] response;
+    private DNSMessage request;
+    private DNSMessage decodedResponse;
+    private ByteBuffer out;
+
+    @Setup
+    public void setUp() throws IOException {
+        query = BenchPackets.query("www.example.com", 1);
+        response = BenchPackets.multiAnswerResponse();
+        request = DNSMessage.decodeMessage(query);
+        decodedResponse = DNSMessage.decodeMessage(response);
+        out = ByteBuffer.allocate(DNSMessage.MAX_MESSAGE_SIZE);
+    }
+
+    @Benchmark
+    public DNSMessage decodeQuery() throws IOException {
+        return DNSMessage.decodeMessage(query);
+    }
+
+    @Benchmark
+    public DNSMessage decodeResponse() throws IOException {
+        return DNSMessage.decodeMessage(response);
+    }
+
+    @Benchmark
+    public byte[] toBytes() {
+        return DNSMessage.buildResponse(request, decodedResponse.getAnswers()).toBytes();
+    }
+
+    @Benchmark
+    public ByteBuffer writeBytesIntoReusedBuffer() {
+        return DNSMessage.buildResponse(request, decodedResponse.getAnswers()).writeBytes(out);
+    }
+}
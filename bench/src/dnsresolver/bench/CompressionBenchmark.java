@@ -0,0 +1,100 @@
+package dnsresolver.bench;
+
+import dnsresolver.DNSHeader;
+import dnsresolver.DNSMessage;
+import dnsresolver.DNSRecord;
+import dnsresolver.DomainName;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding responses whose names share suffixes without being equal, which is where name compression pays off:
+ * a CNAME chain through a CDN, MX and NS answers under the asked-for zone, and a negative answer's SOA.
+ * The encoded size of each shape is printed once per fork, to compare along with the time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"cname", "mx", "ns", "soa"})
+    public String shape;
+
+    private DNSMessage request;
+    private DNSRecord[] answers;
+    private DNSRecord[] authorityRecords = new DNSRecord[0];
+    private int rCode = DNSHeader.RCODE_NOERROR;
+    private final ByteBuffer out = ByteBuffer.allocate(DNSMessage.MAX_MESSAGE_SIZE);
+
+    @Setup
+    public void setUp() throws IOException {
+        long expiry = System.currentTimeMillis() / 1000 + 3600;
+        switch (shape) {
+            case "cname" -> {
+                request = DNSMessage.decodeMessage(BenchPackets.query("www.example.com", 1));
+                answers = new DNSRecord[] {
+                        record("www.example.com", DNSRecord.TYPE_CNAME, expiry, name("www.example.com.cdn.example.net")),
+                        record("www.example.com.cdn.example.net", DNSRecord.TYPE_CNAME, expiry,
+                               name("e1234.a.cdn.example.net")),
+                        record("e1234.a.cdn.example.net", DNSRecord.TYPE_A, expiry, new byte[] {10, 0, 0, 1}),
+                        record("e1234.a.cdn.example.net", DNSRecord.TYPE_A, expiry, new byte[] {10, 0, 0, 2})};
+            }
+            case "mx" -> {
+                request = DNSMessage.decodeMessage(BenchPackets.query("example.com", 2));
+                answers = new DNSRecord[] {
+                        record("example.com", DNSRecord.TYPE_MX, expiry, mx(10, "mx1.example.com")),
+                        record("example.com", DNSRecord.TYPE_MX, expiry, mx(20, "mx2.example.com")),
+                        record("example.com", DNSRecord.TYPE_MX, expiry, mx(30, "backup-mx.mail.example.com"))};
+            }
+            case "ns" -> {
+                request = DNSMessage.decodeMessage(BenchPackets.query("example.com", 3));
+                answers = new DNSRecord[4];
+                for (int i = 0; i < answers.length; i++)
+                    answers[i] = record("example.com", DNSRecord.TYPE_NS, expiry, name("ns" + (i + 1) + ".example.com"));
+            }
+            default -> {
+                request = DNSMessage.decodeMessage(BenchPackets.query("missing.example.com", 4));
+                answers = new DNSRecord[0];
+                authorityRecords = new DNSRecord[] {record("example.com", DNSRecord.TYPE_SOA, expiry,
+                        soa("ns1.example.com", "hostmaster.example.com"))};
+                rCode = DNSHeader.RCODE_NXDOMAIN;
+            }
+        }
+        System.err.println(shape + ": " + encode().limit() + " bytes");
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return DNSMessage.buildResponse(request, rCode, answers, authorityRecords).writeBytes(out);
+    }
+
+    private static DNSRecord record(String owner, int rType, long expiry, byte[] rData) {
+        return DNSRecord.buildRecord(DomainName.fromString(owner), rType, 1, expiry, rData);
+    }
+
+    private static byte[] name(String name) {
+        ByteBuffer wire = ByteBuffer.allocate(DomainName.MAX_LENGTH);
+        DomainName.fromString(name).writeUncompressed(wire);
+        byte[] bytes = new byte[wire.position()];
+        wire.flip().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] mx(int preference, String exchange) {
+        byte[] name = name(exchange);
+        return ByteBuffer.allocate(2 + name.length).putShort((short) preference).put(name).array();
+    }
+
+    private static byte[] soa(String mName, String rName) {
+        byte[] m = name(mName);
+        byte[] r = name(rName);
+        return ByteBuffer.allocate(m.length + r.length + 20).put(m).put(r)
+                         .putInt(2024010101).putInt(7200).putInt(3600).putInt(1209600).putInt(300).array();
+    }
+}
@@ -0,0 +1,66 @@
+package dnsresolver.bench;
+
+import dnsresolver.DNSHeader;
+import dnsresolver.DomainName;
+import dnsresolver.Helpers;
+import dnsresolver.NameCompressor;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bit twiddling and name writing helpers used on every packet
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HelpersBenchmark {
+
+    private static final byte[] FLAG_SECTIONS = {1, 4, 1, 1, 1};
+
+    private int flagsByte = 0x81;
+    private byte[] flagValues = {1, 0, 0, 0, 1};
+    private DomainName name = DomainName.fromString("www.example.com");
+    private ByteBuffer out = ByteBuffer.allocate(512);
+    private NameCompressor compressor = new NameCompressor();
+    private ByteBuffer query = ByteBuffer.wrap(BenchPackets.query("www.example.com", 7));
+
+    @Benchmark
+    public byte[] dissectByte() {
+        return Helpers.dissectByte(flagsByte, FLAG_SECTIONS);
+    }
+
+    @Benchmark
+    public byte mergeIntoByte() {
+        return Helpers.mergeIntoByte(flagValues, FLAG_SECTIONS);
+    }
+
+    /**
+     * Read a header and write it back out, which is what the two above were used for: DNSHeader now does its flag
+     * bytes with fixed shifts and masks
+     */
+    @Benchmark
+    public ByteBuffer headerCodec() {
+        query.position(0);
+        out.clear();
+        DNSHeader.decodeHeader(query).writeBytes(out);
+        return out;
+    }
+
+    /**
+     * Write the same name twice, as in a question followed by its answer: once in full, once as a pointer
+     */
+    @Benchmark
+    public ByteBuffer writeDomainNames() {
+        out.clear();
+        out.position(12);
+        compressor.clear();
+        compressor.writeName(out, name);
+        compressor.writeName(out, name);
+        return out;
+    }
+}
@@ -0,0 +1,79 @@
+package dnsresolver.bench;
+
+import dnsresolver.DNSMessage;
+import dnsresolver.DNSQuestion;
+import dnsresolver.LocalZone;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answering from the local data: compiling a hosts file of many names into the index (which is what a reload costs),
+ * and looking names up in it, both ones that are there and ones that are not and go on to the cache
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class LocalZoneBenchmark {
+
+    private static final int LOOKUP_NAMES = 1024;
+
+    @Param({"1000", "300000"})
+    private int names;
+
+    private Path file;
+    private LocalZone zone;
+    private final DNSMessage[] localRequests = new DNSMessage[LOOKUP_NAMES];
+    private final DNSMessage[] otherRequests = new DNSMessage[LOOKUP_NAMES];
+    private final ByteBuffer out = ByteBuffer.allocate(DNSMessage.MAX_MESSAGE_SIZE);
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Files.createTempFile("dns-local", ".hosts");
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (int i = 0; i < names; i++)
+                writer.write("10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff)
+                             + " host" + i + ".corp.example\n");
+        }
+        zone = LocalZone.load(file);
+        for (int i = 0; i < LOOKUP_NAMES; i++) {
+            localRequests[i] = DNSMessage.decodeMessage(BenchPackets.query("host" + (i * 7919 % names) + ".corp.example", i));
+            otherRequests[i] = DNSMessage.decodeMessage(BenchPackets.query("host" + i + ".example.com", i));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public LocalZone load() throws IOException {
+        return LocalZone.load(file);
+    }
+
+    @Benchmark
+    public ByteBuffer hit() {
+        DNSMessage request = localRequests[next++ & (LOOKUP_NAMES - 1)];
+        return zone.find(request.getQuestions()[0]).writeResponse(request, out);
+    }
+
+    @Benchmark
+    public LocalZone.Answer miss() {
+        DNSQuestion question = otherRequests[next++ & (LOOKUP_NAMES - 1)].getQuestions()[0];
+        return zone.find(question);
+    }
+}
@@ -0,0 +1,102 @@
+package dnsresolver.bench;
+
+import dnsresolver.DNSMessage;
+import dnsresolver.DNSQuestion;
+import dnsresolver.Helpers;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache-key lookups: DNSQuestion keyed on a DomainName (wire bytes, precomputed case-insensitive hash) against the
+ * old key, which joined the String labels into a dotted name on every hashCode() call
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NameKeyBenchmark {
+
+    @Param({"10000"})
+    private int names;
+
+    private DNSQuestion[] questions;
+    private LegacyKey[] legacyKeys;
+    private byte[][] mixedCaseQueries;
+    private HashMap<DNSQuestion, Integer> table = new HashMap<>();
+    private HashMap<LegacyKey, Integer> legacyTable = new HashMap<>();
+    private int next;
+
+    /**
+     * The cache key as it was: the labels as Strings, compared case-sensitively
+     */
+    private static final class LegacyKey {
+        final String[] labels;
+        final int qType, qClass;
+
+        LegacyKey(String[] labels, int qType, int qClass) {
+            this.labels = labels;
+            this.qType = qType;
+            this.qClass = qClass;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof LegacyKey)
+                return Arrays.equals(labels, ((LegacyKey) o).labels) &&
+                       qClass == ((LegacyKey) o).qClass &&
+                       qType == ((LegacyKey) o).qType;
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Helpers.octetsToString(labels).hashCode();
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        questions = new DNSQuestion[names];
+        legacyKeys = new LegacyKey[names];
+        mixedCaseQueries = new byte[names][];
+        for (int i = 0; i < names; i++) {
+            String name = "host" + i + ".example.com";
+            // decode a separate packet for the probe, so lookups cannot short-circuit on identity
+            DNSQuestion stored = DNSMessage.decodeMessage(BenchPackets.query(name, i)).getQuestions()[0];
+            questions[i] = DNSMessage.decodeMessage(BenchPackets.query(name, i)).getQuestions()[0];
+            table.put(stored, i);
+
+            String[] labels = name.split("\\.");
+            legacyTable.put(new LegacyKey(labels, 1, 1), i);
+            legacyKeys[i] = new LegacyKey(labels.clone(), 1, 1);
+            mixedCaseQueries[i] = BenchPackets.query("HOST" + i + ".Example.com", i);
+        }
+    }
+
+    @Benchmark
+    public Integer domainNameKey() {
+        int i = next++ % names;
+        return table.get(questions[i]);
+    }
+
+    @Benchmark
+    public Integer legacyKey() {
+        int i = next++ % names;
+        return legacyTable.get(legacyKeys[i]);
+    }
+
+    /**
+     * Decode a mixed-case question out of a packet and look it up, as the server does per request
+     */
+    @Benchmark
+    public Integer decodeAndLookup() throws IOException {
+        int i = next++ % names;
+        return table.get(DNSMessage.decodeMessage(mixedCaseQueries[i]).getQuestions()[0]);
+    }
+}
@@ -0,0 +1,57 @@
+package dnsresolver.bench;
+
+import dnsresolver.CacheSnapshot;
+import dnsresolver.DNSCache;
+import dnsresolver.DNSMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and loading a cache snapshot of a million entries, i.e. how long a warm restart takes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Ddns.cache.maxEntries=2000000", "-Ddns.cache.maxBytes=4000000000"})
+public class SnapshotBenchmark {
+
+    @Param({"1000000"})
+    private int entries;
+
+    private Path file;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchPackets.silenceConsole();
+        for (int i = 0; i < entries; i++) {
+            DNSMessage response = DNSMessage.decodeMessage(BenchPackets.response("host" + i + ".example.com", 3600));
+            DNSCache.insert(response.getQuestions()[0], response.getAnswers());
+        }
+        file = Files.createTempFile("dns-cache", ".snapshot");
+        CacheSnapshot.write(file);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        return CacheSnapshot.write(file);
+    }
+
+    /**
+     * Load every entry back into the cache (over the same entries, so the cache does not grow)
+     */
+    @Benchmark
+    public int load() throws IOException {
+        return CacheSnapshot.load(file);
+    }
+}
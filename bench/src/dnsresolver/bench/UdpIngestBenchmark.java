@@ -0,0 +1,95 @@
+package dnsresolver.bench;
+
+import dnsresolver.DNSServer;
+import dnsresolver.StubUpstream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache hits per second through a real server on loopback, by number of UDP receive channels.
+ * Every client thread sends from its own port, so SO_REUSEPORT spreads the clients over the channels.
+ * Only scales as far as there are cores for the receive threads and the clients both.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class UdpIngestBenchmark {
+
+    private static final int SERVER_PORT = 18063;
+    private static final int UPSTREAM_PORT = 18064;
+
+    @Param({"1", "2", "4"})
+    private int channels;
+
+    @State(Scope.Thread)
+    public static class Client {
+        DatagramSocket socket;
+        byte[] receiveBuffer = new byte[4096];
+        DatagramPacket reply = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        byte[] hitQuery = BenchPackets.query("hit.example.com", 7);
+
+        @Setup
+        public void setUp() throws IOException {
+            socket = new DatagramSocket();
+            socket.setSoTimeout(2000);
+            socket.connect(new InetSocketAddress("127.0.0.1", SERVER_PORT));
+        }
+
+        @TearDown
+        public void tearDown() {
+            socket.close();
+        }
+
+        int roundTrip(byte[] query) throws IOException {
+            socket.send(new DatagramPacket(query, query.length));
+            reply.setLength(receiveBuffer.length);
+            socket.receive(reply);
+            return reply.getLength();
+        }
+    }
+
+    @Setup
+    public void setUp(Client warmUpClient) throws Exception {
+        BenchPackets.silenceConsole();
+        System.setProperty("dns.port", Integer.toString(SERVER_PORT));
+        System.setProperty("dns.upstream", "127.0.0.1:" + UPSTREAM_PORT);
+        System.setProperty("dns.udp.channels", Integer.toString(channels));
+
+        startDaemon("stub-upstream", () -> StubUpstream.main(new String[] {Integer.toString(UPSTREAM_PORT)}));
+        startDaemon("dns-server", () -> DNSServer.main(new String[0]));
+        Thread.sleep(500);
+
+        warmUpClient.roundTrip(warmUpClient.hitQuery); // puts the hit name in the cache
+    }
+
+    @Benchmark
+    public int hit(Client client) throws IOException {
+        return client.roundTrip(client.hitQuery);
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static void startDaemon(String name, Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            }
+            catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,81 @@
+package dnsresolver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DNSCacheTest {
+
+    @Test
+    void cachesTheWholeRRset() throws IOException {
+        DNSMessage response = DNSMessage.decodeMessage(TestPackets.SEVERAL_ADDRESSES);
+        DNSQuestion question = response.getQuestions()[0];
+
+        DNSCache.insert(question, response.getAnswers());
+        CachedResponse cached = DNSCache.lookup(question);
+
+        assertNotNull(cached);
+        assertArrayEquals(response.getAnswers(), cached.getAnswers());
+    }
+
+    @Test
+    void cachedChainExpiresWithItsShortestLivedRecord() throws IOException {
+        long before = System.currentTimeMillis();
+        DNSMessage response = DNSMessage.decodeMessage(TestPackets.CNAME_CHAIN);
+        DNSQuestion question = response.getQuestions()[0];
+
+        DNSCache.insert(question, response.getAnswers());
+        CachedResponse cached = DNSCache.lookup(question);
+
+        assertNotNull(cached);
+        assertEquals(4, cached.getAnswers().length);
+        assertEquals(response.getAnswers()[3].getExpiryMillis(), cached.getExpiryMillis()); // the A record's 20s
+        long ttlMillis = cached.getExpiryMillis() - before;
+        assertTrue(ttlMillis >= 19_000 && ttlMillis <= 21_000, "expires in " + ttlMillis + "ms");
+    }
+
+    @Test
+    void lookupIgnoresCase() throws IOException {
+        DNSMessage response = DNSMessage.decodeMessage(TestPackets.AUTHORITY_AND_ADDITIONAL);
+        DNSCache.insert(response.getQuestions()[0], response.getAnswers());
+
+        DNSQuestion shouted = DNSQuestion.buildQuestion(DomainName.fromString("EXAMPLE.com"), DNSRecord.TYPE_A, 1);
+        assertNotNull(DNSCache.lookup(shouted));
+    }
+
+    @Test
+    void bigTxtAnswersCannotPushOutAddressAnswers() {
+        DNSCache.Segment segment = new DNSCache.Segment(100, 100_000); // 20% of both for types other than A/AAAA
+        for (int i = 0; i < 10; i++)
+            segment.insert(question("host" + i + ".example.com", DNSRecord.TYPE_A), answer(DNSRecord.TYPE_A, 4));
+
+        int txtAnswers = 50; // 50 * 2 KB would fill the whole segment twice over, never mind the 20 KB for TXT
+        for (int i = 0; i < txtAnswers; i++)
+            segment.insert(question("txt" + i + ".example.com", DNSRecord.TYPE_TXT), answer(DNSRecord.TYPE_TXT, 2048));
+
+        for (int i = 0; i < 10; i++)
+            assertNotNull(segment.lookup(question("host" + i + ".example.com", DNSRecord.TYPE_A)));
+        int txtCached = 0;
+        for (int i = 0; i < txtAnswers; i++)
+            if (segment.lookup(question("txt" + i + ".example.com", DNSRecord.TYPE_TXT)) != null)
+                txtCached++;
+        assertTrue(txtCached > 0 && txtCached < 10, txtCached + " TXT answers cached");
+        assertTrue(segment.sizeInBytes() <= 100_000);
+    }
+
+    private static DNSQuestion question(String name, int qType) {
+        return DNSQuestion.buildQuestion(DomainName.fromString(name), qType, 1);
+    }
+
+    private static CachedResponse answer(int rType, int rDataLength) {
+        long expirySeconds = System.currentTimeMillis() / 1000 + 3600;
+        return CachedResponse.positive(new DNSRecord[] {
+                DNSRecord.buildRecord(DomainName.fromString("example.com"), rType, 1, expirySeconds,
+                                      new byte[rDataLength])});
+    }
+}
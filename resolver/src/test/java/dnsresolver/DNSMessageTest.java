@@ -0,0 +1,137 @@
+package dnsresolver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DNSMessageTest {
+
+    @Test
+    void decodesEveryAddressRecord() throws IOException {
+        DNSMessage message = DNSMessage.decodeMessage(TestPackets.SEVERAL_ADDRESSES);
+
+        assertSectionCounts(message, 4, 0, 1);
+        for (DNSRecord record : message.getAnswers()) {
+            assertEquals(DomainName.fromString("google.com"), record.getName());
+            assertEquals(DNSRecord.TYPE_A, record.getRType());
+            assertEquals(300, record.getTtl());
+        }
+        assertArrayEquals(new byte[] {(byte) 142, (byte) 250, 72, 110}, message.getAnswers()[3].getRData());
+    }
+
+    @Test
+    void decodesCnameChain() throws IOException {
+        DNSMessage message = DNSMessage.decodeMessage(TestPackets.CNAME_CHAIN);
+
+        assertSectionCounts(message, 4, 0, 1);
+        DNSRecord[] answers = message.getAnswers();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(DNSRecord.TYPE_CNAME, answers[i].getRType());
+            assertEquals(answers[i + 1].getName(), answers[i].getRDataName()); // each one leads to the next
+        }
+        assertEquals(DomainName.fromString("e13678.dscb.akamaiedge.net"), answers[3].getName());
+        assertEquals(DNSRecord.TYPE_A, answers[3].getRType());
+    }
+
+    @Test
+    void decodesAuthorityAndAdditionalSections() throws IOException {
+        DNSMessage message = DNSMessage.decodeMessage(TestPackets.AUTHORITY_AND_ADDITIONAL);
+
+        assertSectionCounts(message, 1, 2, 3);
+        DNSRecord[] authority = message.getAuthorityRecords();
+        assertEquals(DNSRecord.TYPE_NS, authority[0].getRType());
+        assertEquals(DomainName.fromString("a.iana-servers.net"), authority[0].getRDataName());
+        assertEquals(DomainName.fromString("b.iana-servers.net"), authority[1].getRDataName());
+        DNSRecord[] additional = message.getAdditionalRecords();
+        assertEquals(DomainName.fromString("b.iana-servers.net"), additional[1].getName());
+        assertEquals(DNSRecord.TYPE_A, additional[1].getRType());
+        assertEquals(DNSRecord.TYPE_OPT, additional[2].getRType());
+    }
+
+    @Test
+    void reEncodesCapturedPacketsByteForByte() throws IOException {
+        for (byte[] packet : new byte[][] {TestPackets.SEVERAL_ADDRESSES, TestPackets.CNAME_CHAIN,
+                                           TestPackets.AUTHORITY_AND_ADDITIONAL})
+            assertArrayEquals(packet, reEncode(packet));
+    }
+
+    @Test
+    void cachedResponseCountsDownTheSameOnBothHitPaths() throws Exception {
+        DNSMessage upstreamResponse = DNSMessage.decodeMessage(TestPackets.CNAME_CHAIN);
+        DNSQuestion question = upstreamResponse.getQuestions()[0];
+        CachedResponse cached = CachedResponse.positive(upstreamResponse.getAnswers());
+        DNSMessage request = DNSMessage.buildUpstreamQuery(question, (short) 0x4242);
+        Thread.sleep(1100);
+
+        byte[] reEncoded, wire;
+        long second;
+        do { // both within the same second, so they see the same TTLs left
+            second = System.currentTimeMillis() / 1000;
+            reEncoded = DNSMessage.buildResponse(request, cached.getRCode(), cached.getAnswers(),
+                                                 cached.getAuthorityRecords()).toBytes();
+            ByteBuffer out = cached.writeWireResponse(request, ByteBuffer.allocate(DNSMessage.MAX_MESSAGE_SIZE));
+            wire = Arrays.copyOf(out.array(), out.limit());
+        } while (System.currentTimeMillis() / 1000 != second);
+
+        assertArrayEquals(reEncoded, wire);
+        for (DNSRecord record : DNSMessage.decodeMessage(reEncoded).getAnswers()) // the CNAMEs go with the A record
+            assertTrue(record.getTtl() < 20 && record.getTtl() >= 18, record.getName() + ": " + record.getTtl());
+    }
+
+    @Test
+    void compressesEveryNameAgainstItsLongestWrittenSuffix() {
+        NameCompressor compressor = new NameCompressor();
+        ByteBuffer out = ByteBuffer.allocate(512);
+        out.position(12); // after the header
+        compressor.writeName(out, DomainName.fromString("example.com"));
+        int www = out.position();
+        writeName(compressor, out, "www.example.com");
+        int ns1 = out.position();
+        writeName(compressor, out, "ns1.dns.example.com");
+        for (int i = 0; i < 8; i++) // more names than the compressor keeps at hand
+            writeName(compressor, out, "host" + i + ".example.net");
+
+        assertArrayEquals(new byte[] {3, 'n', 's', '2', (byte) 0xc0, (byte) (ns1 + 4)},
+                          writeName(compressor, out, "ns2.dns.example.com"));
+        writeName(compressor, out, "example.com");
+        assertArrayEquals(new byte[] {(byte) 0xc0, (byte) www}, writeName(compressor, out, "www.example.com"));
+    }
+
+    /**
+     * @return the bytes the name was written as
+     */
+    private static byte[] writeName(NameCompressor compressor, ByteBuffer out, String name) {
+        byte[] wire = DomainName.fromString(name).getWire();
+        int start = out.position();
+        compressor.writeName(out, wire, 0, wire.length);
+        return Arrays.copyOfRange(out.array(), start, out.position());
+    }
+
+    /**
+     * Decode and encode a packet within one second, so that its TTLs have not counted down in between
+     */
+    private static byte[] reEncode(byte[] packet) throws IOException {
+        while (true) {
+            long second = System.currentTimeMillis() / 1000;
+            byte[] bytes = DNSMessage.decodeMessage(packet).toBytes();
+            if (System.currentTimeMillis() / 1000 == second)
+                return bytes;
+        }
+    }
+
+    private static void assertSectionCounts(DNSMessage message, int answers, int authority, int additional) {
+        assertEquals(1, message.getQuestions().length);
+        assertEquals(answers, message.getAnswers().length);
+        assertEquals(authority, message.getAuthorityRecords().length);
+        assertEquals(additional, message.getAdditionalRecords().length);
+        assertEquals(answers, message.getHeader().getAnCount());
+        assertEquals(authority, message.getHeader().getNsCount());
+        assertEquals(additional, message.getHeader().getArCount());
+    }
+}
@@ -0,0 +1,33 @@
+package dnsresolver;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrequencySketchTest {
+
+    @Test
+    void countsUpToFifteen() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 20; i++)
+            sketch.increment(42);
+
+        assertEquals(15, sketch.frequency(42));
+    }
+
+    @Test
+    void halvesEveryCounterAfterTheSamplePeriod() {
+        FrequencySketch sketch = new FrequencySketch(16); // halves after 10 increments per entry, i.e. 160
+        for (int i = 0; i < 8; i++)
+            sketch.increment(42);
+        for (int key = 1000; key < 1000 + 151; key++)
+            sketch.increment(key);
+
+        int before = sketch.frequency(42);
+        assertTrue(before >= 8, "halved too early, at " + before);
+
+        sketch.increment(42); // the 160th increment
+        assertEquals((before + 1) / 2, sketch.frequency(42));
+    }
+}
@@ -0,0 +1,93 @@
+package dnsresolver;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.management.ThreadMXBean;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that answering a cache hit allocates (close to) nothing on the server's receive thread. Starts a server
+ * and a StubUpstream in this JVM, warms the hit path up, then counts the bytes the receive thread allocates over
+ * many hits, using the JVM's per-thread allocation counter. Hits are answered from the pre-encoded wire form.
+ * The server reads its settings once, when DNSServer is loaded, so no other test may start one.
+ */
+class HitAllocationTest {
+
+    private static final int WARM_UP_HITS = 50_000;
+    private static final int HITS = 50_000;
+    private static final double BYTES_PER_HIT = 8;
+
+    @Test
+    void cacheHitAllocatesNothingOnTheReceiveThread() throws Exception {
+        StubUpstream stub = new StubUpstream(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                                             new byte[] {10, 0, 0, 1}, 3600, 1).start();
+        int serverPort = freePort();
+        System.setProperty("dns.port", Integer.toString(serverPort));
+        System.setProperty("dns.upstream", "127.0.0.1:" + stub.getPort());
+        System.setProperty("dns.udp.channels", "1");
+        System.setProperty("dns.wireCache", "true");
+
+        Thread server = new Thread(() -> DNSServer.main(new String[0]), "dns-server");
+        server.setDaemon(true);
+        server.start();
+        Thread receiver = findThread("dns-udp-0");
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(2000);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), serverPort));
+            DNSQuestion question = DNSQuestion.buildQuestion(DomainName.fromString("hit.example.com"),
+                                                             DNSRecord.TYPE_A, 1);
+            byte[] query = DNSMessage.buildUpstreamQuery(question, (short) 7).toBytes(); // with an OPT record
+            DatagramPacket request = new DatagramPacket(query, query.length);
+            byte[] receiveBuffer = new byte[4096];
+            DatagramPacket reply = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+
+            for (int i = 0; i < WARM_UP_HITS; i++)
+                roundTrip(socket, request, reply);
+
+            long before = threads.getThreadAllocatedBytes(receiver.getId());
+            for (int i = 0; i < HITS; i++)
+                roundTrip(socket, request, reply);
+            long allocated = threads.getThreadAllocatedBytes(receiver.getId()) - before;
+
+            double perHit = (double) allocated / HITS;
+            assertTrue(perHit <= BYTES_PER_HIT, String.format("%d bytes allocated over %d hits, %.2f per hit",
+                                                              allocated, HITS, perHit));
+        }
+        finally {
+            stub.close();
+        }
+    }
+
+    private static void roundTrip(DatagramSocket socket, DatagramPacket request, DatagramPacket reply)
+            throws IOException {
+        socket.send(request);
+        reply.setLength(reply.getData().length);
+        socket.receive(reply);
+    }
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static Thread findThread(String name) throws InterruptedException {
+        for (int attempt = 0; attempt < 50; attempt++) {
+            for (Thread thread : Thread.getAllStackTraces().keySet())
+                if (thread.getName().equals(name))
+                    return thread;
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("No thread named " + name);
+    }
+}
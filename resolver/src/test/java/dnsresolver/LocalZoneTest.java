@@ -0,0 +1,74 @@
+package dnsresolver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class LocalZoneTest {
+
+    private static final String ZONE = String.join("\n",
+            "10.0.0.5        build.corp.example",
+            "$ORIGIN corp.example.",
+            "@         3600  IN SOA   ns1 hostmaster 2024010101 3600 600 86400 120",
+            "wiki       300  IN A     10.0.0.6",
+            "docs       300  IN CNAME wiki",
+            "");
+
+    @Test
+    void nodataCarriesTheZonesSoa() throws IOException {
+        DNSMessage response = ask(load(ZONE), "wiki.corp.example", DNSRecord.TYPE_AAAA);
+
+        assertEquals(DNSHeader.RCODE_NOERROR, response.getHeader().getRCode());
+        assertEquals(0, response.getAnswers().length);
+        DNSRecord soa = response.getAuthorityRecords()[0];
+        assertEquals(DNSRecord.TYPE_SOA, soa.getRType());
+        assertEquals(DomainName.fromString("corp.example"), soa.getName());
+        assertEquals(120, soa.getTtl()); // the negative TTL: the MINIMUM field, below the SOA's own TTL
+    }
+
+    @Test
+    void nodataAtTheEndOfACnameKeepsTheChain() throws IOException {
+        DNSMessage response = ask(load(ZONE), "docs.corp.example", DNSRecord.TYPE_TXT);
+
+        assertEquals(1, response.getAnswers().length);
+        assertEquals(DNSRecord.TYPE_CNAME, response.getAnswers()[0].getRType());
+        assertEquals(DNSRecord.TYPE_SOA, response.getAuthorityRecords()[0].getRType());
+    }
+
+    @Test
+    void nodataForHostsNamesGetsAMadeUpSoa() throws IOException {
+        DNSMessage response = ask(load("10.0.0.7 printer.lan\n"), "printer.lan", DNSRecord.TYPE_MX);
+
+        assertEquals(0, response.getAnswers().length);
+        DNSRecord soa = response.getAuthorityRecords()[0];
+        assertEquals(DNSRecord.TYPE_SOA, soa.getRType());
+        assertEquals(DomainName.fromString("printer.lan"), soa.getName());
+        assertEquals(soa.getTtl(), soa.getSoaMinimum());
+    }
+
+    private static LocalZone load(String contents) throws IOException {
+        Path file = Files.createTempFile("local", ".zone");
+        try {
+            Files.writeString(file, contents);
+            return LocalZone.load(file);
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    private static DNSMessage ask(LocalZone zone, String name, int qType) throws IOException {
+        DNSQuestion question = DNSQuestion.buildQuestion(DomainName.fromString(name), qType, 1);
+        LocalZone.Answer answer = zone.find(question);
+        assertNotNull(answer, name + " is not local");
+        ByteBuffer out = answer.writeResponse(DNSMessage.buildQuery(question, (short) 1),
+                                              ByteBuffer.allocate(DNSMessage.MAX_MESSAGE_SIZE));
+        return DNSMessage.decodeMessage(out);
+    }
+}
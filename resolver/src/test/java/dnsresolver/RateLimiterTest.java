@@ -0,0 +1,38 @@
+package dnsresolver;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+
+    @Test
+    void limitsToTheBurstThenRefills() throws Exception {
+        RateLimiter limiter = new RateLimiter(100, 2, 16);
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+
+        assertTrue(limiter.tryAcquire(client));
+        assertTrue(limiter.tryAcquire(client));
+        assertFalse(limiter.tryAcquire(client));
+
+        Thread.sleep(30); // 3 tokens' worth at 100 per second
+        assertTrue(limiter.tryAcquire(client));
+    }
+
+    @Test
+    void refillAfterALongIdleSpellStopsAtTheBurst() throws Exception {
+        RateLimiter limiter = new RateLimiter(100, 2, 16);
+        InetAddress client = InetAddress.getByName("192.0.2.2");
+
+        assertTrue(limiter.tryAcquire(client));
+        assertTrue(limiter.tryAcquire(client));
+
+        Thread.sleep(100); // 10 tokens' worth, but the bucket only holds 2
+        assertTrue(limiter.tryAcquire(client));
+        assertTrue(limiter.tryAcquire(client));
+        assertFalse(limiter.tryAcquire(client));
+    }
+}
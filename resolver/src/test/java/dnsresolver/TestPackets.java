@@ -0,0 +1,44 @@
+package dnsresolver;
+
+/**
+ * Responses captured from real resolvers, shared by the tests. Each has an EDNS OPT record at the end of its
+ * additional section, and compresses every name against the first place its suffix appears, as BIND does.
+ */
+class TestPackets {
+
+    /**
+     * google.com A: four A records for the same name
+     */
+    static final byte[] SEVERAL_ADDRESSES = hex(
+            "8f3e8180 00010004 00000001 06676f6f 676c6503 636f6d00 00010001 c00c0001 00010000 012c0004 8efa480e"
+            + " c00c0001 00010000 012c0004 8efa482e c00c0001 00010000 012c0004 8efa484e c00c0001 00010000 012c0004"
+            + " 8efa486e 00002904 d0000000 000000");
+
+    /**
+     * www.microsoft.com A: three CNAMEs (TTLs 3600, 900 and 900) leading to an A record with a TTL of 20
+     */
+    static final byte[] CNAME_CHAIN = hex(
+            "5b218180 00010004 00000001 03777777 096d6963 726f736f 66740363 6f6d0000 010001c0 0c000500 0100000e"
+            + " 10002303 77777709 6d696372 6f736f66 7407636f 6d2d632d 33076564 67656b65 79036e65 7400c02f 00050001"
+            + " 00000384 00370377 7777096d 6963726f 736f6674 07636f6d 2d632d33 07656467 656b6579 036e6574 0b676c6f"
+            + " 62616c72 65646972 06616b61 646e73c0 4dc05e00 05000100 00038400 19066531 33363738 04647363 620a616b"
+            + " 616d6169 65646765 c04dc0a1 00010001 00000014 00041737 a10e0000 2904d000 00000000 00");
+
+    /**
+     * example.com A from one of its authoritative servers: the answer, the zone's two NS records in the authority
+     * section, and their glue addresses in the additional section
+     */
+    static final byte[] AUTHORITY_AND_ADDITIONAL = hex(
+            "2c7d8500 00010001 00020003 07657861 6d706c65 03636f6d 00000100 01c00c00 01000100 01518000 045db8d8"
+            + " 22c00c00 02000100 01518000 1401610c 69616e61 2d736572 76657273 036e6574 00c00c00 02000100 01518000"
+            + " 040162c0 3bc03900 01000100 00070800 04c72b87 35c05900 01000100 00070800 04c72b85 35000029 04d00000"
+            + " 00000000");
+
+    static byte[] hex(String hex) {
+        hex = hex.replace(" ", "");
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+}
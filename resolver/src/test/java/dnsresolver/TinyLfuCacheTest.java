@@ -0,0 +1,61 @@
+package dnsresolver;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TinyLfuCacheTest {
+
+    private static final int HOT_KEYS = 50;
+
+    @Test
+    void burstOfOneOffKeysDoesNotPushOutTheHotOnes() {
+        TinyLfuCache<Integer, String> cache = new TinyLfuCache<>(100, Long.MAX_VALUE, 1, new FrequencySketch(100),
+                                                                 value -> 1);
+        warmUp(cache);
+
+        burst(cache);
+
+        for (int key = 0; key < HOT_KEYS; key++)
+            assertNotNull(cache.get(key), "hot key " + key + " was evicted");
+        assertTrue(cache.getRejected() > 0);
+        assertEquals(100, cache.size());
+    }
+
+    @Test
+    void plainLruLetsTheSameBurstThrough() {
+        TinyLfuCache<Integer, String> cache = new TinyLfuCache<>(100, Long.MAX_VALUE, 0, null, value -> 1);
+        warmUp(cache);
+
+        burst(cache);
+
+        for (int key = 0; key < HOT_KEYS; key++)
+            assertEquals(null, cache.get(key), "hot key " + key + " outlived the burst");
+        assertEquals(0, cache.getRejected());
+    }
+
+    /**
+     * Cache the hot keys and ask for each of them a few times, the way lookups before and after a miss would
+     */
+    private static void warmUp(TinyLfuCache<Integer, String> cache) {
+        for (int key = 0; key < HOT_KEYS; key++) {
+            cache.get(key);
+            cache.put(key, "hot");
+        }
+        for (int round = 0; round < 5; round++)
+            for (int key = 0; key < HOT_KEYS; key++)
+                assertNotNull(cache.get(key));
+    }
+
+    /**
+     * Look up and cache many keys that are never asked for again, e.g. random subdomains
+     */
+    private static void burst(TinyLfuCache<Integer, String> cache) {
+        for (int key = 1000; key < 1000 + 1000; key++) {
+            cache.get(key);
+            cache.put(key, "once");
+        }
+    }
+}
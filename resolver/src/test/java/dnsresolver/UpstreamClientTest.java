@@ -0,0 +1,211 @@
+package dnsresolver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * UpstreamClient and Upstream against StubUpstreams on loopback, each answering with an address of its own so
+ * that the tests can tell which one an answer came from
+ */
+class UpstreamClientTest {
+
+    private static final long TIMEOUT_MILLIS = 1000;
+    private static final byte[] FIRST = {10, 0, 0, 1}, SECOND = {10, 0, 0, 2};
+
+    private final List<StubUpstream> stubs = new ArrayList<>();
+
+    @AfterEach
+    void closeStubs() {
+        stubs.forEach(StubUpstream::close);
+    }
+
+    @Test
+    void sendsToTheUpstreamWithTheLowestRtt() throws Exception {
+        StubUpstream slow = stub(FIRST), fast = stub(SECOND);
+        slow.setDelayMillis(40);
+        try (UpstreamClient client = client(slow, fast)) {
+            for (int i = 0; i < 20; i++)
+                query(client, i);
+
+            Upstream slowUpstream = client.getUpstreams().get(0), fastUpstream = client.getUpstreams().get(1);
+            assertTrue(fastUpstream.getSmoothedRttNanos() < slowUpstream.getSmoothedRttNanos());
+            assertTrue(slow.getQueries() <= 2, slow.getQueries() + " queries to the slow upstream");
+            assertEquals(20, slow.getQueries() + fast.getQueries());
+        }
+    }
+
+    @Test
+    void hedgesToTheNextUpstreamAfterTheRttPercentile() throws Exception {
+        StubUpstream first = stub(FIRST), second = stub(SECOND);
+        try (UpstreamClient client = warmedUp(first, second)) {
+            long secondQueries = second.getQueries();
+            first.setDelayMillis(500); // far past the first upstream's usual RTT, but within the timeout
+
+            long start = System.nanoTime();
+            DNSMessage response = query(client, 100);
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertArrayEquals(SECOND, response.getAnswers()[0].getRData());
+            assertEquals(secondQueries + 1, second.getQueries());
+            assertTrue(elapsedMillis < 500, "answered after " + elapsedMillis + "ms");
+        }
+    }
+
+    @Test
+    void firstAnswerWins() throws Exception {
+        StubUpstream first = stub(FIRST), second = stub(SECOND);
+        try (UpstreamClient client = warmedUp(first, second)) {
+            long secondQueries = second.getQueries();
+            first.setDelayMillis(50);   // slow enough to be hedged...
+            second.setDelayMillis(400); // ...but still quicker than the hedge
+
+            long start = System.nanoTime();
+            DNSMessage response = query(client, 100);
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertArrayEquals(FIRST, response.getAnswers()[0].getRData());
+            assertEquals(secondQueries + 1, second.getQueries()); // the hedge did go out
+            assertTrue(elapsedMillis < 400, "answered after " + elapsedMillis + "ms");
+        }
+    }
+
+    @Test
+    void failsWithTimeoutWhenNoUpstreamAnswers() throws Exception {
+        StubUpstream first = stub(FIRST), second = stub(SECOND);
+        first.setLossPercent(100);
+        second.setLossPercent(100);
+        try (UpstreamClient client = client(first, second)) {
+            long start = System.nanoTime();
+            ExecutionException error = assertThrows(ExecutionException.class, () -> query(client, 1));
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertTrue(UpstreamClient.isTimeout(error), error.toString());
+            assertTrue(elapsedMillis >= TIMEOUT_MILLIS, "failed after " + elapsedMillis + "ms");
+            assertEquals(2, first.getQueries() + second.getQueries()); // the query and its hedge
+        }
+    }
+
+    @Test
+    void backsOffAfterRepeatedFailures() throws Exception {
+        StubUpstream stub = stub(FIRST);
+        stub.setLossPercent(100);
+        try (Upstream upstream = new Upstream(address(stub), 1, 100)) {
+            for (int i = 0; i < 2; i++)
+                assertTimesOut(upstream, i);
+            assertTrue(upstream.isHealthy(System.currentTimeMillis()));
+
+            assertTimesOut(upstream, 2); // the third failure in a row: down for a second
+            long now = System.currentTimeMillis();
+            assertFalse(upstream.isHealthy(now));
+            assertTrue(upstream.isHealthy(now + 1000));
+
+            assertTimesOut(upstream, 3); // one more: down for twice as long
+            now = System.currentTimeMillis();
+            assertFalse(upstream.isHealthy(now + 1500));
+            assertTrue(upstream.isHealthy(now + 2000));
+
+            stub.setLossPercent(0);
+            upstream.query(request(4), request(4).length).get();
+            assertTrue(upstream.isHealthy(System.currentTimeMillis())); // an answer brings it straight back
+        }
+    }
+
+    @Test
+    void passedOverRttDecaysWithElapsedTime() throws Exception {
+        StubUpstream stub = stub(FIRST);
+        stub.setDelayMillis(20);
+        try (Upstream upstream = new Upstream(address(stub), 1, TIMEOUT_MILLIS)) {
+            upstream.query(request(1), request(1).length).get();
+            long measured = upstream.getSmoothedRttNanos();
+            assertTrue(measured >= TimeUnit.MILLISECONDS.toNanos(20), measured + "ns");
+
+            long now = System.currentTimeMillis();
+            upstream.decaySmoothedRtt(now + 50); // too soon to be worth decaying
+            assertEquals(measured, upstream.getSmoothedRttNanos());
+
+            upstream.decaySmoothedRtt(now + 10_000); // one half-life, however many queries went by
+            double ratio = (double) upstream.getSmoothedRttNanos() / measured;
+            assertTrue(ratio > 0.45 && ratio <= 0.5, "decayed to " + ratio);
+        }
+    }
+
+    @Test
+    void givesUpOnATransactionIdOnceEveryOneIsPending() {
+        ConcurrentHashMap<Integer, Object> pending = new ConcurrentHashMap<>();
+        for (int id = 0; id < 0x10000; id++)
+            pending.put(id, "waiting");
+        assertEquals(-1, Upstream.reserveId(pending, "one more"));
+
+        pending.remove(1234);
+        int id = -1;
+        while (id < 0) // each call gives up after a bounded number of tries; the last free ID turns up eventually
+            id = Upstream.reserveId(pending, "one more");
+        assertEquals(1234, id);
+        assertEquals("one more", pending.get(1234));
+    }
+
+    /**
+     * A client whose first upstream has answered enough queries for its hedge delay to be a percentile of its
+     * RTTs, and has a lower smoothed RTT than the second
+     */
+    private UpstreamClient warmedUp(StubUpstream first, StubUpstream second) throws Exception {
+        second.setDelayMillis(30);
+        UpstreamClient client = client(first, second);
+        for (int i = 0; i < 30; i++)
+            query(client, i);
+        second.setDelayMillis(0);
+        return client;
+    }
+
+    private StubUpstream stub(byte[] answer) throws IOException {
+        StubUpstream stub = new StubUpstream(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), answer,
+                                             60, 1);
+        stubs.add(stub.start());
+        return stub;
+    }
+
+    private static InetSocketAddress address(StubUpstream stub) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), stub.getPort());
+    }
+
+    private static UpstreamClient client(StubUpstream... upstreams) throws IOException {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (StubUpstream upstream : upstreams)
+            addresses.add(address(upstream));
+        return new UpstreamClient(addresses, 2, TIMEOUT_MILLIS);
+    }
+
+    private static DNSMessage query(UpstreamClient client, int i) throws Exception {
+        byte[] request = request(i);
+        return client.query(request, request.length).get();
+    }
+
+    private static void assertTimesOut(Upstream upstream, int i) {
+        byte[] request = request(i);
+        CompletableFuture<DNSMessage> future = upstream.query(request, request.length);
+        ExecutionException error = assertThrows(ExecutionException.class, future::get);
+        assertTrue(UpstreamClient.isTimeout(error), error.toString());
+    }
+
+    private static byte[] request(int i) {
+        DNSQuestion question = DNSQuestion.buildQuestion(DomainName.fromString("host" + i + ".example.com"),
+                                                         DNSRecord.TYPE_A, 1);
+        return DNSMessage.buildQuery(question, (short) i).toBytes();
+    }
+}
@@ -0,0 +1,236 @@
+package dnsresolver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Replays a query log against the cache's eviction policies and prints the hit ratio of each, so that plain LRU
+ * and W-TinyLFU admission, with and without separate budgets for A/AAAA and other types, can be compared on real
+ * traffic before changing -Ddns.cache.admission or -Ddns.cache.otherTypesPercent. Only capacity is simulated: TTLs
+ * are ignored, and entry sizes are estimated from the name and typical answer sizes for the type.
+ * <p>
+ * The log can be plain ("name [type]" per line), BIND's query log ("... query: name IN type ...") or dnsmasq's
+ * ("... query[type] name from ..."); other lines are skipped. With "synthetic" instead of a file, a trace is made up:
+ * Zipf-distributed names, a share of them TXT, MX or SRV, broken up by bursts of random subdomains asked for once.
+ * Usage: java dnsresolver.CacheSimulator [trace file | synthetic] [entries[,entries...]] [window %] [other types %]
+ */
+public class CacheSimulator {
+
+    private static final long BYTES_PER_ENTRY = 672; // the default limits' ratio: 64 MiB for 100k entries
+    private static final String[] OTHER_TYPES = {"TXT", "MX", "SRV"};
+
+    private final String[] keys;
+    private final int[] qTypes;
+    private final int[] weights;
+
+    /**
+     * @param keys the question of each query, as "name type"
+     * @param qTypes the type of each query
+     */
+    CacheSimulator(List<String> keys, List<Integer> qTypes) {
+        this.keys = keys.toArray(new String[0]);
+        this.qTypes = new int[this.keys.length];
+        this.weights = new int[this.keys.length];
+        for (int i = 0; i < this.keys.length; i++) {
+            this.qTypes[i] = qTypes.get(i);
+            this.weights[i] = estimateSize(this.keys[i].length(), this.qTypes[i]);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String trace = args.length > 0 ? args[0] : "synthetic";
+        int[] capacities = Arrays.stream((args.length > 1 ? args[1] : "1000,10000,50000").split(","))
+                                 .mapToInt(Integer::parseInt).toArray();
+        int windowPercent = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int otherTypesPercent = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+        CacheSimulator simulator = trace.equals("synthetic") ? synthetic(2_000_000, 100_000, 0.9, new Random(42))
+                                                             : read(trace);
+        System.out.println("Replaying " + simulator.keys.length + " queries (" + simulator.distinctQuestions()
+                           + " distinct questions), window " + windowPercent + "%, other types " + otherTypesPercent
+                           + "%, " + BYTES_PER_ENTRY + " bytes per entry\n");
+        System.out.printf("%10s %10s %10s %14s %14s%n", "entries", "lru", "w-tinylfu", "lru+types", "w-tinylfu+types");
+        for (int capacity : capacities)
+            System.out.printf("%10d %10.3f %10.3f %14.3f %14.3f%n", capacity,
+                              simulator.hitRatio(capacity, false, 0, windowPercent),
+                              simulator.hitRatio(capacity, true, 0, windowPercent),
+                              simulator.hitRatio(capacity, false, otherTypesPercent, windowPercent),
+                              simulator.hitRatio(capacity, true, otherTypesPercent, windowPercent));
+    }
+
+    /**
+     * Replay the trace against one policy, split into partitions the way a DNSCache stripe is
+     * @param maxEntries the cache size in entries; the byte limit is proportional
+     * @param tinyLfu true for W-TinyLFU admission, false for plain LRU
+     * @param otherTypesPercent the share of the limits for types other than A and AAAA, or 0 to share them
+     * @param windowPercent the admission window's share of the limits
+     * @return the share of queries that were hits
+     */
+    double hitRatio(int maxEntries, boolean tinyLfu, int otherTypesPercent, int windowPercent) {
+        FrequencySketch sketch = tinyLfu ? new FrequencySketch(maxEntries) : null;
+        long maxBytes = maxEntries * BYTES_PER_ENTRY;
+        int otherEntries = maxEntries * otherTypesPercent / 100;
+        TinyLfuCache<String, Integer> addresses, others;
+        if (otherEntries == 0) {
+            addresses = new TinyLfuCache<>(maxEntries, maxBytes, windowPercent, sketch, Integer::intValue);
+            others = addresses;
+        }
+        else {
+            long otherBytes = maxBytes * otherTypesPercent / 100;
+            addresses = new TinyLfuCache<>(maxEntries - otherEntries, maxBytes - otherBytes, windowPercent, sketch,
+                                           Integer::intValue);
+            others = new TinyLfuCache<>(otherEntries, otherBytes, windowPercent, sketch, Integer::intValue);
+        }
+
+        long hits = 0;
+        for (int i = 0; i < keys.length; i++) {
+            TinyLfuCache<String, Integer> partition =
+                    qTypes[i] == DNSRecord.TYPE_A || qTypes[i] == DNSRecord.TYPE_AAAA ? addresses : others;
+            if (partition.get(keys[i]) != null)
+                hits++;
+            else
+                partition.put(keys[i], weights[i]);
+        }
+        return keys.length == 0 ? 0 : (double) hits / keys.length;
+    }
+
+    private long distinctQuestions() {
+        return Arrays.stream(keys).distinct().count();
+    }
+
+    /**
+     * @return roughly what DNSCache would count for the entry: the question, a typical answer for the type, and
+     * the pre-encoded response
+     */
+    private static int estimateSize(int nameLength, int qType) {
+        int rData;
+        if (qType == DNSRecord.TYPE_A)
+            rData = 4;
+        else if (qType == DNSRecord.TYPE_AAAA)
+            rData = 16;
+        else if (qType == DNSRecord.TYPE_TXT)
+            rData = 400;
+        else
+            rData = nameLength + 8;
+        return 160 + 3 * nameLength + 2 * (rData + 12);
+    }
+
+    /**
+     * Read a query log in any of the formats the class comment lists
+     */
+    static CacheSimulator read(String file) throws IOException {
+        List<String> keys = new ArrayList<>();
+        List<Integer> qTypes = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String name, type;
+                String[] fields;
+                int query = line.indexOf("query: ");
+                int dnsmasq = line.indexOf("query[");
+                if (query >= 0) {
+                    fields = line.substring(query + 7).trim().split("\\s+");
+                    if (fields.length < 3)
+                        continue;
+                    name = fields[0];
+                    type = fields[2];
+                }
+                else if (dnsmasq >= 0) {
+                    int close = line.indexOf(']', dnsmasq);
+                    fields = line.substring(close + 1).trim().split("\\s+");
+                    if (close < 0 || fields[0].isEmpty())
+                        continue;
+                    name = fields[0];
+                    type = line.substring(dnsmasq + 6, close);
+                }
+                else {
+                    fields = line.trim().split("\\s+");
+                    if (fields[0].isEmpty() || fields[0].startsWith("#") || fields[0].startsWith(";"))
+                        continue;
+                    name = fields[0];
+                    type = fields.length > 1 ? fields[1] : "A";
+                }
+                int qType = parseType(type);
+                if (qType < 0)
+                    continue;
+                name = name.toLowerCase(Locale.ROOT);
+                if (name.endsWith(".") && name.length() > 1)
+                    name = name.substring(0, name.length() - 1);
+                keys.add(name + " " + qType);
+                qTypes.add(qType);
+            }
+        }
+        return new CacheSimulator(keys, qTypes);
+    }
+
+    /**
+     * @return the type's number, or -1 if it is not one the simulator knows
+     */
+    private static int parseType(String type) {
+        switch (type.toUpperCase(Locale.ROOT)) {
+            case "A": return DNSRecord.TYPE_A;
+            case "NS": return DNSRecord.TYPE_NS;
+            case "CNAME": return DNSRecord.TYPE_CNAME;
+            case "SOA": return DNSRecord.TYPE_SOA;
+            case "PTR": return DNSRecord.TYPE_PTR;
+            case "MX": return DNSRecord.TYPE_MX;
+            case "TXT": return DNSRecord.TYPE_TXT;
+            case "AAAA": return DNSRecord.TYPE_AAAA;
+            case "SRV": return DNSRecord.TYPE_SRV;
+            default:
+                try {
+                    return Integer.parseInt(type.startsWith("TYPE") ? type.substring(4) : type);
+                }
+                catch (NumberFormatException nfe) {
+                    return -1;
+                }
+        }
+    }
+
+    /**
+     * Make up a trace: queries for a fixed set of names picked with a Zipf distribution, 15% of them for TXT, MX
+     * or SRV and the rest for A or AAAA, with every tenth block of 10,000 queries replaced by random subdomains that
+     * are never asked for again
+     * @param queries the length of the trace
+     * @param names the number of names in the set
+     * @param zipfExponent how skewed the set is
+     * @param random the source of randomness, seeded so runs can be compared
+     */
+    static CacheSimulator synthetic(int queries, int names, double zipfExponent, Random random) {
+        double[] zipfCdf = new double[names];
+        double total = 0;
+        for (int rank = 0; rank < names; rank++) {
+            total += 1 / Math.pow(rank + 1, zipfExponent);
+            zipfCdf[rank] = total;
+        }
+        for (int rank = 0; rank < names; rank++)
+            zipfCdf[rank] /= total;
+
+        List<String> keys = new ArrayList<>(queries);
+        List<Integer> qTypes = new ArrayList<>(queries);
+        for (int i = 0; i < queries; i++) {
+            if ((i / 10_000) % 10 == 9) {
+                keys.add(Long.toString(random.nextLong() & Long.MAX_VALUE, 36) + ".scan.test " + DNSRecord.TYPE_A);
+                qTypes.add(DNSRecord.TYPE_A);
+                continue;
+            }
+            int rank = Arrays.binarySearch(zipfCdf, random.nextDouble());
+            rank = Math.min(names - 1, rank < 0 ? -rank - 1 : rank);
+            int qType;
+            if (rank % 20 < 3) // the same names always get the same type, so a name's popularity carries over
+                qType = parseType(OTHER_TYPES[rank % 3]);
+            else
+                qType = rank % 2 == 0 ? DNSRecord.TYPE_A : DNSRecord.TYPE_AAAA;
+            keys.add("host" + rank + ".sim.test " + qType);
+            qTypes.add(qType);
+        }
+        return new CacheSimulator(keys, qTypes);
+    }
+}
@@ -0,0 +1,239 @@
+package dnsresolver;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves the cache to a compact binary file and loads it back, so that a restarted server does not start cold.
+ * Expiry times are stored as absolute times, so TTLs handed out after a restart carry on counting down from where
+ * they were, and entries that expired while the server was down are skipped.
+ * The file is written through a memory-mapped buffer into a temporary file next to it, then moved into place, so a
+ * crash mid-write never leaves a broken snapshot behind. Writing only holds each cache stripe's lock long enough
+ * to copy its entry list.
+ * <p>
+ * Layout, big-endian: magic "DNSC", version, entry count, then for each entry
+ * <pre>
+ *   question: name (uncompressed wire format), qType (2), qClass (2)
+ *   response: rCode (1), expiry millis (8), answer count (2), authority count (2), then for each record
+ *     name, rType (2), rClass (2), expiry seconds (8), rdLength (2), rData
+ * </pre>
+ */
+public class CacheSnapshot {
+
+    // Snapshots. Turn on with -Ddns.cache.snapshotFile=PATH; written every -Ddns.cache.snapshotIntervalSeconds=N
+    // and on shutdown, and loaded at startup
+    private static final String SNAPSHOT_FILE = System.getProperty("dns.cache.snapshotFile");
+    private static final long SNAPSHOT_INTERVAL_SECONDS = Long.getLong("dns.cache.snapshotIntervalSeconds", 300);
+
+    private static final int MAGIC = 0x444e5343; // "DNSC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * Load the configured snapshot, if there is one, and start writing it periodically
+     */
+    public static void start() {
+        if (SNAPSHOT_FILE == null)
+            return;
+
+        Path file = Paths.get(SNAPSHOT_FILE);
+        try {
+            long start = System.nanoTime();
+            int loaded = load(file);
+            System.out.println("Loaded " + loaded + " cache entries from " + file + " in "
+                               + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        }
+        catch (NoSuchFileException nsfe) {
+            System.out.println("No cache snapshot at " + file + " yet, starting cold.");
+        }
+        catch (IOException ioe) {
+            System.out.println("Cache snapshot " + file + " cannot be loaded, starting cold: " + ioe.getMessage());
+        }
+
+        if (SNAPSHOT_INTERVAL_SECONDS > 0) {
+            ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "dns-cache-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            writer.scheduleWithFixedDelay(CacheSnapshot::save, SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_INTERVAL_SECONDS,
+                                          TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Write the configured snapshot now, e.g. on shutdown. Does nothing if snapshots are off.
+     */
+    public static void save() {
+        if (SNAPSHOT_FILE == null)
+            return;
+        try {
+            write(Paths.get(SNAPSHOT_FILE));
+        }
+        catch (IOException ioe) {
+            System.out.println("Cache snapshot cannot be written: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Write every valid cache entry to a snapshot file, replacing it
+     * @param file the snapshot file
+     * @return the number of entries written
+     * @throws IOException if the file cannot be written
+     */
+    public static synchronized int write(Path file) throws IOException {
+        ArrayList<DNSQuestion> questions = new ArrayList<>();
+        ArrayList<CachedResponse> responses = new ArrayList<>();
+        DNSCache.forEach((question, response) -> {
+            questions.add(question);
+            responses.add(response);
+        });
+
+        long size = HEADER_SIZE;
+        for (int i = 0; i < questions.size(); i++)
+            size += entrySize(questions.get(i), responses.get(i));
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Snapshot too large to map: " + size + " bytes");
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(questions.size());
+            for (int i = 0; i < questions.size(); i++)
+                writeEntry(out, questions.get(i), responses.get(i));
+            out.force();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return questions.size();
+    }
+
+    /**
+     * Insert every entry of a snapshot file that has not expired yet into the cache
+     * @param file the snapshot file
+     * @return the number of entries loaded
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public static int load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC)
+                throw new IOException("Not a cache snapshot");
+            if (in.getInt() != VERSION)
+                throw new IOException("Unsupported cache snapshot version");
+
+            int count = in.getInt();
+            int loaded = 0;
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                DNSQuestion question = readQuestion(in);
+                CachedResponse response = readResponse(in);
+                if (response.getExpiryMillis() <= now)
+                    continue;
+                DNSCache.insert(question, response);
+                loaded++;
+            }
+            return loaded;
+        }
+        catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Corrupt cache snapshot", e);
+        }
+    }
+
+    /**
+     * @return the number of bytes writeEntry takes for an entry
+     */
+    static int entrySize(DNSQuestion question, CachedResponse response) {
+        int size = question.getName().getWireLength() + 4 + 1 + 8 + 2 + 2;
+        for (DNSRecord record : response.getAnswers())
+            size += recordSize(record);
+        for (DNSRecord record : response.getAuthorityRecords())
+            size += recordSize(record);
+        return size;
+    }
+
+    private static int recordSize(DNSRecord record) {
+        return record.getName().getWireLength() + 2 + 2 + 8 + 2 + record.getRData().length;
+    }
+
+    /**
+     * Write an entry, question then response, at the current position of a buffer
+     */
+    static void writeEntry(ByteBuffer out, DNSQuestion question, CachedResponse response) {
+        question.getName().writeUncompressed(out);
+        out.putShort((short) question.getQType());
+        out.putShort((short) question.getQClass());
+        out.put((byte) response.getRCode());
+        out.putLong(response.getExpiryMillis());
+        out.putShort((short) response.getAnswers().length);
+        out.putShort((short) response.getAuthorityRecords().length);
+        for (DNSRecord record : response.getAnswers())
+            writeRecord(out, record);
+        for (DNSRecord record : response.getAuthorityRecords())
+            writeRecord(out, record);
+    }
+
+    private static void writeRecord(ByteBuffer out, DNSRecord record) {
+        record.getName().writeUncompressed(out);
+        out.putShort((short) record.getRType());
+        out.putShort((short) record.getRClass());
+        out.putLong(record.getExpiryMillis() / 1000);
+        out.putShort((short) record.getRData().length);
+        out.put(record.getRData());
+    }
+
+    /**
+     * Read the question of an entry written by writeEntry, at the current position of a buffer
+     */
+    static DNSQuestion readQuestion(ByteBuffer in) {
+        return DNSQuestion.buildQuestion(readName(in), in.getShort() & 0xffff, in.getShort() & 0xffff);
+    }
+
+    /**
+     * Read the response of an entry written by writeEntry, right after its question
+     */
+    static CachedResponse readResponse(ByteBuffer in) {
+        int rCode = in.get();
+        long expiryMillis = in.getLong();
+        int anCount = in.getShort() & 0xffff;
+        int nsCount = in.getShort() & 0xffff;
+        DNSRecord[] answers = readRecords(in, anCount);
+        DNSRecord[] authorityRecords = readRecords(in, nsCount);
+        return CachedResponse.restore(rCode, answers, authorityRecords, expiryMillis);
+    }
+
+    private static DNSRecord[] readRecords(ByteBuffer in, int count) {
+        DNSRecord[] records = new DNSRecord[count];
+        for (int i = 0; i < count; i++) {
+            DomainName name = readName(in);
+            int rType = in.getShort() & 0xffff;
+            int rClass = in.getShort() & 0xffff;
+            long expirySeconds = in.getLong();
+            byte[] rData = new byte[in.getShort() & 0xffff];
+            in.get(rData);
+            records[i] = DNSRecord.buildRecord(name, rType, rClass, expirySeconds, rData);
+        }
+        return records;
+    }
+
+    private static DomainName readName(ByteBuffer in) {
+        DomainName name = DomainName.read(in, in.position());
+        in.position(in.position() + name.getWireLength());
+        return name;
+    }
+}
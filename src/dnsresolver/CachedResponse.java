@@ -0,0 +1,214 @@
+package dnsresolver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * What the cache holds for a question: either the records answering it, or a negative answer (RFC 2308), i.e. an
+ * NXDOMAIN or NODATA response code together with the SOA record from the authority section.
+ */
+public class CachedResponse {
+
+    private static final DNSRecord[] NO_RECORDS = new DNSRecord[0];
+
+    // Scratch table for encoding the additional records (our OPT record) after the pre-encoded part of a response
+    private static final ThreadLocal<NameCompressor> additionalNames = ThreadLocal.withInitial(NameCompressor::new);
+
+    private final int rCode;
+    private final DNSRecord[] answers;
+    private final DNSRecord[] authorityRecords;
+    private final long expiryMillis;
+    private volatile WireForm wireForm; // built on first use; a racing duplicate build is harmless
+
+    /**
+     * The response encoded once, without the additional section: header, question, answers and authority records.
+     * Only the transaction ID, flags, TTLs and additional section differ from one request to the next.
+     */
+    private static class WireForm {
+        final byte[] bytes;
+        final int[] ttlOffsets;
+        final long[] expirySeconds; // when each record's TTL runs out, in the same order as ttlOffsets
+
+        WireForm(byte[] bytes, int[] ttlOffsets, long[] expirySeconds) {
+            this.bytes = bytes;
+            this.ttlOffsets = ttlOffsets;
+            this.expirySeconds = expirySeconds;
+        }
+    }
+
+    private CachedResponse(int rCode, DNSRecord[] answers, DNSRecord[] authorityRecords, long expiryMillis) {
+        this.rCode = rCode;
+        this.answers = answers;
+        this.authorityRecords = authorityRecords;
+        this.expiryMillis = expiryMillis;
+    }
+
+    /**
+     * @param answers the whole set of records answering a question (must not be empty)
+     * @return a positive response, valid until its shortest-lived record expires. No record outlives it, e.g. the
+     * CNAMEs in front of a short-lived address, so its TTLs count down the same whether it is served re-encoded or
+     * from its pre-encoded bytes.
+     */
+    public static CachedResponse positive(DNSRecord[] answers) {
+        long expiryMillis = Long.MAX_VALUE;
+        for (DNSRecord record : answers)
+            expiryMillis = Math.min(expiryMillis, record.getExpiryMillis());
+
+        DNSRecord[] capped = answers;
+        for (int i = 0; i < answers.length; i++) {
+            DNSRecord record = answers[i];
+            if (record.getExpiryMillis() > expiryMillis) {
+                if (capped == answers)
+                    capped = answers.clone();
+                capped[i] = DNSRecord.buildRecord(record.getName(), record.getRType(), record.getRClass(),
+                                                  expiryMillis / 1000, record.getRData());
+            }
+        }
+        return new CachedResponse(DNSHeader.RCODE_NOERROR, capped, NO_RECORDS, expiryMillis);
+    }
+
+    /**
+     * Build a negative response from an upstream NXDOMAIN or NODATA response
+     * @param upstreamResponse the response from the upstream
+     * @return the negative response, or null if it cannot be cached because the authority section has no SOA
+     */
+    public static CachedResponse negative(DNSMessage upstreamResponse) {
+        for (DNSRecord record : upstreamResponse.getAuthorityRecords()) {
+            if (record.getRType() == DNSRecord.TYPE_SOA) {
+                // RFC 2308 section 5: the negative TTL is the smaller of the SOA's own TTL and its MINIMUM field
+                // and the SOA handed on to downstream caches says so too, so they do not keep the answer longer
+                long negativeTtl = Math.min(record.getTtl(), record.getSoaMinimum());
+                long expiryMillis = record.getExpiryMillis(negativeTtl);
+                DNSRecord soa = DNSRecord.buildRecord(record.getName(), record.getRType(), record.getRClass(),
+                                                      expiryMillis / 1000, record.getRData());
+                return new CachedResponse(upstreamResponse.getHeader().getRCode(), NO_RECORDS,
+                                          new DNSRecord[] {soa}, expiryMillis);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rebuild a response from its parts, e.g. when loading a cache snapshot
+     * @param rCode the response code
+     * @param answers the answer records (empty for a negative response)
+     * @param authorityRecords the authority records (the SOA of a negative response)
+     * @param expiryMillis when the response stops being valid
+     * @return the response
+     */
+    public static CachedResponse restore(int rCode, DNSRecord[] answers, DNSRecord[] authorityRecords,
+                                         long expiryMillis) {
+        return new CachedResponse(rCode, answers, authorityRecords, expiryMillis);
+    }
+
+    /**
+     * @param response a response from the upstream
+     * @return true if the response says the name does not exist (NXDOMAIN) or has no records of the asked type
+     * (NODATA)
+     */
+    public static boolean isNegativeResponse(DNSMessage response) {
+        int rCode = response.getHeader().getRCode();
+        return rCode == DNSHeader.RCODE_NXDOMAIN
+               || (rCode == DNSHeader.RCODE_NOERROR && response.getAnswers().length == 0);
+    }
+
+    /**
+     * Write the response to a request straight from the pre-encoded bytes: copy them, patch the transaction ID,
+     * flags, question name and remaining TTLs in place, and append the additional records (our OPT record if the
+     * request used EDNS). The question name is copied from the request, since the cache ignores case but the
+     * requester should get its own spelling back. The result is the same as encoding
+     * DNSMessage.buildResponse(request, getRCode(), getAnswers(), getAuthorityRecords()), except that the TTLs
+     * count down.
+     * @param request the DNS request message; must have exactly one question, the one this response answers
+     * @param out the buffer to write into; cleared first and flipped afterwards
+     * @return the same buffer, ready to be sent
+     */
+    public ByteBuffer writeWireResponse(DNSMessage request, ByteBuffer out) {
+        WireForm form = wireForm;
+        if (form == null)
+            wireForm = form = encodeWireForm(request.getQuestions()[0]);
+
+        out.clear();
+        out.put(form.bytes);
+
+        DNSHeader reqHeader = request.getHeader();
+        out.putShort(0, reqHeader.getId());
+        out.put(2, (byte) (0x80 | (reqHeader.getOpCode() << 3) | reqHeader.getRd())); // qr = 1, aa = tc = 0
+        out.put(12, request.getQuestions()[0].getName().getWire()); // same length: the names only differ in case
+
+        long nowSeconds = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < form.ttlOffsets.length; i++)
+            out.putInt(form.ttlOffsets[i], (int) Math.max(0, form.expirySeconds[i] - nowSeconds));
+
+        writeAdditionalRecords(request, out);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Append the additional records for a response written from pre-encoded bytes (our OPT record if the request
+     * used EDNS) and set the additional count in its header
+     * @param request the DNS request message
+     * @param out the buffer holding the rest of the response, positioned at its end
+     */
+    static void writeAdditionalRecords(DNSMessage request, ByteBuffer out) {
+        DNSRecord[] additionalRecords = Edns.responseAdditionalRecords(request);
+        NameCompressor compressor = additionalNames.get();
+        compressor.clear();
+        for (DNSRecord record : additionalRecords)
+            record.writeBytes(out, compressor);
+        out.putShort(10, (short) additionalRecords.length);
+    }
+
+    private WireForm encodeWireForm(DNSQuestion question) {
+        DNSMessage template = DNSMessage.buildResponse(DNSMessage.buildQuery(question, (short) 0), rCode,
+                                                       answers, authorityRecords);
+        byte[] bytes = template.toBytes();
+        int[] ttlOffsets = DNSMessage.findTtlOffsets(ByteBuffer.wrap(bytes));
+
+        // no record may outlive the response, e.g. the SOA of a negative one, which is only good for the negative TTL
+        long[] expirySeconds = new long[ttlOffsets.length];
+        int i = 0;
+        for (DNSRecord record : answers)
+            expirySeconds[i++] = Math.min(record.getExpiryMillis(), expiryMillis) / 1000;
+        for (DNSRecord record : authorityRecords)
+            expirySeconds[i++] = Math.min(record.getExpiryMillis(), expiryMillis) / 1000;
+
+        return new WireForm(bytes, ttlOffsets, expirySeconds);
+    }
+
+    public boolean isNegative() {
+        return answers.length == 0;
+    }
+
+    public boolean isValid() {
+        return System.currentTimeMillis() < expiryMillis;
+    }
+
+    public int getRCode() {
+        return rCode;
+    }
+
+    public DNSRecord[] getAnswers() {
+        return answers;
+    }
+
+    public DNSRecord[] getAuthorityRecords() {
+        return authorityRecords;
+    }
+
+    public long getExpiryMillis() {
+        return expiryMillis;
+    }
+
+    /**
+     * @return a rough estimate of the heap taken up by this response, used to bound the cache size
+     */
+    public int sizeInBytes() {
+        int size = 48 + 512; // object header, fields and arrays, and room for the pre-encoded bytes
+        for (DNSRecord record : answers)
+            size += record.sizeInBytes();
+        for (DNSRecord record : authorityRecords)
+            size += record.sizeInBytes();
+        return size;
+    }
+}
@@ -0,0 +1,536 @@
+package dnsresolver;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
+
+public class DNSCache {
+
+    // Cache limits. Configurable with -Ddns.cache.maxEntries, -Ddns.cache.maxBytes, -Ddns.cache.stripes
+    // and -Ddns.cache.sweepIntervalMillis. The limits are split evenly between the stripes.
+    private static final int MAX_ENTRIES = Integer.getInteger("dns.cache.maxEntries", 100_000);
+    private static final long MAX_BYTES = Long.getLong("dns.cache.maxBytes", 64L * 1024 * 1024);
+    private static final int NUM_STRIPES = roundUpToPowerOfTwo(Integer.getInteger("dns.cache.stripes", 16));
+    private static final long SWEEP_INTERVAL_MILLIS = Long.getLong("dns.cache.sweepIntervalMillis", 1000);
+
+    // Admission and per-type budgets. With -Ddns.cache.admission=tinylfu (the default) an entry only stays past the
+    // admission window if it is asked for more often than the ones it would evict (see TinyLfuCache), so one-off
+    // lookups cannot flush the hot set; =lru evicts plain LRU. The window's share is -Ddns.cache.windowPercent=N.
+    // Answers to types other than A and AAAA get -Ddns.cache.otherTypesPercent=N of each stripe's limits and A/AAAA
+    // the rest, so big TXT answers cannot crowd out small, much-hit address ones; 0 lets all types share the limits.
+    private static final boolean TINY_LFU = !System.getProperty("dns.cache.admission", "tinylfu").equals("lru");
+    private static final int WINDOW_PERCENT = Integer.getInteger("dns.cache.windowPercent", 1);
+    private static final int OTHER_TYPES_PERCENT = Integer.getInteger("dns.cache.otherTypesPercent", 20);
+
+    // Refresh-ahead. An entry hit at least PREFETCH_MIN_HITS times is refreshed in the background once
+    // PREFETCH_TTL_FRACTION of its TTL has passed, with at most PREFETCH_MAX_CONCURRENT refreshes in flight.
+    // Configurable with -Ddns.prefetch.minHits, -Ddns.prefetch.ttlFraction and -Ddns.prefetch.maxConcurrent
+    private static final int PREFETCH_MIN_HITS = Integer.getInteger("dns.prefetch.minHits", 3);
+    private static final double PREFETCH_TTL_FRACTION =
+            Double.parseDouble(System.getProperty("dns.prefetch.ttlFraction", "0.8"));
+    private static final int PREFETCH_MAX_CONCURRENT = Integer.getInteger("dns.prefetch.maxConcurrent", 16);
+
+    // Keep the entries off the Java heap, in slabs of direct memory. Turn on with -Ddns.cache.offHeap=true; the slab
+    // size is configurable with -Ddns.cache.offHeap.slabBytes=N. dns.cache.maxBytes then bounds the slab memory.
+    private static final boolean OFF_HEAP = Boolean.getBoolean("dns.cache.offHeap");
+    private static final int SLAB_BYTES = Integer.getInteger("dns.cache.offHeap.slabBytes", 256 * 1024);
+
+    private static final Segment[] segments = new Segment[OFF_HEAP ? 0 : NUM_STRIPES];
+    private static final OffHeapSegment[] offHeapSegments = new OffHeapSegment[OFF_HEAP ? NUM_STRIPES : 0];
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder negativeHits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder expired = new LongAdder();
+
+    private static volatile Refresher refresher;
+    private static final Semaphore prefetchPermits = new Semaphore(PREFETCH_MAX_CONCURRENT);
+    private static final LongAdder prefetchesStarted = new LongAdder();
+    private static final LongAdder prefetchesSkipped = new LongAdder();
+    private static final LongAdder prefetchesFailed = new LongAdder();
+
+    /**
+     * Fetches a fresh answer for a question and puts it in the cache. Set by the server.
+     */
+    public interface Refresher {
+        /**
+         * @param question the question to refresh
+         * @return a future completed once the fresh answer is cached (or the refresh failed)
+         */
+        CompletableFuture<?> refresh(DNSQuestion question);
+    }
+
+    static {
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = new Segment(Math.max(1, MAX_ENTRIES / NUM_STRIPES), Math.max(1, MAX_BYTES / NUM_STRIPES));
+        for (int i = 0; i < offHeapSegments.length; i++)
+            offHeapSegments[i] = new OffHeapSegment(Math.max(1, MAX_ENTRIES / NUM_STRIPES),
+                                                    Math.max(1, MAX_BYTES / NUM_STRIPES), SLAB_BYTES);
+
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-cache-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(DNSCache::sweepExpired, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS,
+                                       TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Look up the cache
+     * @param question DNSQuestion object to look up
+     * @return the valid (positive or negative) response to the question, or null if it expired or is not found
+     */
+    public static CachedResponse lookup(DNSQuestion question) {
+        if (OFF_HEAP)
+            return lookupOffHeap(question);
+
+        Entry entry = segmentFor(question).lookup(question);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+
+        if (entry.response.isNegative())
+            negativeHits.increment();
+        else
+            hits.increment();
+
+        if (entry.hits.incrementAndGet() >= PREFETCH_MIN_HITS && System.currentTimeMillis() >= entry.prefetchAtMillis
+                && entry.prefetching.compareAndSet(false, true))
+            prefetch(entry.question, () -> entry.prefetching.set(false));
+
+        return entry.response;
+    }
+
+    /**
+     * Look up the off-heap cache. The response is decoded from its slab under the stripe's lock.
+     * @param question DNSQuestion object to look up
+     * @return the valid response to the question, or null if it expired or is not found
+     */
+    private static CachedResponse lookupOffHeap(DNSQuestion question) {
+        OffHeapSegment segment = offHeapSegments[stripeFor(question)];
+        int hash = offHeapHash(question);
+        long now = System.currentTimeMillis();
+        CachedResponse response;
+        boolean prefetchDue;
+        synchronized (segment) {
+            int slot = segment.find(question, hash, now);
+            if (slot < 0) {
+                if (slot == -2)
+                    expired.increment();
+                if (Log.VERBOSE)
+                    System.out.println("\tAnswer to " + question.getDomainNameAsString()
+                                       + (slot == -2 ? " expired." : " not in cache."));
+                misses.increment();
+                return null;
+            }
+            response = segment.read(slot);
+            prefetchDue = segment.hit(slot, PREFETCH_MIN_HITS, now);
+        }
+
+        if (response.isNegative())
+            negativeHits.increment();
+        else
+            hits.increment();
+
+        if (prefetchDue) {
+            // the question may be the caller's reusable one, and the refresh outlives this call
+            DNSQuestion refreshed = DNSQuestion.buildQuestion(question.getName(), question.getQType(),
+                                                              question.getQClass());
+            prefetch(refreshed, () -> {
+                synchronized (segment) {
+                    segment.releasePrefetch(refreshed, hash);
+                }
+            });
+        }
+        return response;
+    }
+
+    /**
+     * @param newRefresher what the cache calls to refresh hot entries before they expire, or null to turn
+     *                     refresh-ahead off
+     */
+    public static void setRefresher(Refresher newRefresher) {
+        refresher = newRefresher;
+    }
+
+    /**
+     * Refresh a hot entry in the background, unless too many refreshes are already in flight
+     * @param question the question of the entry nearing expiry
+     * @param release lets a later hit on the entry try again. Run whenever the refresh ends, since a refresh that
+     *                succeeds without an answer that can be cached (e.g. a relayed SERVFAIL) leaves the entry in place
+     */
+    private static void prefetch(DNSQuestion question, Runnable release) {
+        Refresher currentRefresher = refresher;
+        if (currentRefresher == null) {
+            release.run();
+            return;
+        }
+
+        if (!prefetchPermits.tryAcquire()) {
+            prefetchesSkipped.increment();
+            release.run(); // let a later hit try again
+            return;
+        }
+
+        prefetchesStarted.increment();
+        try {
+            currentRefresher.refresh(question).whenComplete((result, error) -> {
+                prefetchPermits.release();
+                if (error != null)
+                    prefetchesFailed.increment();
+                release.run(); // a replaced entry is no longer looked up, so this only matters if it was not
+            });
+        }
+        catch (RuntimeException re) {
+            prefetchPermits.release();
+            prefetchesFailed.increment();
+            release.run();
+        }
+    }
+
+    /**
+     * @return the number of background refreshes started
+     */
+    public static long getPrefetchesStarted() {
+        return prefetchesStarted.sum();
+    }
+
+    /**
+     * @return the number of background refreshes not started because too many were in flight
+     */
+    public static long getPrefetchesSkipped() {
+        return prefetchesSkipped.sum();
+    }
+
+    /**
+     * @return the number of background refreshes that failed
+     */
+    public static long getPrefetchesFailed() {
+        return prefetchesFailed.sum();
+    }
+
+    /**
+     * @return the number of background refreshes currently in flight
+     */
+    public static int getPrefetchesInFlight() {
+        return PREFETCH_MAX_CONCURRENT - prefetchPermits.availablePermits();
+    }
+
+    /**
+     * Insert a question and the whole set of records answering it into the cache.
+     * The set stays cached until its shortest-lived record expires.
+     * @param question The DNS Question to insert
+     * @param records The DNS Record objects that answer the question (must not be empty)
+     */
+    public static void insert(DNSQuestion question, DNSRecord[] records) {
+        insert(question, CachedResponse.positive(records));
+    }
+
+    /**
+     * Insert a question and its (positive or negative) response into the cache
+     * @param question The DNS Question to insert
+     * @param response The response to the question
+     */
+    public static void insert(DNSQuestion question, CachedResponse response) {
+        if (Log.VERBOSE)
+            System.out.println("\tStoring " + (response.isNegative() ? "negative answer for " : "")
+                               + question.getDomainNameAsString() + " in cache...");
+        if (!OFF_HEAP) {
+            segmentFor(question).insert(question, response);
+            return;
+        }
+        OffHeapSegment segment = offHeapSegments[stripeFor(question)];
+        long prefetchAtMillis = prefetchAtMillis(response.getExpiryMillis());
+        synchronized (segment) {
+            segment.insert(question, offHeapHash(question), response, prefetchAtMillis);
+        }
+    }
+
+    /**
+     * @return the number of entries dropped on their way out of the admission window, for being asked for less often
+     * than the ones they would have evicted
+     */
+    public static long getAdmissionRejections() {
+        long rejected = 0;
+        for (Segment segment : segments)
+            rejected += segment.getRejected();
+        return rejected;
+    }
+
+    /**
+     * @return true if the cache admits entries by frequency rather than evicting plain LRU
+     */
+    public static boolean isTinyLfu() {
+        return TINY_LFU && !OFF_HEAP;
+    }
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    /**
+     * @return the number of lookups that found nothing valid, expired entries included
+     */
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of lookups that found an entry that had just expired
+     */
+    public static long getExpired() {
+        return expired.sum();
+    }
+
+    /**
+     * @return the share of lookups answered with records from the cache
+     */
+    public static double getHitRatio() {
+        return ratio(hits.sum());
+    }
+
+    /**
+     * @return the share of lookups answered with a cached NXDOMAIN or NODATA response
+     */
+    public static double getNegativeHitRatio() {
+        return ratio(negativeHits.sum());
+    }
+
+    private static double ratio(long count) {
+        long lookups = hits.sum() + negativeHits.sum() + misses.sum();
+        return lookups == 0 ? 0 : (double) count / lookups;
+    }
+
+    /**
+     * @return the number of entries currently in the cache (expired entries not yet swept included)
+     */
+    public static int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.size();
+        for (OffHeapSegment segment : offHeapSegments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the estimated number of bytes held by the cache (off the heap, the bytes of the encoded entries)
+     */
+    public static long sizeInBytes() {
+        long bytes = 0;
+        for (Segment segment : segments)
+            bytes += segment.sizeInBytes();
+        for (OffHeapSegment segment : offHeapSegments) {
+            synchronized (segment) {
+                bytes += segment.sizeInBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Call action for every valid entry, least recently used first within each stripe. Each stripe is copied under
+     * its lock and the action runs outside it, so a slow action (e.g. writing a snapshot) never holds up lookups.
+     * @param action what to do with each question and its response
+     */
+    public static void forEach(BiConsumer<DNSQuestion, CachedResponse> action) {
+        for (Segment segment : segments)
+            for (Entry entry : segment.entriesSnapshot())
+                if (entry.response.isValid())
+                    action.accept(entry.question, entry.response);
+        for (OffHeapSegment segment : offHeapSegments) {
+            ByteBuffer copy;
+            synchronized (segment) {
+                copy = segment.copyEntries();
+            }
+            OffHeapSegment.forEachCopied(copy, action);
+        }
+    }
+
+    /**
+     * Remove every expired entry from the cache. Called periodically by the sweeper thread.
+     */
+    static void sweepExpired() {
+        long now = System.currentTimeMillis();
+        for (Segment segment : segments)
+            segment.sweepExpired(now);
+        for (OffHeapSegment segment : offHeapSegments) {
+            synchronized (segment) {
+                segment.sweepExpired(now);
+            }
+        }
+    }
+
+    private static Segment segmentFor(DNSQuestion question) {
+        return segments[stripeFor(question)];
+    }
+
+    private static int stripeFor(DNSQuestion question) {
+        int hash = question.hashCode();
+        hash ^= (hash >>> 16); // spread the high bits so they take part in picking the stripe
+        return hash & (NUM_STRIPES - 1);
+    }
+
+    /**
+     * @return the question's hash as the off-heap index stores it, where 0 marks an empty slot
+     */
+    private static int offHeapHash(DNSQuestion question) {
+        int hash = question.hashCode();
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * @param expiryMillis when an entry expires
+     * @return when the entry, if hot, should be refreshed ahead of expiry
+     */
+    private static long prefetchAtMillis(long expiryMillis) {
+        long now = System.currentTimeMillis();
+        return now + (long) (Math.max(0, expiryMillis - now) * PREFETCH_TTL_FRACTION);
+    }
+
+    private static int roundUpToPowerOfTwo(int n) {
+        int power = 1;
+        while (power < n)
+            power <<= 1;
+        return power;
+    }
+
+    /**
+     * A cached response together with the bookkeeping needed for eviction and refresh-ahead
+     */
+    private static class Entry {
+        final DNSQuestion question;
+        final CachedResponse response;
+        final long expiryMillis;
+        final long prefetchAtMillis;
+        final int sizeInBytes;
+        final AtomicInteger hits = new AtomicInteger();
+        final AtomicBoolean prefetching = new AtomicBoolean();
+
+        Entry(DNSQuestion question, CachedResponse response) {
+            this.question = question;
+            this.response = response;
+            this.expiryMillis = response.getExpiryMillis();
+            this.prefetchAtMillis = prefetchAtMillis(expiryMillis);
+            this.sizeInBytes = question.sizeInBytes() + response.sizeInBytes() + 48;
+        }
+    }
+
+    /**
+     * One stripe of the cache, guarded by its own lock. Answers to A and AAAA questions and answers to the other
+     * types are kept in separate partitions with their own limits, each evicting with W-TinyLFU (or plain LRU) when
+     * over them. A heap ordered by expiry time lets the sweeper find expired entries without scanning the stripe.
+     */
+    static class Segment {
+        private final TinyLfuCache<DNSQuestion, Entry> addresses, others;
+        // May hold stale entries that were replaced or evicted; they are skipped when polled
+        private final PriorityQueue<Entry> expiryQueue =
+                new PriorityQueue<>((a, b) -> Long.compare(a.expiryMillis, b.expiryMillis));
+
+        Segment(int maxEntries, long maxBytes) {
+            FrequencySketch sketch = TINY_LFU ? new FrequencySketch(maxEntries) : null;
+            ToIntFunction<Entry> weigher = entry -> entry.sizeInBytes;
+            int otherEntries = (int) ((long) maxEntries * OTHER_TYPES_PERCENT / 100);
+            long otherBytes = maxBytes * OTHER_TYPES_PERCENT / 100;
+            if (otherEntries == 0 || otherBytes == 0) {
+                addresses = new TinyLfuCache<>(maxEntries, maxBytes, WINDOW_PERCENT, sketch, weigher);
+                others = addresses;
+            }
+            else {
+                addresses = new TinyLfuCache<>(maxEntries - otherEntries, maxBytes - otherBytes, WINDOW_PERCENT,
+                                               sketch, weigher);
+                others = new TinyLfuCache<>(otherEntries, otherBytes, WINDOW_PERCENT, sketch, weigher);
+            }
+        }
+
+        private TinyLfuCache<DNSQuestion, Entry> partitionFor(DNSQuestion question) {
+            int qType = question.getQType();
+            return qType == DNSRecord.TYPE_A || qType == DNSRecord.TYPE_AAAA ? addresses : others;
+        }
+
+        synchronized Entry lookup(DNSQuestion question) {
+            Entry entry = partitionFor(question).get(question);
+            if (entry == null) {
+                if (Log.VERBOSE)
+                    System.out.println("\tAnswer to " + question.getDomainNameAsString() + " not in cache.");
+                return null;
+            }
+            else if (!entry.response.isValid()) {
+                if (Log.VERBOSE)
+                    System.out.println("\tAnswer to " + question.getDomainNameAsString() + " expired.");
+                expired.increment();
+                partitionFor(question).remove(question, entry);
+                return null;
+            }
+            else {
+                if (Log.VERBOSE)
+                    System.out.println("\tAnswer to " + question.getDomainNameAsString() + " found in cache.");
+                return entry;
+            }
+        }
+
+        synchronized void insert(DNSQuestion question, CachedResponse response) {
+            Entry entry = new Entry(question, response);
+            partitionFor(question).put(question, entry);
+            expiryQueue.add(entry);
+            compactExpiryQueue();
+        }
+
+        synchronized void sweepExpired(long now) {
+            Entry head;
+            while ((head = expiryQueue.peek()) != null && head.expiryMillis <= now) {
+                expiryQueue.poll();
+                partitionFor(head.question).remove(head.question, head); // only if it was not replaced since
+            }
+        }
+
+        synchronized List<Entry> entriesSnapshot() {
+            List<Entry> entries = addresses.values();
+            if (others != addresses)
+                entries.addAll(others.values());
+            return entries;
+        }
+
+        synchronized int size() {
+            return addresses.size() + (others != addresses ? others.size() : 0);
+        }
+
+        synchronized long sizeInBytes() {
+            return addresses.sizeInBytes() + (others != addresses ? others.sizeInBytes() : 0);
+        }
+
+        synchronized long getRejected() {
+            return addresses.getRejected() + (others != addresses ? others.getRejected() : 0);
+        }
+
+        /**
+         * Drop stale heap entries once they outnumber the live ones, so the heap stays proportional to the stripe
+         */
+        private void compactExpiryQueue() {
+            int size = size();
+            if (expiryQueue.size() > 2 * size + 16) {
+                expiryQueue.clear();
+                expiryQueue.addAll(entriesSnapshot());
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package dnsresolver;
+
+import java.nio.ByteBuffer;
+
+public class DNSHeader {
+    /*
+    This class should store all the data provided by the 12 byte DNS header.
+     */
+
+    public static final int RCODE_NOERROR = 0, RCODE_FORMERR = 1, RCODE_SERVFAIL = 2, RCODE_NXDOMAIN = 3,
+                            RCODE_REFUSED = 5;
+
+    // Where each flag sits in the two flag bytes (RFC 1035 4.1.1), so they are read and written with one shift and
+    // mask apiece. Every flag is one bit wide except the opCode and rCode, which are four
+    private static final int QR_SHIFT = 7, OPCODE_SHIFT = 3, AA_SHIFT = 2, TC_SHIFT = 1, RD_SHIFT = 0;
+    private static final int RA_SHIFT = 7, Z_SHIFT = 6, AD_SHIFT = 5, CD_SHIFT = 4, RCODE_SHIFT = 0;
+    private static final int BIT_MASK = 0x1, CODE_MASK = 0xf;
+
+    private int qdCount, anCount, nsCount, arCount; // actually unsigned short in the form of int
+    private short id;
+    private byte qr, opCode, aa, tc, rd, ra, z, ad, cd, rCode;
+
+    /**
+     * Read the header from the current position of a buffer
+     * @param in the buffer holding the packet, positioned at the start of the header
+     * @return the DNSHeader object
+     */
+    public static DNSHeader decodeHeader(ByteBuffer in) {
+        return decodeHeader(in, new DNSHeader());
+    }
+
+    /**
+     * Read the header into an existing object, e.g. one that is reused for every request on a thread
+     * @param in the buffer holding the packet, positioned at the start of the header
+     * @param header the object to fill in; every field is overwritten
+     * @return the same header
+     */
+    static DNSHeader decodeHeader(ByteBuffer in, DNSHeader header) {
+        header.id = in.getShort();
+
+        int thirdByte = in.get();
+        header.qr = (byte) (thirdByte >> QR_SHIFT & BIT_MASK);
+        header.opCode = (byte) (thirdByte >> OPCODE_SHIFT & CODE_MASK);
+        header.aa = (byte) (thirdByte >> AA_SHIFT & BIT_MASK);
+        header.tc = (byte) (thirdByte >> TC_SHIFT & BIT_MASK);
+        header.rd = (byte) (thirdByte >> RD_SHIFT & BIT_MASK);
+
+        int fourthByte = in.get();
+        header.ra = (byte) (fourthByte >> RA_SHIFT & BIT_MASK);
+        header.z = (byte) (fourthByte >> Z_SHIFT & BIT_MASK);
+        header.ad = (byte) (fourthByte >> AD_SHIFT & BIT_MASK);
+        header.cd = (byte) (fourthByte >> CD_SHIFT & BIT_MASK);
+        header.rCode = (byte) (fourthByte >> RCODE_SHIFT & CODE_MASK);
+
+        header.qdCount = in.getShort() & 0xffff;
+        header.anCount = in.getShort() & 0xffff;
+        header.nsCount = in.getShort() & 0xffff;
+        header.arCount = in.getShort() & 0xffff;
+
+        return header;
+    }
+
+    /**
+     * This will create the header for the response. It will copy some fields from the request,
+     * and take the section counts from the response
+     * @param request the DNS request message
+     * @param response the DNS response message, with its sections already filled in
+     * @return the DNS response message
+     */
+    public static DNSHeader buildResponseHeader(DNSMessage request, DNSMessage response) {
+        return buildResponseHeader(request, response, RCODE_NOERROR);
+    }
+
+    /**
+     * This will create the header for the response, with the given response code
+     * @param request the DNS request message
+     * @param response the DNS response message, with its sections already filled in
+     * @param rCode the response code, e.g. RCODE_NXDOMAIN for a cached negative answer
+     * @return the DNS response message
+     */
+    public static DNSHeader buildResponseHeader(DNSMessage request, DNSMessage response, int rCode) {
+        DNSHeader reqHeader = request.getHeader();
+        DNSHeader resHeader = new DNSHeader();
+
+        resHeader.id = reqHeader.id;
+        resHeader.qr = 1;
+        resHeader.opCode = reqHeader.opCode;
+        resHeader.aa = 0;
+        resHeader.tc = 0;
+        resHeader.rd = reqHeader.rd;
+        resHeader.ra = 0;
+        resHeader.z = 0;
+        resHeader.rCode = (byte) rCode;
+
+        resHeader.qdCount = response.getQuestions().length;
+        resHeader.anCount = response.getAnswers().length;
+        resHeader.nsCount = response.getAuthorityRecords().length;
+        resHeader.arCount = response.getAdditionalRecords().length;
+
+        return resHeader;
+    }
+
+    /**
+     * This will create the header for a recursive query
+     * @param query the DNS query message, with its sections already filled in
+     * @param id the transaction ID
+     * @return the DNS query header
+     */
+    public static DNSHeader buildQueryHeader(DNSMessage query, short id) {
+        DNSHeader header = new DNSHeader();
+
+        header.id = id;
+        header.qr = 0;
+        header.opCode = 0;
+        header.rd = 1;
+
+        header.qdCount = query.getQuestions().length;
+        header.anCount = query.getAnswers().length;
+        header.nsCount = query.getAuthorityRecords().length;
+        header.arCount = query.getAdditionalRecords().length;
+
+        return header;
+    }
+
+    /**
+     * Encode the header to bytes to be sent back to the client.
+     * @param out the buffer to write into, at its current position
+     */
+    public void writeBytes(ByteBuffer out) {
+        out.putShort(this.id);
+
+        out.put((byte) ((qr & BIT_MASK) << QR_SHIFT | (opCode & CODE_MASK) << OPCODE_SHIFT | (aa & BIT_MASK) << AA_SHIFT
+                        | (tc & BIT_MASK) << TC_SHIFT | (rd & BIT_MASK) << RD_SHIFT));
+        out.put((byte) ((ra & BIT_MASK) << RA_SHIFT | (z & BIT_MASK) << Z_SHIFT | (ad & BIT_MASK) << AD_SHIFT
+                        | (cd & BIT_MASK) << CD_SHIFT | (rCode & CODE_MASK) << RCODE_SHIFT));
+
+        out.putShort((short) qdCount);
+        out.putShort((short) anCount);
+        out.putShort((short) nsCount);
+        out.putShort((short) arCount);
+    }
+
+    /**
+     * @return a human readable string version of a header object
+     */
+    @Override
+    public String toString() {
+        return String.format("""
+                        Header object:
+                        id: %x, qr: %x, opCode: %x, aa: %x, tc: %x, rd: %x, ra: %x, z: %x, ad: %x, cd: %x, rCode: %x
+                        qdCount: %x, anCount: %x, nsCount: %x, arCount: %x""",
+                id, qr, opCode, aa, tc, rd, ra, z, ad, cd, rCode, qdCount, anCount, nsCount, arCount);
+    }
+
+    public short getId() {
+        return id;
+    }
+
+    public int getQdCount() {
+        return qdCount;
+    }
+
+    public int getAnCount() {
+        return anCount;
+    }
+
+    public int getNsCount() {
+        return nsCount;
+    }
+
+    public int getArCount() {
+        return arCount;
+    }
+
+    public boolean isQuery() {
+        return qr == 0;
+    }
+
+    public int getOpCode() {
+        return opCode;
+    }
+
+    public int getRd() {
+        return rd;
+    }
+
+    public int getRCode() {
+        return rCode;
+    }
+
+    /**
+     * @return true if the TC bit is set, i.e. the sender had to leave records out to fit the message in a datagram
+     */
+    public boolean isTruncated() {
+        return tc == 1;
+    }
+
+    public boolean isErrorResponse() {
+        return rCode != 0;
+    }
+}
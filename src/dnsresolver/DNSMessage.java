@@ -0,0 +1,410 @@
+package dnsresolver;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class DNSMessage {
+
+    public static final int MAX_MESSAGE_SIZE = 65535;
+    private static final int MAX_POINTER_JUMPS = 64; // guards against pointer loops in malformed packets
+
+    // Reusable per-thread scratch buffer for toBytes(), so encoding does not grow a stream for every message
+    private static final ThreadLocal<ByteBuffer> encodeBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_MESSAGE_SIZE));
+    private static final ThreadLocal<NameCompressor> encodeNames = ThreadLocal.withInitial(NameCompressor::new);
+
+    // Per-thread request message, decoded into again for every request; see decodeRequest()
+    private static final ThreadLocal<DNSMessage> requestMessage = ThreadLocal.withInitial(DNSMessage::newReusable);
+    private static final int RECENT_NAMES = 256; // names remembered per thread, so hot names are not copied again
+
+    private static final DNSRecord[] NO_RECORDS = new DNSRecord[0];
+
+    private DNSHeader header;
+    private DNSQuestion[] questions;
+    private DNSRecord[] answers;
+    private DNSRecord[] authorityRecords;
+    private DNSRecord[] additionalRecords;
+    private ByteBuffer buffer;
+    private boolean reusable;
+    private DNSRecord[] reusableAdditionalRecords;
+    private DomainName[] recentNames;
+
+    /**
+     * Decode a byte array into a DNS message
+     * @param bytes byte array to be decode
+     * @return a DNSMessage object
+     */
+    public static DNSMessage decodeMessage(byte[] bytes) throws IOException {
+        return decodeMessage(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decode the first length bytes of a byte array (e.g. a received packet) into a DNS message
+     * @param bytes byte array to be decoded
+     * @param length number of valid bytes in the array
+     * @return a DNSMessage object
+     */
+    public static DNSMessage decodeMessage(byte[] bytes, int length) throws IOException {
+        return decodeMessage(ByteBuffer.wrap(bytes, 0, length));
+    }
+
+    /**
+     * Decode a DNS message that starts at index 0 of the buffer and ends at its limit.
+     * The buffer is read in place: compression pointers are followed with absolute indexes, nothing is copied.
+     * @param in the buffer holding the packet
+     * @return a DNSMessage object
+     * @throws IOException if the packet is truncated or malformed
+     */
+    public static DNSMessage decodeMessage(ByteBuffer in) throws IOException {
+        try {
+            return decode(in);
+        }
+        catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Malformed DNS message", e);
+        }
+    }
+
+    /**
+     * Decode a request into a message that belongs to the calling thread and is decoded into again for its next
+     * request, header, question and OPT record included, so that answering a cache hit allocates nothing. Names
+     * that the thread has seen recently are not copied out of the packet again. Only the usual shape of query is
+     * decoded this way, one question and at most one additional record; anything else gets a message of its own.
+     * The message is only good until the thread decodes its next request: whatever holds on to it past that, e.g.
+     * to answer a cache miss from another thread, must hold on to detach() instead.
+     * @param in the buffer holding the packet, from index 0 up to its limit
+     * @return a DNSMessage object, possibly the calling thread's reusable one
+     * @throws IOException if the packet is truncated or malformed
+     */
+    public static DNSMessage decodeRequest(ByteBuffer in) throws IOException {
+        if (in.limit() < 12 || in.getShort(4) != 1 || in.getShort(6) != 0 || in.getShort(8) != 0
+            || (in.getShort(10) & 0xffff) > 1)
+            return decodeMessage(in);
+
+        DNSMessage message = requestMessage.get();
+        try {
+            message.buffer = in;
+            DNSHeader.decodeHeader(in, message.header);
+            DNSQuestion.decodeQuestion(in, message, message.questions[0]);
+            if (message.header.getArCount() == 0) {
+                message.additionalRecords = NO_RECORDS;
+            }
+            else {
+                DNSRecord.decodeRecord(in, message, message.reusableAdditionalRecords[0]);
+                message.additionalRecords = message.reusableAdditionalRecords;
+            }
+            return message;
+        }
+        catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Malformed DNS message", e);
+        }
+    }
+
+    private static DNSMessage newReusable() {
+        DNSMessage message = new DNSMessage();
+        message.reusable = true;
+        message.header = new DNSHeader();
+        message.questions = new DNSQuestion[] {new DNSQuestion()};
+        message.answers = NO_RECORDS;
+        message.authorityRecords = NO_RECORDS;
+        message.reusableAdditionalRecords = new DNSRecord[] {new DNSRecord()};
+        message.recentNames = new DomainName[RECENT_NAMES];
+        return message;
+    }
+
+    /**
+     * A message from decodeRequest() is overwritten by the thread's next request; this gives one that is not.
+     * Must be called before the request's buffer is reused, since the copy is decoded from it again.
+     * @return a message of its own with the same content, or this message if it already is one
+     */
+    public DNSMessage detach() {
+        if (!reusable)
+            return this;
+        buffer.position(0);
+        return decode(buffer);
+    }
+
+    private static DNSMessage decode(ByteBuffer in) {
+        DNSMessage message = new DNSMessage();
+
+        message.buffer = in;
+
+        message.header = DNSHeader.decodeHeader(in);
+
+        message.questions = new DNSQuestion[message.header.getQdCount()];
+        for (int i = 0; i < message.questions.length; i++)
+            message.questions[i] = DNSQuestion.decodeQuestion(in, message);
+
+        message.answers = decodeRecords(in, message, message.header.getAnCount());
+        message.authorityRecords = decodeRecords(in, message, message.header.getNsCount());
+        message.additionalRecords = decodeRecords(in, message, message.header.getArCount());
+
+        return message;
+    }
+
+    private static DNSRecord[] decodeRecords(ByteBuffer in, DNSMessage message, int count) {
+        if (count == 0)
+            return NO_RECORDS;
+        DNSRecord[] records = new DNSRecord[count];
+        for (int i = 0; i < count; i++)
+            records[i] = DNSRecord.decodeRecord(in, message);
+        return records;
+    }
+
+    /**
+     * @param in the buffer holding the packet
+     * @return the domain name starting from the current position of the buffer.
+     * The position is moved past the name (and past the pointer if the name ends with one).
+     */
+    public DomainName readDomainName(ByteBuffer in) {
+        int end = skipDomainName(in, in.position());
+        DomainName name = recentNames != null ? DomainName.read(buffer, in.position(), recentNames)
+                                              : readDomainName(in.position());
+        in.position(end);
+        return name;
+    }
+
+    /**
+     * Used when there's compression, and we need to find the domain from earlier in the message.
+     * @param firstByte byte index of the address being pointed to by the pointer
+     * @return the compressed domain name
+     */
+    public DomainName readDomainName(int firstByte) {
+        return DomainName.read(buffer, firstByte);
+    }
+
+    /**
+     * @param start index of the first byte of a domain name
+     * @return the index just past the domain name as it is laid out at start (a terminating pointer counts as 2 bytes)
+     */
+    private static int skipDomainName(ByteBuffer in, int start) {
+        int index = start;
+        int nextOctet = in.get(index) & 0xff;
+        while (nextOctet != 0) {
+            if (Helpers.isPointer((byte) nextOctet))
+                return index + 2;
+            if (nextOctet > 63)
+                throw new IllegalArgumentException("Unsupported label type");
+            index += nextOctet + 1; // always forward, so the loop ends at the limit at the latest
+            if (index >= in.limit())
+                throw new IllegalArgumentException("Domain name runs past the end of the message");
+            nextOctet = in.get(index) & 0xff;
+        }
+        return index + 1;
+    }
+
+    /**
+     * Check that a reply is to the query it was matched with by transaction ID: the question sections must be the
+     * same, names compared without regard to case (RFC 5452 section 9.1)
+     * @param query the query packet, starting at index 0
+     * @param reply the reply packet, starting at index 0
+     * @return true if the reply asks the same questions, false if it does not or is too malformed to tell
+     */
+    public static boolean hasSameQuestions(ByteBuffer query, ByteBuffer reply) {
+        try {
+            int qdCount = query.getShort(4) & 0xffff;
+            if ((reply.getShort(4) & 0xffff) != qdCount)
+                return false;
+            int index = 12;
+            for (int i = 0; i < qdCount; i++) {
+                int end = skipDomainName(query, index) + 4; // qType, qClass
+                for (; index < end; index++)
+                    if (DomainName.toLowerCase(query.get(index)) != DomainName.toLowerCase(reply.get(index)))
+                        return false; // length octets are below 'A', so lowering every byte is safe
+            }
+            return true;
+        }
+        catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Find where the TTL of every resource record sits in an encoded message, so it can be patched in place
+     * @param encoded the encoded message, starting at index 0
+     * @return the index of each record's TTL field, in the order the records appear
+     * @throws IllegalArgumentException if a name in the message is malformed
+     */
+    public static int[] findTtlOffsets(ByteBuffer encoded) {
+        int qdCount = encoded.getShort(4) & 0xffff;
+        int rrCount = (encoded.getShort(6) & 0xffff) + (encoded.getShort(8) & 0xffff) + (encoded.getShort(10) & 0xffff);
+
+        int index = 12;
+        for (int i = 0; i < qdCount; i++)
+            index = skipDomainName(encoded, index) + 4; // qType, qClass
+
+        int[] ttlOffsets = new int[rrCount];
+        for (int i = 0; i < rrCount; i++) {
+            index = skipDomainName(encoded, index) + 4; // rType, rClass
+            ttlOffsets[i] = index;
+            index += 4;
+            int rdLength = encoded.getShort(index) & 0xffff;
+            index += 2 + rdLength;
+        }
+        return ttlOffsets;
+    }
+
+    /**
+     * Build a response based on the request and the answers you intend to send back.
+     * @param request the DNS request message
+     * @param answers the answer records (a whole RRset, or a CNAME chain) to send back
+     * @return the DNS response message
+     */
+    public static DNSMessage buildResponse(DNSMessage request, DNSRecord[] answers) {
+        return buildResponse(request, DNSHeader.RCODE_NOERROR, answers, NO_RECORDS);
+    }
+
+    /**
+     * Build a response based on the request and the records you intend to send back. The additional section holds
+     * our own OPT record if the request used EDNS, and nothing otherwise.
+     * @param request the DNS request message
+     * @param rCode the response code
+     * @param answers the records for the answer section
+     * @param authorityRecords the records for the authority section (e.g. the SOA of a negative answer)
+     * @return the DNS response message
+     */
+    public static DNSMessage buildResponse(DNSMessage request, int rCode, DNSRecord[] answers,
+                                           DNSRecord[] authorityRecords) {
+        return buildResponse(request, rCode, answers, authorityRecords, NO_RECORDS);
+    }
+
+    /**
+     * Build a response that carries records of its own in the additional section, e.g. the glue addresses of a
+     * referral. Our OPT record, if the request used EDNS, goes after them.
+     * @param request the DNS request message
+     * @param rCode the response code
+     * @param answers the records for the answer section
+     * @param authorityRecords the records for the authority section
+     * @param additionalRecords the records for the additional section, besides the OPT record
+     * @return the DNS response message
+     */
+    public static DNSMessage buildResponse(DNSMessage request, int rCode, DNSRecord[] answers,
+                                           DNSRecord[] authorityRecords, DNSRecord[] additionalRecords) {
+        DNSMessage response = new DNSMessage();
+
+        response.questions = request.questions;
+
+        response.answers = answers;
+
+        response.authorityRecords = authorityRecords;
+
+        DNSRecord[] opt = Edns.responseAdditionalRecords(request);
+        if (additionalRecords.length == 0) {
+            response.additionalRecords = opt;
+        }
+        else {
+            response.additionalRecords = Arrays.copyOf(additionalRecords, additionalRecords.length + opt.length);
+            System.arraycopy(opt, 0, response.additionalRecords, additionalRecords.length, opt.length);
+        }
+
+        // the header's counts come from the sections above, so build it last
+        response.header = DNSHeader.buildResponseHeader(request, response, rCode);
+
+        return response;
+    }
+
+    /**
+     * Build a recursive query for a single question, without EDNS
+     * @param question the question to ask
+     * @param id the transaction ID
+     * @return the DNS query message
+     */
+    public static DNSMessage buildQuery(DNSQuestion question, short id) {
+        return buildQuery(question, id, NO_RECORDS);
+    }
+
+    /**
+     * Build a recursive query for a single question to send upstream, advertising our EDNS payload size so that
+     * large answers come back whole
+     * @param question the question to ask
+     * @param id the transaction ID
+     * @return the DNS query message
+     */
+    public static DNSMessage buildUpstreamQuery(DNSQuestion question, short id) {
+        return buildQuery(question, id, Edns.queryAdditionalRecords());
+    }
+
+    private static DNSMessage buildQuery(DNSQuestion question, short id, DNSRecord[] additionalRecords) {
+        DNSMessage query = new DNSMessage();
+
+        query.questions = new DNSQuestion[] {question};
+
+        query.answers = NO_RECORDS;
+
+        query.authorityRecords = NO_RECORDS;
+
+        query.additionalRecords = additionalRecords;
+
+        query.header = DNSHeader.buildQueryHeader(query, id);
+
+        return query;
+    }
+
+    /**
+     * @return the byte array to be put in a packet and sent back
+     */
+    public byte[] toBytes() {
+        ByteBuffer out = writeBytes(encodeBuffer.get());
+        return Arrays.copyOf(out.array(), out.limit());
+    }
+
+    /**
+     * Encode the message into a reusable buffer. The buffer is cleared first, and flipped afterwards so that
+     * the encoded message sits between 0 and its limit.
+     * @param out the buffer to encode into
+     * @return the same buffer, ready to be read or sent
+     */
+    public ByteBuffer writeBytes(ByteBuffer out) {
+        out.clear();
+
+        NameCompressor compressor = encodeNames.get();
+        compressor.clear();
+
+        this.header.writeBytes(out);
+        for (DNSQuestion question : questions)
+            question.writeBytes(out, compressor);
+        for (DNSRecord record : answers)
+            record.writeBytes(out, compressor);
+        for (DNSRecord record : authorityRecords)
+            record.writeBytes(out, compressor);
+        for (DNSRecord record : additionalRecords)
+            record.writeBytes(out, compressor);
+
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Logging the message to the screen - for error checking
+     * @return A string representation of the DNS Message
+     */
+    public String toString() {
+        return header.toString() + "\n\n" + Arrays.toString(questions) + "\n\n" + Arrays.toString(answers) + "\n\n"
+               + Arrays.toString(authorityRecords) + "\n\n" + Arrays.toString(additionalRecords) + "\n\n";
+    }
+
+    public DNSHeader getHeader() {
+        return header;
+    }
+
+    public DNSQuestion[] getQuestions() {
+        return questions;
+    }
+
+    public DNSRecord[] getAnswers() {
+        return answers;
+    }
+
+    public DNSRecord[] getAuthorityRecords() {
+        return authorityRecords;
+    }
+
+    public DNSRecord[] getAdditionalRecords() {
+        return additionalRecords;
+    }
+
+    public boolean isQuery() {
+        return this.header.isQuery();
+    }
+}
@@ -0,0 +1,120 @@
+package dnsresolver;
+
+import java.nio.ByteBuffer;
+
+public class DNSQuestion {
+
+    DomainName name;
+    int qType, qClass;
+
+    /**
+     * Read a question from the current position of the buffer.
+     * @param in the buffer holding the packet
+     * @param dnsMess the encapsulating DNS message for de-compression of domain names
+     * @return A DNSQuestion object
+     */
+    public static DNSQuestion decodeQuestion(ByteBuffer in, DNSMessage dnsMess) {
+        return decodeQuestion(in, dnsMess, new DNSQuestion());
+    }
+
+    /**
+     * Read a question into an existing object, e.g. the question of a request message that is reused for every
+     * request on a thread
+     * @param in the buffer holding the packet
+     * @param dnsMess the encapsulating DNS message for de-compression of domain names
+     * @param question the object to fill in; every field is overwritten
+     * @return the same question
+     */
+    static DNSQuestion decodeQuestion(ByteBuffer in, DNSMessage dnsMess, DNSQuestion question) {
+        question.name = dnsMess.readDomainName(in);
+        question.qType = in.getShort() & 0xffff;
+        question.qClass = in.getShort() & 0xffff;
+
+        return question;
+    }
+
+    /**
+     * @param name the domain name asked about
+     * @param qType the record type asked for
+     * @param qClass the class, normally 1 (IN)
+     * @return A DNSQuestion object
+     */
+    public static DNSQuestion buildQuestion(DomainName name, int qType, int qClass) {
+        DNSQuestion question = new DNSQuestion();
+
+        question.name = name;
+        question.qType = qType;
+        question.qClass = qClass;
+
+        return question;
+    }
+
+    /**
+     * Write the question bytes which will be sent to the client.
+     * @param out the buffer the message is being encoded into
+     * @param compressor the names already in the message, which is used to compress it
+     */
+    public void writeBytes(ByteBuffer out, NameCompressor compressor) {
+        compressor.writeName(out, this.name);
+        out.putShort((short) qType);
+        out.putShort((short) qClass);
+    }
+
+    /**
+     * @return a human-readable string
+     */
+    @Override
+    public String toString() {
+        return "Question object:\nName: " + name + "\nqType: " + qType + ", qClass: " + qClass;
+    }
+
+    /**
+     * @param o the object to compare
+     * @return true on equality and false otherwise. Names are compared ignoring case
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof DNSQuestion)
+            return name.equals(((DNSQuestion) o).name) &&
+                    qClass == ((DNSQuestion) o).qClass &&
+                    qType == ((DNSQuestion) o).qType;
+
+        return false;
+    }
+
+    /**
+     * For hashmap lookup. Use the (precomputed, case-insensitive) hashcode of the domain name, mixed with the type
+     * @return The hashcode of the question
+     */
+    @Override
+    public int hashCode() {
+        return name.hashCode() * 31 + qType;
+    }
+
+    /**
+     * @return a rough estimate of the heap taken up by this question, used to bound the cache size
+     */
+    public int sizeInBytes() {
+        return 32 + name.sizeInBytes(); // object header and fields
+    }
+
+    /**
+     * Merge the pieces of the domain name together
+     * @return a concatenated string representation of the domain name
+     */
+    public String getDomainNameAsString() {
+        return name.toString();
+    }
+
+    public DomainName getName() {
+        return name;
+    }
+
+    public int getQType() {
+        return qType;
+    }
+
+    public int getQClass() {
+        return qClass;
+    }
+}
@@ -0,0 +1,293 @@
+package dnsresolver;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+
+public class DNSRecord {
+
+    public static final int TYPE_A = 1, TYPE_NS = 2, TYPE_CNAME = 5, TYPE_SOA = 6, TYPE_PTR = 12, TYPE_MX = 15,
+                            TYPE_TXT = 16, TYPE_AAAA = 28, TYPE_SRV = 33, TYPE_OPT = 41;
+
+    private static final byte[] NO_DATA = new byte[0];
+
+    private DomainName name;
+    private int rType, rClass;
+    private byte[] rData;
+    private long ttl; // actually an unsigned integer
+    private Date timestamp;
+    private boolean fixedTtl; // a record of our own, whose TTL does not count down
+
+    /**
+     * Decode a DNS record starting at the current position of the buffer
+     * @param in the buffer holding the packet
+     * @param dnsMess the encapsulating DNS message for de-compression of domain names
+     * @return a DNS record
+     */
+    public static DNSRecord decodeRecord(ByteBuffer in, DNSMessage dnsMess) {
+        return decodeRecord(in, dnsMess, new DNSRecord());
+    }
+
+    /**
+     * Decode a DNS record into an existing object, e.g. the OPT record of a request message that is reused for every
+     * request on a thread. Its rData array is kept if the new rData is the same length.
+     * @param in the buffer holding the packet
+     * @param dnsMess the encapsulating DNS message for de-compression of domain names
+     * @param record the object to fill in; every field is overwritten
+     * @return the same record
+     */
+    static DNSRecord decodeRecord(ByteBuffer in, DNSMessage dnsMess, DNSRecord record) {
+        record.name = dnsMess.readDomainName(in);
+
+        record.rType = in.getShort() & 0xffff;
+
+        record.rClass = in.getShort() & 0xffff;
+
+        record.ttl = in.getInt() & 0xffffffffL; // read as unsigned
+        record.fixedTtl = false;
+
+        int rdLength = in.getShort() & 0xffff;
+        int rdEnd = in.position() + rdLength;
+        if (record.hasDomainNamesInRData()) {
+            record.rData = expandRData(in, dnsMess, record.rType, rdEnd);
+            in.position(rdEnd);
+        }
+        else {
+            if (rdLength == 0)
+                record.rData = NO_DATA;
+            else if (record.rData == null || record.rData.length != rdLength)
+                record.rData = new byte[rdLength];
+            in.get(record.rData);
+        }
+
+        if (record.timestamp == null)
+            record.timestamp = new Date();
+        else
+            record.timestamp.setTime(System.currentTimeMillis());
+
+        return record;
+    }
+
+    /**
+     * Build an EDNS0 OPT pseudo-record (RFC 6891 6.1.2) with no options
+     * @param udpPayloadSize the largest UDP payload the sender can take, carried in the class field
+     * @param flags the extended rCode, version and flags, carried in the TTL field
+     * @return the OPT record
+     */
+    public static DNSRecord buildOptRecord(int udpPayloadSize, long flags) {
+        DNSRecord record = new DNSRecord();
+        record.name = DomainName.ROOT;
+        record.rType = TYPE_OPT;
+        record.rClass = udpPayloadSize;
+        record.ttl = flags;
+        record.rData = NO_DATA;
+        record.timestamp = new Date();
+        record.fixedTtl = true;
+        return record;
+    }
+
+    /**
+     * Rebuild a record from its parts, e.g. when loading a cache snapshot
+     * @param name the owner name
+     * @param rType the record type
+     * @param rClass the record class
+     * @param expirySeconds when the record stops being valid, in seconds since the epoch
+     * @param rData the record data, with any domain names in it uncompressed
+     * @return the record, with its TTL counting down from now
+     */
+    public static DNSRecord buildRecord(DomainName name, int rType, int rClass, long expirySeconds, byte[] rData) {
+        DNSRecord record = new DNSRecord();
+        record.name = name;
+        record.rType = rType;
+        record.rClass = rClass;
+        record.timestamp = new Date();
+        record.ttl = Math.max(0, expirySeconds - record.timestamp.getTime() / 1000);
+        record.rData = rData;
+        return record;
+    }
+
+    /**
+     * Build a record of our own, e.g. from the local data file, whose TTL stays the same however long it is kept
+     * @param name the owner name
+     * @param rType the record type
+     * @param ttl the time to live, in seconds
+     * @param rData the record data, with any domain names in it uncompressed
+     * @return the record, of class IN
+     */
+    public static DNSRecord buildLocalRecord(DomainName name, int rType, long ttl, byte[] rData) {
+        DNSRecord record = new DNSRecord();
+        record.name = name;
+        record.rType = rType;
+        record.rClass = 1; // IN
+        record.timestamp = new Date();
+        record.ttl = ttl;
+        record.fixedTtl = true;
+        record.rData = rData;
+        return record;
+    }
+
+    /**
+     * @return true for the record types whose rData holds domain names that the sender may have compressed
+     */
+    private boolean hasDomainNamesInRData() {
+        return rType == TYPE_NS || rType == TYPE_CNAME || rType == TYPE_SOA || rType == TYPE_PTR || rType == TYPE_MX;
+    }
+
+    /**
+     * Copy the rData with any compressed domain names written out in full. A compression pointer only makes sense
+     * inside the packet it came from, and the rData is written back verbatim into other packets.
+     * @param in the buffer holding the packet, positioned at the start of the rData
+     * @param dnsMess the encapsulating DNS message for de-compression of domain names
+     * @param rType the record type
+     * @param rdEnd the index just past the rData
+     * @return the uncompressed rData
+     */
+    private static byte[] expandRData(ByteBuffer in, DNSMessage dnsMess, int rType, int rdEnd) {
+        ByteBuffer rData = ByteBuffer.allocate(rdEnd - in.position() + 2 * 255);
+        if (rType == TYPE_MX)
+            rData.putShort(in.getShort()); // preference
+
+        dnsMess.readDomainName(in).writeUncompressed(rData);
+        if (rType == TYPE_SOA)
+            dnsMess.readDomainName(in).writeUncompressed(rData); // rName
+
+        while (in.position() < rdEnd) // the rest is plain data, e.g. the SOA serial and timers
+            rData.put(in.get());
+
+        return Arrays.copyOf(rData.array(), rData.position());
+    }
+
+    /**
+     * Encode the DNS record to bytes and send back. Domain names in the rData of the types that have them are
+     * compressed as well (RFC 3597 4), so the rData length is only known once they are written. The TTL written is
+     * the one left now, so a record kept in the cache is not handed on with more time than it has.
+     * @param out the buffer the message is being encoded into
+     * @param compressor the names already in the message, to compress against
+     */
+    public void writeBytes(ByteBuffer out, NameCompressor compressor) {
+        compressor.writeName(out, name);
+        out.putShort((short) rType);
+        out.putShort((short) rClass);
+        out.putInt((int) getRemainingTtl());
+        if (!hasDomainNamesInRData()) {
+            out.putShort((short) rData.length);
+            out.put(rData);
+            return;
+        }
+
+        int rdLengthIndex = out.position();
+        out.putShort((short) 0);
+        int index = 0;
+        if (rType == TYPE_MX) {
+            out.put(rData, 0, 2); // preference
+            index = 2;
+        }
+        if (rType == TYPE_SOA) {
+            index = compressor.writeName(out, rData, index); // mName
+            index = compressor.writeName(out, rData, index); // rName
+            out.put(rData, index, rData.length - index); // the serial and timers
+        }
+        else {
+            compressor.writeName(out, rData, index, rData.length); // the name is the rest of the rData
+        }
+        out.putShort(rdLengthIndex, (short) (out.position() - rdLengthIndex - 2));
+    }
+
+    /**
+     * @return a human readable string rerpresentation of the DNS record
+     */
+    public String toString() {
+
+        StringBuilder rDataString = new StringBuilder("[");
+        for (byte b: rData) {
+            rDataString.append(b & 0x00ff);
+            rDataString.append(", ");
+        }
+        rDataString.append(']');
+
+        return "Record object:\n" +
+                "Name: " + name +
+                "\nrType" + rType + ", rClass: " + rClass + ", rData: " + rDataString + ", ttl: " + ttl;
+    }
+
+    public DomainName getName() {
+        return name;
+    }
+
+    public int getRType() {
+        return rType;
+    }
+
+    public int getRClass() {
+        return rClass;
+    }
+
+    /**
+     * @return the record data. Shared, so must not be modified
+     */
+    byte[] getRData() {
+        return rData;
+    }
+
+    /**
+     * @return the domain name at the start of the rData, e.g. the target of a CNAME or the server of an NS record
+     */
+    public DomainName getRDataName() {
+        return DomainName.read(ByteBuffer.wrap(rData), 0);
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * @return the TTL left now, in the same whole seconds as getExpiryMillis(), and never below 0. Records of our
+     * own keep their TTL, and so do OPT records, whose TTL field holds flags.
+     */
+    public long getRemainingTtl() {
+        if (fixedTtl || rType == TYPE_OPT)
+            return ttl;
+        return Math.max(0, timestamp.getTime() / 1000 + ttl - System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * @return the MINIMUM field of an SOA record, the last 4 bytes of its rData (RFC 1035 3.3.13)
+     */
+    public long getSoaMinimum() {
+        if (rType != TYPE_SOA || rData.length < 4)
+            throw new IllegalStateException("Not an SOA record");
+        return ByteBuffer.wrap(rData, rData.length - 4, 4).getInt() & 0xffffffffL;
+    }
+
+    /**
+     * @return whether the creation date + the time to live is after the current time.
+     * The Date and Calendar classes will be useful for this.
+     */
+    public boolean timestampValid() {
+        Date current = new Date();
+        return (this.timestamp.getTime()/1000 + ttl) > current.getTime()/1000;
+    }
+
+    /**
+     * @return the time (in milliseconds since the epoch) at which this record stops being valid.
+     * Matches timestampValid(), which works in whole seconds.
+     */
+    public long getExpiryMillis() {
+        return getExpiryMillis(ttl);
+    }
+
+    /**
+     * @param ttl a time to live in seconds, counted from when this record was received
+     * @return the time (in milliseconds since the epoch) at which that TTL runs out
+     */
+    public long getExpiryMillis(long ttl) {
+        return (this.timestamp.getTime()/1000 + ttl) * 1000;
+    }
+
+    /**
+     * @return a rough estimate of the heap taken up by this record, used to bound the cache size
+     */
+    public int sizeInBytes() {
+        return 64 + rData.length + name.sizeInBytes(); // object headers, fields and the Date
+    }
+}
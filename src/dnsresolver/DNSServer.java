@@ -0,0 +1,489 @@
+package dnsresolver;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class DNSServer {
+
+    private static final int PORT = Integer.getInteger("dns.port", 8053);
+
+    // Worker pool used for cache misses. Configurable with -Ddns.workers=N and -Ddns.queueCapacity=N
+    private static final int NUM_WORKERS = Integer.getInteger("dns.workers",
+                                                              Runtime.getRuntime().availableProcessors() * 4);
+    private static final int QUEUE_CAPACITY = Integer.getInteger("dns.queueCapacity", 1024);
+    private static final long SHUTDOWN_GRACE_MILLIS = 5000;
+
+    // Overload protection. A miss that waited in the queue longer than -Ddns.queue.maxWaitMillis=N is not worth
+    // resolving any more: the client has given up or retried. With -Ddns.rateLimit.qps=N (off by default) each
+    // client address may send N requests per second on average, in bursts of up to -Ddns.rateLimit.burst=N.
+    // Shed and throttled requests are dropped, or answered REFUSED with -Ddns.overload.refuse=true.
+    private static final long QUEUE_MAX_WAIT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("dns.queue.maxWaitMillis", 2000));
+    private static final int RATE_LIMIT_QPS = Integer.getInteger("dns.rateLimit.qps", 0);
+    private static final int RATE_LIMIT_BURST = Integer.getInteger("dns.rateLimit.burst", 2 * RATE_LIMIT_QPS);
+    private static final int RATE_LIMIT_TABLE_SIZE = Integer.getInteger("dns.rateLimit.tableSize", 65536);
+    private static final boolean REFUSE_WHEN_OVERLOADED = Boolean.getBoolean("dns.overload.refuse");
+
+    // Answer cache hits from pre-encoded response bytes instead of re-encoding them. Turn on with -Ddns.wireCache=true
+    private static final boolean WIRE_CACHE = Boolean.getBoolean("dns.wireCache");
+
+    // Upstream resolvers, comma-separated. Configurable with -Ddns.upstream=host:port[,host:port...],
+    // -Ddns.upstream.sockets=N (per upstream) and -Ddns.upstream.timeoutMillis=N
+    private static final String UPSTREAM = System.getProperty("dns.upstream", "8.8.8.8:53");
+    private static final int UPSTREAM_SOCKETS = Integer.getInteger("dns.upstream.sockets", 4);
+    private static final long UPSTREAM_TIMEOUT_MILLIS = Long.getLong("dns.upstream.timeoutMillis", 2000);
+
+    // Resolve misses ourselves, from the root servers down, instead of forwarding them. Turn on with
+    // -Ddns.iterative=true; the root hints are configurable with -Ddns.iterative.roots=host:port[,host:port...]
+    private static final boolean ITERATIVE = Boolean.getBoolean("dns.iterative");
+    private static final String ROOT_HINTS = System.getProperty("dns.iterative.roots",
+            "198.41.0.4:53,170.247.170.2:53,192.33.4.12:53,199.7.91.13:53,192.203.230.10:53,192.5.5.241:53,"
+            + "192.112.36.4:53,198.97.190.53:53,192.36.148.17:53,192.58.128.30:53,193.0.14.129:53,"
+            + "199.7.83.42:53,202.12.27.33:53"); // a. to m.root-servers.net
+
+    private static final DNSRecord[] NO_RECORDS = new DNSRecord[0];
+
+    private static UpstreamClient upstream;
+    private static IterativeResolver iterativeResolver;
+    private static final InFlightQueries inFlightQueries = new InFlightQueries();
+    private static final RateLimiter rateLimiter =
+            RATE_LIMIT_QPS > 0 ? new RateLimiter(RATE_LIMIT_QPS, RATE_LIMIT_BURST, RATE_LIMIT_TABLE_SIZE) : null;
+
+    // Per-thread buffer that responses are encoded into before being sent
+    private static final ThreadLocal<ByteBuffer> sendBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(DNSMessage.MAX_MESSAGE_SIZE));
+
+    public static void main(String[] args) {
+
+        try {
+            if (ITERATIVE)
+                iterativeResolver = new IterativeResolver(parseAddresses(ROOT_HINTS));
+            else
+                upstream = new UpstreamClient(parseAddresses(UPSTREAM), UPSTREAM_SOCKETS, UPSTREAM_TIMEOUT_MILLIS);
+        }
+        catch (SocketException soe) {
+            System.out.println("Upstream sockets cannot be opened.");
+            return;
+        }
+
+        DNSCache.setRefresher(DNSServer::refresh);
+        CacheSnapshot.start();
+        LocalZone.start();
+
+        ThreadPoolExecutor workers = newWorkerPool();
+        Metrics.setQueueDepthGauge(() -> workers.getQueue().size());
+        Metrics.setInFlightQueries(inFlightQueries);
+        Metrics.setUpstreamClient(upstream);
+        Metrics.setIterativeResolver(iterativeResolver);
+        try {
+            Metrics.start();
+        }
+        catch (IOException ioe) {
+            System.out.println("Stats endpoint cannot be opened.");
+        }
+
+        RequestHandler handler = (request, channel) -> handleRequest(request, channel, workers);
+        UdpListener udpListener;
+        try {
+            udpListener = new UdpListener(PORT, handler);
+        }
+        catch (IOException ioe) {
+            System.out.println("Socket cannot be opened.");
+            closeUpstream();
+            workers.shutdown();
+            return;
+        }
+
+        TcpListener tcpListener = null;
+        try {
+            tcpListener = new TcpListener(PORT, handler);
+            Thread acceptor = new Thread(tcpListener, "dns-tcp-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        catch (IOException ioe) {
+            System.out.println("TCP socket cannot be opened, serving UDP only.");
+        }
+
+        System.out.println("Socket is up on port " + PORT + " (UDP: " + udpListener.describe() + ", and TCP), "
+                           + (ITERATIVE ? "resolving from the root servers" : "forwarding to " + UPSTREAM) + "\n");
+
+        TcpListener serverTcpListener = tcpListener;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(udpListener, serverTcpListener, workers)));
+
+        udpListener.start();
+        try {
+            udpListener.join();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Handle one request, from UDP or TCP. Local names and cache hits are answered right away on the calling thread,
+     * cache misses are handed off to the worker pool so that a slow upstream answer never holds up the requests
+     * behind it.
+     * Under overload only misses are shed, so hits keep being answered. Clients over their rate limit are turned
+     * away before their request is even decoded, unless they are to be answered REFUSED.
+     * The request is decoded into the calling thread's reusable message, and the listener may reuse the channel
+     * too, so a hit allocates nothing; a miss takes detached copies of both along to the worker.
+     * @param request the request bytes, from index 0 up to the buffer's limit
+     * @param channel where the response goes
+     * @param workers the worker pool that resolves cache misses
+     * @throws IOException when there's an error sending a response
+     */
+    private static void handleRequest(ByteBuffer request, ResponseChannel channel,
+                                      ThreadPoolExecutor workers) throws IOException {
+        Metrics.requests.increment();
+        if (Log.VERBOSE)
+            System.out.println(">>>>>> Receiving DNS request");
+
+        boolean throttled = rateLimiter != null && !rateLimiter.tryAcquire(channel.getClientAddress());
+        if (throttled) {
+            Metrics.throttledRequests.increment();
+            if (!REFUSE_WHEN_OVERLOADED)
+                return;
+        }
+
+        DNSMessage reqMessage;
+        long decodeStart = System.nanoTime();
+        try {
+            reqMessage = DNSMessage.decodeRequest(request);
+        }
+        catch (IOException ioe) {
+            Metrics.malformedRequests.increment();
+            if (Log.VERBOSE)
+                System.out.println("\tMalformed request, ignoring it.");
+            return;
+        }
+        Metrics.decodeTime.recordSince(decodeStart);
+        if (reqMessage.getQuestions().length == 0) {
+            Metrics.malformedRequests.increment();
+            if (Log.VERBOSE)
+                System.out.println("\tRequest has no question, ignoring it.");
+            return;
+        }
+        if (throttled) {
+            refuse(reqMessage, channel);
+            return;
+        }
+        DNSQuestion question = reqMessage.getQuestions()[0];
+        LocalZone.Answer local = LocalZone.lookup(question);
+        if (local != null && reqMessage.getQuestions().length == 1) {
+            Metrics.localAnswers.increment();
+            sendLocalResponse(reqMessage, local, channel);
+            return;
+        }
+        CachedResponse cached = DNSCache.lookup(question);
+
+        if (cached != null && WIRE_CACHE && reqMessage.getQuestions().length == 1) {
+            sendWireResponse(reqMessage, cached, channel);
+        } else if (cached != null) {
+            sendResponse(reqMessage, cached.getRCode(), cached.getAnswers(), cached.getAuthorityRecords(), channel);
+        } else {
+            DNSMessage missMessage = reqMessage.detach();
+            DNSQuestion missQuestion = missMessage.getQuestions()[0];
+            ResponseChannel missChannel = channel.detach();
+            long queuedAt = System.nanoTime();
+            try {
+                workers.execute(() -> {
+                    if (System.nanoTime() - queuedAt > QUEUE_MAX_WAIT_NANOS) {
+                        Metrics.staleRequests.increment();
+                        shed(missMessage, missChannel);
+                        return;
+                    }
+                    resolveMiss(missMessage, missQuestion, missChannel);
+                });
+            }
+            catch (RejectedExecutionException ree) {
+                // Hand-off queue is full (or we are shutting down): shed the request, dig will retry
+                Metrics.droppedRequests.increment();
+                if (Log.VERBOSE)
+                    System.out.println("\tWorker queue full, shedding request for " + question.getDomainNameAsString());
+                shed(reqMessage, channel);
+            }
+        }
+    }
+
+    /**
+     * Turn away a request the server has no room for: answer REFUSED if so configured, otherwise just drop it
+     * @param reqMessage the DNSMessage object containing the request
+     * @param channel where the response goes
+     */
+    private static void shed(DNSMessage reqMessage, ResponseChannel channel) {
+        if (REFUSE_WHEN_OVERLOADED)
+            refuse(reqMessage, channel);
+    }
+
+    /**
+     * Answer REFUSED, with no records; as small as the request, so it cannot be used to amplify traffic
+     * @param reqMessage the DNSMessage object containing the request
+     * @param channel where the response goes
+     */
+    private static void refuse(DNSMessage reqMessage, ResponseChannel channel) {
+        Metrics.refusedResponses.increment();
+        try {
+            sendResponse(reqMessage, DNSHeader.RCODE_REFUSED, NO_RECORDS, NO_RECORDS, channel);
+        }
+        catch (IOException ioe) {
+            System.out.println("Something's wrong with the data stream...");
+        }
+    }
+
+    /**
+     * Resolve a request that missed the cache by asking Google, then cache and send back the answer.
+     * Requests for a question that is already being asked share the outstanding query.
+     * The query is sent from a worker thread; the answer is handled by whichever thread completes it.
+     * @param reqMessage the DNSMessage object containing the request
+     * @param question the question that missed the cache
+     * @param channel where the response goes
+     */
+    private static void resolveMiss(DNSMessage reqMessage, DNSQuestion question, ResponseChannel channel) {
+        CompletableFuture<DNSMessage> googleResponse = inFlightQueries.resolve(question,
+                () -> consultGoogle(question).thenApply(response -> cacheGoogleResponse(question, response)));
+
+        googleResponse.whenComplete((googleResponseMessage, error) -> {
+            if (error != null) {
+                if (UpstreamClient.isTimeout(error)) {
+                    Metrics.upstreamTimeouts.increment();
+                    if (Log.VERBOSE)
+                        System.out.println("\tGoogle did not answer " + question.getDomainNameAsString() + " in time.");
+                }
+                else {
+                    Metrics.upstreamErrors.increment();
+                    if (Log.VERBOSE)
+                        System.out.println("\tQuerying Google failed: " + error);
+                }
+                return;
+            }
+            handleGoogleResponse(reqMessage, question, googleResponseMessage, channel);
+        });
+    }
+
+    /**
+     * Ask Google again for a hot question whose cache entry is about to expire, and cache the fresh answer.
+     * Goes through the single-flight table, so it shares the query with any concurrent miss for the question.
+     * @param question the question to refresh
+     * @return a future completed once the fresh answer is cached
+     */
+    private static CompletableFuture<DNSMessage> refresh(DNSQuestion question) {
+        return inFlightQueries.resolve(question, () -> {
+            if (Log.VERBOSE)
+                System.out.println("\tRefreshing " + question.getDomainNameAsString() + " ahead of expiry...");
+            return consultGoogle(question).thenApply(response -> cacheGoogleResponse(question, response));
+        });
+    }
+
+    /**
+     * Cache a response from Google. Runs once per upstream query, however many requests share it.
+     * Normal answers are cached with their records, NXDOMAIN and NODATA answers are cached as negative
+     * answers when they carry an SOA record. Other errors are not cached.
+     * @param question the question that was asked
+     * @param googleResponseMessage the response from Google
+     * @return the response, unchanged
+     */
+    private static DNSMessage cacheGoogleResponse(DNSQuestion question, DNSMessage googleResponseMessage) {
+        if (CachedResponse.isNegativeResponse(googleResponseMessage)) {
+            CachedResponse negative = CachedResponse.negative(googleResponseMessage);
+            if (negative != null)
+                DNSCache.insert(question, negative);
+        }
+        else if (!googleResponseMessage.getHeader().isErrorResponse()) {
+            DNSCache.insert(question, googleResponseMessage.getAnswers());
+        }
+        return googleResponseMessage;
+    }
+
+    /**
+     * Relay the answer Google sent back to one of the requests waiting for it. The response is built for this
+     * requester: its transaction ID and flags, and our own OPT record rather than Google's.
+     * @param reqMessage the DNSMessage object containing the request
+     * @param question the question that missed the cache
+     * @param googleResponseMessage the response from Google
+     * @param channel where the response goes
+     */
+    private static void handleGoogleResponse(DNSMessage reqMessage, DNSQuestion question,
+                                             DNSMessage googleResponseMessage, ResponseChannel channel) {
+        try {
+            // Error responses (e.g. domain name does not exist) are relayed with Google's response code
+            sendResponse(reqMessage, googleResponseMessage.getHeader().getRCode(), googleResponseMessage.getAnswers(),
+                         googleResponseMessage.getAuthorityRecords(), channel);
+        }
+        catch (IOException ioe) {
+            System.out.println("Something's wrong with the data stream...");
+        }
+    }
+
+    /**
+     * @return the single-flight table for upstream queries, with its counters
+     */
+    public static InFlightQueries getInFlightQueries() {
+        return inFlightQueries;
+    }
+
+    /**
+     * @return a fixed-size worker pool fed by a bounded hand-off queue
+     */
+    private static ThreadPoolExecutor newWorkerPool() {
+        return new ThreadPoolExecutor(NUM_WORKERS, NUM_WORKERS, 0L, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                                      new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Stop accepting requests, let the workers finish the misses they already have, save the cache snapshot,
+     * then close the sockets.
+     * @param udpListener the UDP listener
+     * @param tcpListener the TCP listener (may be null)
+     * @param workers the worker pool
+     */
+    private static void shutdown(UdpListener udpListener, TcpListener tcpListener, ThreadPoolExecutor workers) {
+        System.out.println("Shutting down...\n" + Metrics.report());
+        udpListener.close();
+        if (tcpListener != null)
+            tcpListener.close();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(SHUTDOWN_GRACE_MILLIS, TimeUnit.MILLISECONDS))
+                workers.shutdownNow();
+        }
+        catch (InterruptedException ie) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        CacheSnapshot.save();
+        closeUpstream();
+    }
+
+    private static void closeUpstream() {
+        if (upstream != null)
+            upstream.close();
+        if (iterativeResolver != null)
+            iterativeResolver.close();
+    }
+
+    /**
+     * @param hostAndPort an address in the form host:port
+     * @return the socket address
+     */
+    static InetSocketAddress parseAddress(String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        return new InetSocketAddress(hostAndPort.substring(0, colon), Integer.parseInt(hostAndPort.substring(colon + 1)));
+    }
+
+    /**
+     * @param addresses comma-separated addresses in the form host:port
+     * @return the socket addresses, in order
+     */
+    static List<InetSocketAddress> parseAddresses(String addresses) {
+        List<InetSocketAddress> parsed = new ArrayList<>();
+        for (String hostAndPort : addresses.split(","))
+            if (!hostAndPort.isBlank())
+                parsed.add(parseAddress(hostAndPort.trim()));
+        return parsed;
+    }
+
+    /**
+     * Send back a response. If it does not fit the channel, send a truncated one instead.
+     * @param reqMessage the DNSMessage object containing the request
+     * @param rCode the response code
+     * @param answers the answer records to send back
+     * @param authorityRecords the authority records to send back
+     * @param channel where the response goes
+     * @throws IOException when there's an error with the stream
+     */
+    private static void sendResponse (DNSMessage reqMessage, int rCode, DNSRecord[] answers, DNSRecord[] authorityRecords,
+                                      ResponseChannel channel) throws IOException {
+        if (Log.VERBOSE)
+            System.out.println("\tSending back answer...");
+        long encodeStart = System.nanoTime();
+        DNSMessage resMessage = DNSMessage.buildResponse(reqMessage, rCode, answers, authorityRecords);
+        ByteBuffer out = resMessage.writeBytes(sendBuffer.get());
+        if (out.limit() > channel.maxResponseSize(reqMessage))
+            out = writeTruncatedResponse(reqMessage, rCode);
+        Metrics.encodeTime.recordSince(encodeStart);
+        channel.send(out);
+        if (Log.VERBOSE)
+            System.out.println(">>>>>> Finish sending response\n");
+    }
+
+    /**
+     * Send back a cache hit from its pre-encoded bytes, only patching the fields that differ per request
+     * @param reqMessage the DNSMessage object containing the request
+     * @param cached the cached response
+     * @param channel where the response goes
+     * @throws IOException when there's an error with the stream
+     */
+    private static void sendWireResponse (DNSMessage reqMessage, CachedResponse cached, ResponseChannel channel) throws IOException {
+        if (Log.VERBOSE)
+            System.out.println("\tSending back pre-encoded answer...");
+        long encodeStart = System.nanoTime();
+        ByteBuffer out = cached.writeWireResponse(reqMessage, sendBuffer.get());
+        if (out.limit() > channel.maxResponseSize(reqMessage))
+            out = writeTruncatedResponse(reqMessage, cached.getRCode());
+        Metrics.encodeTime.recordSince(encodeStart);
+        channel.send(out);
+        if (Log.VERBOSE)
+            System.out.println(">>>>>> Finish sending response\n");
+    }
+
+    /**
+     * Send back an answer from the local data, from its pre-encoded bytes
+     * @param reqMessage the DNSMessage object containing the request
+     * @param local the local answer
+     * @param channel where the response goes
+     * @throws IOException when there's an error with the stream
+     */
+    private static void sendLocalResponse (DNSMessage reqMessage, LocalZone.Answer local, ResponseChannel channel) throws IOException {
+        if (Log.VERBOSE)
+            System.out.println("\tSending back local answer...");
+        long encodeStart = System.nanoTime();
+        ByteBuffer out = local.writeResponse(reqMessage, sendBuffer.get());
+        if (out.limit() > channel.maxResponseSize(reqMessage))
+            out = writeTruncatedResponse(reqMessage, local.getRCode());
+        Metrics.encodeTime.recordSince(encodeStart);
+        channel.send(out);
+        if (Log.VERBOSE)
+            System.out.println(">>>>>> Finish sending response\n");
+    }
+
+    /**
+     * Encode a response that holds only the question (and our OPT record) and has the TC bit set, which tells the
+     * requester to ask again over TCP
+     * @param reqMessage the DNSMessage object containing the request
+     * @param rCode the response code
+     * @return the send buffer holding the response
+     */
+    private static ByteBuffer writeTruncatedResponse(DNSMessage reqMessage, int rCode) {
+        Metrics.truncatedResponses.increment();
+        DNSMessage resMessage = DNSMessage.buildResponse(reqMessage, rCode, NO_RECORDS, NO_RECORDS);
+        ByteBuffer out = resMessage.writeBytes(sendBuffer.get());
+        out.put(2, (byte) (out.get(2) | 0x02)); // tc = 1
+        return out;
+    }
+
+    /**
+     * Ask Google over the pooled upstream sockets. The query is built afresh rather than forwarded, so that it
+     * advertises our EDNS payload size whatever the requester sent. In iterative mode, resolve the question from
+     * the root servers down instead.
+     * @param question the question to ask
+     * @return A future completed with the DNSMessage object containing info from Google
+     */
+    private static CompletableFuture<DNSMessage> consultGoogle(DNSQuestion question) {
+        if (iterativeResolver != null)
+            return iterativeResolver.resolve(question);
+        if (Log.VERBOSE)
+            System.out.println("\tQuerying Google...");
+        byte[] query = DNSMessage.buildUpstreamQuery(question, (short) 0).toBytes();
+        return upstream.query(query, query.length);
+    }
+}
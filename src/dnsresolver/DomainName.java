@@ -0,0 +1,288 @@
+package dnsresolver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A domain name kept in uncompressed wire format (length-prefixed labels ending in a zero octet).
+ * Names compare and hash case-insensitively (RFC 4343), so "Example.COM" and "example.com" are the same cache key,
+ * but the original spelling is kept for writing the name back out. The hash is worked out once, up front.
+ */
+public final class DomainName {
+
+    public static final int MAX_LENGTH = 255; // RFC 1035 2.3.4, counting the length octets and the root
+    private static final int MAX_POINTER_JUMPS = 64; // guards against pointer loops in malformed packets
+
+    public static final DomainName ROOT = new DomainName(new byte[] {0});
+
+    private final byte[] wire;
+    private final int hash;
+    private String[] labels; // built lazily, only needed for logging
+
+    private DomainName(byte[] wire) {
+        this.wire = wire;
+        int h = 1;
+        for (byte b : wire)
+            h = 31 * h + toLowerCase(b);
+        this.hash = h;
+    }
+
+    /**
+     * @param labels the pieces of a domain name, e.g. [ "utah", "edu" ]
+     * @return the domain name made of those labels
+     */
+    public static DomainName fromLabels(String[] labels) {
+        int length = 1;
+        for (String label : labels)
+            length += label.length() + 1;
+        if (length > MAX_LENGTH)
+            throw new IllegalArgumentException("Domain name too long");
+
+        byte[] wire = new byte[length];
+        int index = 0;
+        for (String label : labels) {
+            if (label.isEmpty() || label.length() > 63)
+                throw new IllegalArgumentException("Bad label length");
+            wire[index++] = (byte) label.length();
+            // labels are ISO-8859-1, so every char maps back to exactly one byte
+            for (int i = 0; i < label.length(); i++)
+                wire[index++] = (byte) label.charAt(i);
+        }
+        return new DomainName(wire);
+    }
+
+    /**
+     * @param name a dotted domain name, e.g. "utah.edu" ("." or "" for the root)
+     * @return the domain name
+     */
+    public static DomainName fromString(String name) {
+        if (name.isEmpty() || name.equals("."))
+            return ROOT;
+        if (name.endsWith("."))
+            name = name.substring(0, name.length() - 1);
+        return fromLabels(name.split("\\.", -1));
+    }
+
+    /**
+     * Read a domain name out of a packet, following compression pointers. Nothing is read as a String.
+     * @param packet the buffer holding the packet, which starts at index 0
+     * @param start index of the first byte of the name
+     * @return the domain name, uncompressed
+     */
+    static DomainName read(ByteBuffer packet, int start) {
+        if (packet.get(start) == 0)
+            return ROOT; // e.g. the owner of every OPT record
+
+        // first pass works out the length, second copies the labels into an array of exactly that size
+        int length = 1;
+        int index = start;
+        int jumps = 0;
+        int nextOctet = packet.get(index) & 0xff;
+        while (nextOctet != 0) {
+            if (Helpers.isPointer((byte) nextOctet)) {
+                if (++jumps > MAX_POINTER_JUMPS)
+                    throw new IllegalArgumentException("Too many compression pointers in domain name");
+                index = Helpers.readPointerAddress((byte) nextOctet, packet.get(index + 1));
+            }
+            else {
+                if (nextOctet > 63)
+                    throw new IllegalArgumentException("Unsupported label type");
+                length += nextOctet + 1;
+                if (length > MAX_LENGTH)
+                    throw new IllegalArgumentException("Domain name too long");
+                index += nextOctet + 1;
+            }
+            nextOctet = packet.get(index) & 0xff;
+        }
+
+        byte[] wire = new byte[length];
+        int copied = 0;
+        index = start;
+        nextOctet = packet.get(index) & 0xff;
+        while (nextOctet != 0) {
+            if (Helpers.isPointer((byte) nextOctet)) {
+                index = Helpers.readPointerAddress((byte) nextOctet, packet.get(index + 1));
+            }
+            else {
+                packet.get(index, wire, copied, nextOctet + 1);
+                copied += nextOctet + 1;
+                index += nextOctet + 1;
+            }
+            nextOctet = packet.get(index) & 0xff;
+        }
+        return new DomainName(wire);
+    }
+
+    /**
+     * Read a domain name like read(), but hand back the name already in a table of recent ones if it is spelled
+     * exactly the same, case included, so that a name asked for over and over is not copied out of every packet.
+     * The table is a small direct-mapped cache owned by one thread: a name that is not in it takes the place of
+     * whichever name shared its slot.
+     * @param packet the buffer holding the packet, which starts at index 0
+     * @param start index of the first byte of the name
+     * @param recent the table of recent names, whose length is a power of two
+     * @return the domain name, uncompressed
+     */
+    static DomainName read(ByteBuffer packet, int start, DomainName[] recent) {
+        int h = 1;
+        int index = start;
+        int nextOctet = packet.get(index) & 0xff;
+        while (nextOctet != 0) {
+            if (nextOctet > 63 || index - start + nextOctet + 2 > MAX_LENGTH)
+                return read(packet, start); // compressed, or not a name at all: read() sorts it out
+            for (int end = index + nextOctet + 1; index < end; index++)
+                h = 31 * h + packet.get(index);
+            nextOctet = packet.get(index) & 0xff;
+        }
+        int length = index - start + 1;
+        if (length == 1)
+            return ROOT;
+
+        int slot = (h ^ h >>> 16) & (recent.length - 1);
+        DomainName name = recent[slot];
+        if (name == null || !name.isSpelledAs(packet, start, length))
+            recent[slot] = name = read(packet, start);
+        return name;
+    }
+
+    /**
+     * @return true if the length bytes at start are exactly this name's wire format, case included
+     */
+    private boolean isSpelledAs(ByteBuffer packet, int start, int length) {
+        if (wire.length != length)
+            return false;
+        for (int i = 0; i < length; i++)
+            if (packet.get(start + i) != wire[i])
+                return false;
+        return true;
+    }
+
+    static int toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    /**
+     * Write the name out in full, with no compression
+     * @param out the buffer to write into
+     */
+    public void writeUncompressed(ByteBuffer out) {
+        out.put(wire);
+    }
+
+    /**
+     * @return the uncompressed wire-format bytes. Shared, so must not be modified
+     */
+    byte[] getWire() {
+        return wire;
+    }
+
+    /**
+     * @return the number of bytes the name takes up when written out in full
+     */
+    public int getWireLength() {
+        return wire.length;
+    }
+
+    public boolean isRoot() {
+        return wire.length == 1;
+    }
+
+    /**
+     * @return the name with its first label taken off, e.g. "utah.edu" for "cs.utah.edu" (the root for the root)
+     */
+    public DomainName parent() {
+        if (isRoot())
+            return this;
+        return new DomainName(Arrays.copyOfRange(wire, wire[0] + 1, wire.length));
+    }
+
+    /**
+     * @param zone another name
+     * @return true if this name is the zone or a name under it, e.g. "cs.utah.edu" is under "utah.edu" (and every
+     * name is under the root)
+     */
+    public boolean isSubdomainOf(DomainName zone) {
+        int offset = wire.length - zone.wire.length;
+        int index = 0;
+        while (index < offset)
+            index += wire[index] + 1;
+        if (index != offset)
+            return false; // the zone's length does not end on one of our label boundaries
+        for (int i = 0; i < zone.wire.length; i++)
+            if (wire[offset + i] != zone.wire[i] && toLowerCase(wire[offset + i]) != toLowerCase(zone.wire[i]))
+                return false;
+        return true;
+    }
+
+    /**
+     * @return the pieces of the domain name, in their original case
+     */
+    public String[] getLabels() {
+        String[] result = labels;
+        if (result == null) {
+            ArrayList<String> pieces = new ArrayList<>();
+            for (int index = 0; wire[index] != 0; index += wire[index] + 1)
+                pieces.add(new String(wire, index + 1, wire[index], StandardCharsets.ISO_8859_1));
+            result = labels = pieces.toArray(new String[0]);
+        }
+        return result;
+    }
+
+    /**
+     * @return a rough estimate of the heap taken up by this name
+     */
+    public int sizeInBytes() {
+        return 40 + wire.length; // object and array headers, fields
+    }
+
+    /**
+     * @param o the object to compare
+     * @return true if o is the same name, ignoring ASCII case
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof DomainName))
+            return false;
+
+        DomainName other = (DomainName) o;
+        if (hash != other.hash || wire.length != other.wire.length)
+            return false;
+        for (int i = 0; i < wire.length; i++)
+            if (wire[i] != other.wire[i] && toLowerCase(wire[i]) != toLowerCase(other.wire[i]))
+                return false;
+        return true;
+    }
+
+    /**
+     * @param buffer a buffer holding an uncompressed name
+     * @param index where the name starts
+     * @return true if the name there is this name, ignoring ASCII case
+     */
+    boolean matches(ByteBuffer buffer, int index) {
+        if (index + wire.length > buffer.limit())
+            return false;
+        for (int i = 0; i < wire.length; i++) {
+            byte b = buffer.get(index + i);
+            if (b != wire[i] && toLowerCase(b) != toLowerCase(wire[i]))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * @return the dotted domain name, e.g. "utah.edu" ("." for the root)
+     */
+    @Override
+    public String toString() {
+        return Helpers.octetsToString(getLabels());
+    }
+}
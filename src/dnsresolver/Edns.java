@@ -0,0 +1,64 @@
+package dnsresolver;
+
+/**
+ * EDNS0 (RFC 6891). A client that sends an OPT pseudo-record in its additional section can take UDP responses up
+ * to the payload size it advertises there, instead of the classic 512 bytes. The OPT record's class holds that
+ * size, and its TTL holds the extended rCode, the version and the DO (DNSSEC OK) flag.
+ */
+public class Edns {
+
+    public static final int CLASSIC_UDP_SIZE = 512;
+
+    // The largest UDP payload we send or accept. 1232 avoids IP fragmentation on almost every path (DNS flag day
+    // 2020). Configurable with -Ddns.edns.payloadSize=N
+    public static final int PAYLOAD_SIZE = Math.max(CLASSIC_UDP_SIZE,
+                                                    Integer.getInteger("dns.edns.payloadSize", 1232));
+
+    private static final long DO_FLAG = 0x8000;
+
+    private static final DNSRecord[] NO_RECORDS = new DNSRecord[0];
+    private static final DNSRecord[] OPT = {DNSRecord.buildOptRecord(PAYLOAD_SIZE, 0)};
+    private static final DNSRecord[] OPT_DNSSEC_OK = {DNSRecord.buildOptRecord(PAYLOAD_SIZE, DO_FLAG)};
+
+    /**
+     * @param message a DNS message
+     * @return its OPT record, or null if it has none
+     */
+    public static DNSRecord findOpt(DNSMessage message) {
+        for (DNSRecord record : message.getAdditionalRecords())
+            if (record.getRType() == DNSRecord.TYPE_OPT)
+                return record;
+        return null;
+    }
+
+    /**
+     * @param request the DNS request message
+     * @return the largest UDP response the requester can take: 512 bytes without EDNS, otherwise the size it
+     * advertises, capped at our own
+     */
+    public static int maxUdpResponseSize(DNSMessage request) {
+        DNSRecord opt = findOpt(request);
+        if (opt == null)
+            return CLASSIC_UDP_SIZE;
+        return Math.min(PAYLOAD_SIZE, Math.max(CLASSIC_UDP_SIZE, opt.getRClass()));
+    }
+
+    /**
+     * @param request the DNS request message
+     * @return the additional section for a response to it: our own OPT record if the request had one (with its DO
+     * flag echoed), otherwise nothing. The arrays are shared and must not be modified.
+     */
+    public static DNSRecord[] responseAdditionalRecords(DNSMessage request) {
+        DNSRecord opt = findOpt(request);
+        if (opt == null)
+            return NO_RECORDS;
+        return (opt.getTtl() & DO_FLAG) != 0 ? OPT_DNSSEC_OK : OPT;
+    }
+
+    /**
+     * @return the additional section for a query we send upstream, advertising our payload size
+     */
+    public static DNSRecord[] queryAdditionalRecords() {
+        return OPT;
+    }
+}
@@ -0,0 +1,86 @@
+package dnsresolver;
+
+/**
+ * A count-min sketch of how often each key has been asked for lately, for TinyLfuCache's admission decisions.
+ * Counters are 4 bits, sixteen to a long, and each key has four of them in different longs; its frequency is the
+ * smallest of the four, so collisions only ever make a key look more popular than it is. Once there have been ten
+ * increments per entry the cache holds, every counter is halved, so that the sketch follows what is popular now
+ * rather than what was popular once. Not thread-safe: each cache stripe has its own, used under the stripe's lock.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+                                         0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L; // every counter shifted right, without carries
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size; // increments since the last halving
+
+    /**
+     * @param maxEntries the most entries the cache that uses the sketch holds
+     */
+    FrequencySketch(int maxEntries) {
+        int length = Integer.highestOneBit(Math.max(16, maxEntries) - 1) << 1;
+        this.table = new long[length];
+        this.tableMask = length - 1;
+        this.sampleSize = 10 * Math.max(16, maxEntries);
+    }
+
+    /**
+     * @param hash the key's hash code
+     * @return the estimated number of times the key was asked for lately, from 0 to 15
+     */
+    int frequency(int hash) {
+        int item = spread(hash);
+        int start = (item & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            long counters = table[indexOf(item, i)];
+            frequency = Math.min(frequency, (int) (counters >>> ((start + i) << 2)) & MAX_COUNT);
+        }
+        return frequency;
+    }
+
+    /**
+     * Count one more request for a key, and halve every counter once enough have been counted
+     * @param hash the key's hash code
+     */
+    void increment(int hash) {
+        int item = spread(hash);
+        int start = (item & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(item, i);
+            int offset = (start + i) << 2;
+            if (((table[index] >>> offset) & MAX_COUNT) != MAX_COUNT) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++size == sampleSize)
+            halve();
+    }
+
+    private void halve() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        size /= 2;
+    }
+
+    /**
+     * @return the index of the long holding the key's i-th counter
+     */
+    private int indexOf(int item, int i) {
+        long hash = (item + SEEDS[i]) * SEEDS[i];
+        hash += hash >>> 32;
+        return (int) hash & tableMask;
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
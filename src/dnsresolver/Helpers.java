@@ -1,6 +1,4 @@
-import java.io.ByteArrayOutputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+package dnsresolver;
 
 public class Helpers {
 
@@ -23,7 +21,7 @@ public class Helpers {
 
         for (int i = numBitsInSections.length - 1; i >= 0; i--) {
             byte numBitsInThisSection = numBitsInSections[i];
-            byte dissectedByte = (byte) (unsignedByteToDissect & ((byte) Math.pow(2, numBitsInThisSection) - 1));
+            byte dissectedByte = (byte) (unsignedByteToDissect & ((1 << numBitsInThisSection) - 1));
             dissectedBytes[i] = dissectedByte;
             unsignedByteToDissect = (byte) (unsignedByteToDissect >> numBitsInThisSection);
         }
@@ -69,9 +67,7 @@ public class Helpers {
      * @return true if the octet represents a pointer (two most significant bits are ones)
      */
     public static boolean isPointer (byte octet) {
-        byte[] octetParts = Helpers.dissectByte(octet, new byte[] {2, 6});
-        byte twoMSBs = octetParts[0];
-        return twoMSBs == 0x03;
+        return (octet & 0xc0) == 0xc0;
     }
 
     /**
@@ -81,36 +77,7 @@ public class Helpers {
      * @return the value the octet is pointing to
      */
     public static int readPointerAddress (byte firstPtrOctet, byte secondPtrOctet) {
-        int firstPart = dissectByte(firstPtrOctet, new byte[] {2, 6})[1];
-        int secondPart = secondPtrOctet & 0x0ff;
-        return ((firstPart << 8) | secondPart) & 0x0ffff;
-    }
-
-    /**
-     * Write a full domain name to the packet if the domain name has not been written previously, or a pointer if otherwise
-     * @param outputStream the output stream
-     * @param labels the labels making up the domain name
-     * @param domainNameLocations the hashmap for looking up previous locations of the domain name
-     */
-    public static void writeDomainNames (ByteArrayOutputStream outputStream,
-                                         String[] labels,
-                                         HashMap<String,Integer> domainNameLocations) {
-        Integer prevLoc = domainNameLocations.get(Helpers.octetsToString(labels));
-        if (prevLoc == null) {
-            domainNameLocations.put(Helpers.octetsToString(labels), outputStream.size());
-            for (String label : labels) {
-                int labelLength = label.length();
-                outputStream.write(labelLength);
-                outputStream.writeBytes(label.getBytes(StandardCharsets.UTF_8));
-            }
-            outputStream.write(0);
-        }
-        else {
-            int pointerAddress = prevLoc | 0x0000c000; // change two MSBs to ones
-            byte pointerAddressByteOne = (byte) (pointerAddress >> 8);
-            byte pointerAddressByteTwo = (byte) (pointerAddress);
-            outputStream.writeBytes(new byte[] {pointerAddressByteOne, pointerAddressByteTwo});
-        }
+        return (firstPtrOctet & 0x3f) << 8 | (secondPtrOctet & 0xff);
     }
 
     /**
@@ -119,6 +86,8 @@ public class Helpers {
      * @return the concatenated domain name string
      */
     public static String octetsToString(String[] octets) {
+        if (octets.length == 0)
+            return "."; // the root name
         StringBuilder concatStr = new StringBuilder();
         for (int i = 0; i < octets.length - 1; i++) {
             concatStr.append(octets[i]);
@@ -0,0 +1,81 @@
+package dnsresolver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Single-flight table for upstream queries. While a query for a question is outstanding, later requests for the
+ * same question (name, qType, qClass) attach to it instead of sending their own.
+ */
+public class InFlightQueries {
+
+    private final ConcurrentHashMap<DNSQuestion, CompletableFuture<DNSMessage>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong upstreamQueries = new AtomicLong();
+    private final AtomicLong coalescedQueries = new AtomicLong();
+
+    /**
+     * Get the answer to a question, sending a query upstream only if none is outstanding for it already
+     * @param question the question to resolve
+     * @param query starts the upstream query. Anything that must happen before the question leaves the table
+     *              (e.g. caching the answer) should be chained onto the future it returns.
+     * @return a future completed with the upstream response, shared by every request for the question
+     */
+    public CompletableFuture<DNSMessage> resolve(DNSQuestion question, Supplier<CompletableFuture<DNSMessage>> query) {
+        CompletableFuture<DNSMessage> pending = inFlight.get(question);
+        if (pending != null) {
+            coalescedQueries.incrementAndGet();
+            return pending;
+        }
+
+        CompletableFuture<DNSMessage> started = new CompletableFuture<>();
+        pending = inFlight.putIfAbsent(question, started);
+        if (pending != null) {
+            coalescedQueries.incrementAndGet();
+            return pending;
+        }
+
+        upstreamQueries.incrementAndGet();
+        // Leave the table before completing, so a request arriving afterwards sees the cached answer
+        // or starts a fresh query, never a finished future
+        CompletableFuture<DNSMessage> sent;
+        try {
+            sent = query.get();
+        }
+        catch (RuntimeException re) { // never leave a future in the table that nothing will complete
+            inFlight.remove(question, started);
+            started.completeExceptionally(re);
+            return started;
+        }
+        sent.whenComplete((response, error) -> {
+            inFlight.remove(question, started);
+            if (error != null)
+                started.completeExceptionally(error);
+            else
+                started.complete(response);
+        });
+        return started;
+    }
+
+    /**
+     * @return the number of queries that were actually sent upstream
+     */
+    public long getUpstreamQueries() {
+        return upstreamQueries.get();
+    }
+
+    /**
+     * @return the number of requests that attached to an outstanding query instead of sending their own
+     */
+    public long getCoalescedQueries() {
+        return coalescedQueries.get();
+    }
+
+    /**
+     * @return the number of questions currently waiting on the upstream
+     */
+    public int size() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,435 @@
+package dnsresolver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolves names itself instead of forwarding them (RFC 1034 5.3.3): it starts from the root servers and follows
+ * the referrals in the authority and additional sections of their responses down to the servers that have the
+ * answer, following CNAMEs along the way. Every referral's NS names and glue addresses are kept in a delegation
+ * cache, so a later lookup starts at the deepest zone cut known for its name instead of at the root.
+ * Nameservers referred to without glue are looked up in the answer cache, or resolved first.
+ * <p>
+ * Resolution is asynchronous: one query is outstanding at a time, and the next step runs on whichever thread
+ * completes it. A zone's servers are tried quickest first, by smoothed RTT; one that times out, fails, or gives a
+ * response that does not make sense for the question makes way for the next. Only IPv4 glue is used.
+ */
+public class IterativeResolver implements Closeable {
+
+    // Nameservers learned from referrals are asked on this port; 53 but for offline tests against stubs on
+    // loopback addresses. Configurable with -Ddns.iterative.port=N, -Ddns.iterative.sockets=N,
+    // -Ddns.iterative.serverTimeoutMillis=N (per query) and -Ddns.iterative.timeoutMillis=N (per resolution)
+    private static final int NAMESERVER_PORT = Integer.getInteger("dns.iterative.port", 53);
+    private static final int NUM_SOCKETS = Integer.getInteger("dns.iterative.sockets", 4);
+    private static final long SERVER_TIMEOUT_MILLIS = Long.getLong("dns.iterative.serverTimeoutMillis", 800);
+    private static final long TIMEOUT_MILLIS = Long.getLong("dns.iterative.timeoutMillis", 4000);
+
+    // Limits, against loops and runaway lookups: queries per resolution (nameserver lookups included), CNAMEs
+    // followed, nameserver lookups nested inside each other, and zone cuts kept (-Ddns.iterative.maxZones=N)
+    private static final int MAX_QUERIES = 32;
+    private static final int MAX_CNAMES = 8;
+    private static final int MAX_DEPTH = 4;
+    private static final int MAX_ZONES = Integer.getInteger("dns.iterative.maxZones", 100_000);
+
+    private static final int CLASS_IN = 1;
+    private static final DNSRecord[] NO_RECORDS = new DNSRecord[0];
+
+    private final NameserverClient client;
+    private final Delegation root;
+    private final ConcurrentHashMap<DomainName, Delegation> delegations = new ConcurrentHashMap<>();
+
+    private final LongAdder resolutions = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder referrals = new LongAdder();
+    private final LongAdder delegationHits = new LongAdder();
+
+    /**
+     * A zone cut: the servers a zone is delegated to, and the addresses of those we know
+     */
+    private static class Delegation {
+        final DomainName zone;
+        final DomainName[] nameservers;
+        final InetSocketAddress[] addresses;
+        final long expiryMillis;
+
+        Delegation(DomainName zone, DomainName[] nameservers, InetSocketAddress[] addresses, long expiryMillis) {
+            this.zone = zone;
+            this.nameservers = nameservers;
+            this.addresses = addresses;
+            this.expiryMillis = expiryMillis;
+        }
+
+        boolean isValid(long nowMillis) {
+            return nowMillis < expiryMillis;
+        }
+    }
+
+    /**
+     * @param rootServers the root hints: addresses of the root servers
+     * @throws SocketException if the sockets cannot be opened
+     */
+    public IterativeResolver(List<InetSocketAddress> rootServers) throws SocketException {
+        if (rootServers.isEmpty())
+            throw new IllegalArgumentException("No root servers");
+        this.client = new NameserverClient(NUM_SOCKETS, SERVER_TIMEOUT_MILLIS);
+        this.root = new Delegation(DomainName.ROOT, new DomainName[0],
+                                   rootServers.toArray(new InetSocketAddress[0]), Long.MAX_VALUE);
+    }
+
+    /**
+     * Resolve a question from the deepest zone cut known for it
+     * @param question the question
+     * @return a future completed with a response holding the answers (CNAMEs followed included) or the negative
+     * answer with its SOA, or exceptionally if no server could answer in time
+     */
+    public CompletableFuture<DNSMessage> resolve(DNSQuestion question) {
+        resolutions.increment();
+        Resolution resolution = new Resolution(question, 0, new AtomicInteger(MAX_QUERIES));
+        resolution.start();
+        return resolution.result.orTimeout(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).whenComplete((response, error) -> {
+            if (error != null)
+                failures.increment();
+        });
+    }
+
+    /**
+     * @param name a domain name
+     * @return the deepest zone cut above or at the name that is still valid, or the root
+     */
+    private Delegation closestDelegation(DomainName name) {
+        long now = System.currentTimeMillis();
+        for (DomainName zone = name; !zone.isRoot(); zone = zone.parent()) {
+            Delegation delegation = delegations.get(zone);
+            if (delegation == null)
+                continue;
+            if (delegation.isValid(now)) {
+                delegationHits.increment();
+                return delegation;
+            }
+            delegations.remove(zone, delegation);
+        }
+        return root;
+    }
+
+    private void cacheDelegation(Delegation delegation) {
+        if (delegations.size() >= MAX_ZONES) {
+            long now = System.currentTimeMillis();
+            delegations.values().removeIf(cached -> !cached.isValid(now));
+            if (delegations.size() >= MAX_ZONES)
+                delegations.clear(); // they are cheap to learn again, starting from the TLDs' referrals
+        }
+        delegations.put(delegation.zone, delegation);
+    }
+
+    /**
+     * One question being resolved. Its steps run one after the other, each on the thread that completed the query
+     * before it.
+     */
+    private class Resolution {
+        final DNSQuestion question;
+        final int depth;
+        final AtomicInteger queriesLeft; // shared with the nameserver lookups this one starts
+        final CompletableFuture<DNSMessage> result = new CompletableFuture<>();
+        final List<DNSRecord> cnames = new ArrayList<>();
+        DomainName name; // the name being looked up, once CNAMEs have been followed
+
+        Resolution(DNSQuestion question, int depth, AtomicInteger queriesLeft) {
+            this.question = question;
+            this.depth = depth;
+            this.queriesLeft = queriesLeft;
+            this.name = question.getName();
+        }
+
+        void start() {
+            lookUp(closestDelegation(name));
+        }
+
+        /**
+         * Ask the zone's servers, quickest first. A zone without a single address has its nameservers looked up.
+         */
+        void lookUp(Delegation zone) {
+            if (zone.addresses.length == 0) {
+                findAddresses(zone, 0);
+                return;
+            }
+            InetSocketAddress[] servers = zone.addresses.clone();
+            Arrays.sort(servers, Comparator.comparingLong(client::getSmoothedRttNanos));
+            ask(zone, servers, 0);
+        }
+
+        void ask(Delegation zone, InetSocketAddress[] servers, int next) {
+            if (result.isDone())
+                return; // timed out
+            if (next == servers.length) {
+                if (zone != root)
+                    delegations.remove(zone.zone, zone); // learn it afresh from the parent next time
+                fail("no server for " + zone.zone + " answered");
+                return;
+            }
+            if (queriesLeft.decrementAndGet() < 0) {
+                fail("too many queries");
+                return;
+            }
+
+            queries.increment();
+            InetSocketAddress server = servers[next];
+            DNSQuestion asked = DNSQuestion.buildQuestion(name, question.getQType(), CLASS_IN);
+            byte[] query = DNSMessage.buildUpstreamQuery(asked, (short) 0).toBytes();
+            query[2] &= ~0x01; // rd = 0: we do the recursion
+            if (Log.VERBOSE)
+                System.out.println("\tAsking " + server + " (" + zone.zone + ") for " + asked);
+            client.query(server, query).whenComplete((response, error) -> {
+                boolean handled;
+                try {
+                    handled = error == null && handle(zone, response);
+                }
+                catch (RuntimeException e) {
+                    handled = false; // e.g. a record whose data does not hold what its type says
+                }
+                if (!handled)
+                    ask(zone, servers, next + 1);
+            });
+        }
+
+        /**
+         * @return false if the response is no use, and the next server should be asked
+         */
+        boolean handle(Delegation zone, DNSMessage response) {
+            DNSQuestion[] questions = response.getQuestions();
+            if (questions.length != 1 || !questions[0].getName().equals(name)
+                || questions[0].getQType() != question.getQType())
+                return false; // not an answer to what we asked
+
+            int rCode = response.getHeader().getRCode();
+            if (rCode == DNSHeader.RCODE_NXDOMAIN) {
+                keepChain(zone, response.getAnswers());
+                finish(rCode, cnames.toArray(NO_RECORDS), response.getAuthorityRecords()); // the CNAMEs to it too
+                return true;
+            }
+            if (rCode != DNSHeader.RCODE_NOERROR)
+                return false; // e.g. SERVFAIL or REFUSED from a lame server
+
+            if (response.getAnswers().length > 0) {
+                followAnswers(zone, response);
+                return true;
+            }
+
+            Delegation referral = readReferral(zone, response);
+            if (referral != null) {
+                referrals.increment();
+                cacheDelegation(referral);
+                lookUp(referral);
+                return true;
+            }
+            for (DNSRecord record : response.getAuthorityRecords()) {
+                if (record.getRType() == DNSRecord.TYPE_SOA) {
+                    finish(rCode, cnames.toArray(NO_RECORDS), response.getAuthorityRecords()); // NODATA
+                    return true;
+                }
+            }
+            return false; // neither an answer nor a referral down the tree
+        }
+
+        /**
+         * Take the answer, unless it is only CNAMEs leading out of it: then carry on with the name they lead to
+         */
+        void followAnswers(Delegation zone, DNSMessage response) {
+            DomainName end = keepChain(zone, response.getAnswers());
+            boolean answered = question.getQType() == DNSRecord.TYPE_CNAME;
+            for (DNSRecord record : response.getAnswers())
+                if (record.getName().equals(end) && record.getRType() == question.getQType()
+                    && end.isSubdomainOf(zone.zone))
+                    answered = true;
+
+            if (answered || end.equals(name)) {
+                finish(DNSHeader.RCODE_NOERROR, cnames.toArray(NO_RECORDS), NO_RECORDS);
+                return;
+            }
+            if (cnames.size() > MAX_CNAMES) {
+                fail("too many CNAMEs");
+                return;
+            }
+            name = end;
+            lookUp(closestDelegation(name));
+        }
+
+        /**
+         * Walk the CNAME chain in the answers from the name asked, as far as it stays inside the zone asked, and
+         * add the records owned by the names on it to the result. Records for any other name are dropped: the
+         * zone's servers have no say over names off the chain, or outside the zone.
+         * @return the name the chain ends at: one with the type asked for, without a CNAME, or outside the zone
+         */
+        DomainName keepChain(Delegation zone, DNSRecord[] answers) {
+            List<DomainName> chain = new ArrayList<>();
+            DomainName end = name;
+            chain.add(end);
+            boolean answered = question.getQType() == DNSRecord.TYPE_CNAME;
+            for (int step = 0; !answered && step <= MAX_CNAMES && end.isSubdomainOf(zone.zone); step++) {
+                DNSRecord cname = null;
+                for (DNSRecord record : answers) {
+                    if (!record.getName().equals(end))
+                        continue;
+                    if (record.getRType() == question.getQType())
+                        answered = true;
+                    else if (record.getRType() == DNSRecord.TYPE_CNAME)
+                        cname = record;
+                }
+                if (answered || cname == null)
+                    break;
+                end = cname.getRDataName();
+                chain.add(end);
+            }
+
+            for (DNSRecord record : answers)
+                if (chain.contains(record.getName()) && record.getName().isSubdomainOf(zone.zone))
+                    cnames.add(record);
+            return end;
+        }
+
+        /**
+         * Read a referral: NS records in the authority section for a zone between the one asked and the name.
+         * Glue addresses are only taken for nameservers inside the zone asked, which it has authority over.
+         * @return the zone cut, or null if the response is not a referral
+         */
+        Delegation readReferral(Delegation zone, DNSMessage response) {
+            DomainName cut = null;
+            List<DomainName> nameservers = new ArrayList<>();
+            long expiryMillis = Long.MAX_VALUE;
+            for (DNSRecord record : response.getAuthorityRecords()) {
+                if (record.getRType() != DNSRecord.TYPE_NS)
+                    continue;
+                DomainName owner = record.getName();
+                if (cut == null) {
+                    if (owner.equals(zone.zone) || !owner.isSubdomainOf(zone.zone) || !name.isSubdomainOf(owner))
+                        return null; // an upward or sideways referral: lame
+                    cut = owner;
+                }
+                else if (!owner.equals(cut)) {
+                    continue;
+                }
+                nameservers.add(record.getRDataName());
+                expiryMillis = Math.min(expiryMillis, record.getExpiryMillis());
+            }
+            if (cut == null)
+                return null;
+
+            List<InetSocketAddress> addresses = new ArrayList<>();
+            for (DNSRecord record : response.getAdditionalRecords()) {
+                if (isAddress(record) && nameservers.contains(record.getName())
+                    && record.getName().isSubdomainOf(zone.zone))
+                    addresses.add(toAddress(record));
+            }
+            return new Delegation(cut, nameservers.toArray(new DomainName[0]),
+                                  addresses.toArray(new InetSocketAddress[0]), expiryMillis);
+        }
+
+        /**
+         * Find an address for one of the zone's nameservers, from the answer cache or by resolving it, then carry
+         * on with the zone
+         * @param next the nameserver to try
+         */
+        void findAddresses(Delegation zone, int next) {
+            if (next == zone.nameservers.length || depth >= MAX_DEPTH) {
+                delegations.remove(zone.zone, zone);
+                fail("no address for any nameserver of " + zone.zone);
+                return;
+            }
+            DNSQuestion addressQuestion = DNSQuestion.buildQuestion(zone.nameservers[next], DNSRecord.TYPE_A, CLASS_IN);
+            CachedResponse cached = DNSCache.lookup(addressQuestion);
+            if (cached != null && !cached.isNegative()) {
+                withAddresses(zone, cached.getAnswers());
+                return;
+            }
+
+            Resolution lookup = new Resolution(addressQuestion, depth + 1, queriesLeft);
+            lookup.start();
+            lookup.result.whenComplete((response, error) -> {
+                if (error == null && response.getAnswers().length > 0
+                    && response.getHeader().getRCode() == DNSHeader.RCODE_NOERROR) {
+                    DNSCache.insert(addressQuestion, response.getAnswers());
+                    withAddresses(zone, response.getAnswers());
+                }
+                else {
+                    findAddresses(zone, next + 1);
+                }
+            });
+        }
+
+        void withAddresses(Delegation zone, DNSRecord[] answers) {
+            List<InetSocketAddress> addresses = new ArrayList<>();
+            for (DNSRecord record : answers)
+                if (isAddress(record))
+                    addresses.add(toAddress(record));
+            Delegation resolved = new Delegation(zone.zone, zone.nameservers,
+                                                 addresses.toArray(new InetSocketAddress[0]), zone.expiryMillis);
+            if (resolved.addresses.length == 0) {
+                fail("no address for any nameserver of " + zone.zone);
+                return;
+            }
+            if (zone != root)
+                delegations.replace(zone.zone, zone, resolved);
+            lookUp(resolved);
+        }
+
+        void finish(int rCode, DNSRecord[] answers, DNSRecord[] authorityRecords) {
+            DNSMessage query = DNSMessage.buildQuery(question, (short) 0);
+            result.complete(DNSMessage.buildResponse(query, rCode, answers, authorityRecords));
+        }
+
+        void fail(String reason) {
+            result.completeExceptionally(new IOException("Cannot resolve " + question.getDomainNameAsString()
+                                                         + ": " + reason));
+        }
+    }
+
+    private static boolean isAddress(DNSRecord record) {
+        return record.getRType() == DNSRecord.TYPE_A && record.getRData().length == 4;
+    }
+
+    private static InetSocketAddress toAddress(DNSRecord aRecord) {
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(aRecord.getRData()), NAMESERVER_PORT);
+        }
+        catch (UnknownHostException uhe) {
+            throw new IllegalArgumentException(uhe); // cannot happen: the address has 4 bytes
+        }
+    }
+
+    /**
+     * @return the number of zone cuts in the delegation cache
+     */
+    public int delegationCount() {
+        return delegations.size();
+    }
+
+    /**
+     * @return a one-line summary of the counters
+     */
+    public String summary() {
+        return resolutions.sum() + " resolutions (" + failures.sum() + " failed), " + queries.sum() + " queries, "
+               + referrals.sum() + " referrals followed, " + delegationHits.sum() + " started below the root, "
+               + delegationCount() + " zone cuts cached, " + client.pendingQueries() + " queries pending";
+    }
+
+    /**
+     * Close the sockets and fail every query still waiting for an answer
+     */
+    @Override
+    public void close() {
+        client.close();
+    }
+}
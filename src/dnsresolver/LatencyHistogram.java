@@ -0,0 +1,100 @@
+package dnsresolver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram in the style of HdrHistogram: values are counted in buckets that double in width
+ * every power of two, each split into 16 linear sub-buckets, so any recorded value is known to within ~6%.
+ * Recording is a couple of shifts and one atomic increment.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_VALUE_BITS = 40; // about 18 minutes in nanoseconds, anything longer is clamped
+    private static final int NUM_BUCKETS = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalValue = new LongAdder();
+    private final LongAccumulator maxValue = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param nanos the latency to record, in nanoseconds
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, (1L << MAX_VALUE_BITS) - 1));
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.increment();
+        totalValue.add(value);
+        maxValue.accumulate(value);
+    }
+
+    /**
+     * @param startNanos a System.nanoTime() taken when the timed operation started
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    public double getMean() {
+        long count = totalCount.sum();
+        return count == 0 ? 0 : (double) totalValue.sum() / count;
+    }
+
+    /**
+     * @param percentile the percentile to read, between 0 and 100
+     * @return the upper edge of the bucket holding that percentile, in nanoseconds (0 if nothing was recorded)
+     */
+    public long getPercentile(double percentile) {
+        long count = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            count += counts.get(i);
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(bucketUpperEdge(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * @return a one-line summary in microseconds, e.g. "n=120 mean=85.2us p50=80us p99=300us p999=1200us max=1500us"
+     */
+    public String summary() {
+        return String.format("n=%d mean=%.1fus p50=%dus p99=%dus p999=%dus max=%dus",
+                             getCount(), getMean() / 1000, getPercentile(50) / 1000, getPercentile(99) / 1000,
+                             getPercentile(99.9) / 1000, getMax() / 1000);
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS; // how far to shift out
+        int subBucket = (int) (value >>> magnitude) & (SUB_BUCKETS - 1);
+        return (magnitude + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long bucketUpperEdge(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int magnitude = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << magnitude) - 1;
+    }
+}
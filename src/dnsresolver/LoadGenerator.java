@@ -0,0 +1,223 @@
+package dnsresolver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An offline load generator for the server, to be pointed at a server that forwards to a StubUpstream.
+ * Queries are sent open-loop at a fixed rate, whether or not the earlier ones were answered, so a server that falls
+ * behind shows up as latency rather than as a lower request rate. Latency is measured from the time each query was
+ * due to be sent, so that includes any time the generator itself fell behind.
+ * A share of the queries ask for names from a fixed set, picked with a Zipf distribution (a few very hot names, a
+ * long tail), and are mostly cache hits once warm; the rest ask for a new name every time and always miss.
+ * Usage: java dnsresolver.LoadGenerator [host:port] [qps] [seconds] [names] [zipf exponent] [hit percent] [sockets]
+ */
+public class LoadGenerator {
+
+    private static final long DRAIN_MILLIS = 2000; // how long to wait for the last answers before counting them lost
+    private static final int MAX_IDS = 1 << 16;
+
+    private final Sender[] senders;
+    private final byte[][] hotQueries;
+    private final double[] zipfCdf;
+    private final double hitShare;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder answered = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final String runId = Long.toString(System.currentTimeMillis() % 100_000, 36);
+    private long missCount;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        InetSocketAddress server = DNSServer.parseAddress(args.length > 0 ? args[0] : "127.0.0.1:8053");
+        int qps = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int names = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+        double zipfExponent = args.length > 4 ? Double.parseDouble(args[4]) : 1.0;
+        double hitPercent = args.length > 5 ? Double.parseDouble(args[5]) : 90;
+        int sockets = args.length > 6 ? Integer.parseInt(args[6]) : 4;
+
+        System.out.println("Sending " + qps + " queries/s to " + server + " for " + seconds + "s: " + hitPercent
+                           + "% over " + names + " names (zipf " + zipfExponent + "), the rest new names, from "
+                           + sockets + " sockets\n");
+        LoadGenerator generator = new LoadGenerator(server, sockets, names, zipfExponent, hitPercent / 100);
+        long sent = generator.run(qps, seconds);
+        System.out.println(generator.report(sent, seconds));
+    }
+
+    /**
+     * @param server the server to load
+     * @param sockets the number of client sockets to spread the queries over
+     * @param names the number of names in the hot set
+     * @param zipfExponent how skewed the hot set is; 0 is uniform, around 1 is typical of real traffic
+     * @param hitShare the share of queries that go to the hot set, between 0 and 1
+     * @throws IOException if a socket cannot be opened
+     */
+    public LoadGenerator(InetSocketAddress server, int sockets, int names, double zipfExponent, double hitShare)
+            throws IOException {
+        this.hitShare = hitShare;
+        this.senders = new Sender[Math.max(1, sockets)];
+        for (int i = 0; i < senders.length; i++)
+            senders[i] = new Sender(server, i);
+
+        this.hotQueries = new byte[Math.max(1, names)][];
+        this.zipfCdf = new double[hotQueries.length];
+        double total = 0;
+        for (int rank = 0; rank < hotQueries.length; rank++) {
+            hotQueries[rank] = buildQuery("host" + rank + ".load.test");
+            total += 1 / Math.pow(rank + 1, zipfExponent);
+            zipfCdf[rank] = total;
+        }
+        for (int rank = 0; rank < zipfCdf.length; rank++)
+            zipfCdf[rank] /= total;
+    }
+
+    /**
+     * Send queries at a fixed rate for a while, then wait for the stragglers
+     * @param qps queries per second
+     * @param seconds how long to send for
+     * @return the number of queries sent
+     */
+    public long run(int qps, int seconds) throws InterruptedException {
+        for (Sender sender : senders)
+            sender.start();
+
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, qps);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long sent = 0;
+        for (long due = start; due < end; due += intervalNanos) {
+            long wait = due - System.nanoTime();
+            if (wait > 50_000)
+                LockSupport.parkNanos(wait);
+            while (System.nanoTime() < due)
+                Thread.onSpinWait();
+            senders[(int) (sent % senders.length)].send(nextQuery(), due);
+            sent++;
+        }
+
+        Thread.sleep(DRAIN_MILLIS);
+        for (Sender sender : senders)
+            sender.close();
+        return sent;
+    }
+
+    /**
+     * @return a hot name picked with the Zipf distribution, or a name that has never been asked for
+     */
+    private byte[] nextQuery() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() >= hitShare)
+            return buildQuery("miss" + (missCount++) + "-" + runId + ".load.test");
+
+        int rank = Arrays.binarySearch(zipfCdf, random.nextDouble());
+        return hotQueries[Math.min(rank < 0 ? -rank - 1 : rank, hotQueries.length - 1)];
+    }
+
+    private static byte[] buildQuery(String name) {
+        DNSQuestion question = DNSQuestion.buildQuestion(DomainName.fromString(name), DNSRecord.TYPE_A, 1);
+        return DNSMessage.buildQuery(question, (short) 0).toBytes();
+    }
+
+    /**
+     * @return the throughput and latency of the run
+     */
+    public String report(long sent, int seconds) {
+        return String.format("""
+                        sent: %d, answered: %d (%d errors, %d truncated), lost: %d
+                        throughput: %.0f answers/s
+                        latency: %s""",
+                sent, answered.sum(), errors.sum(), truncated.sum(), lost.sum(),
+                (double) answered.sum() / Math.max(1, seconds), latency.summary());
+    }
+
+    /**
+     * One client socket, with the thread that reads its answers. Each query gets the next transaction ID, which is
+     * how its answer is matched back to the time it was due.
+     */
+    private class Sender implements Runnable {
+        private final DatagramChannel channel;
+        private final AtomicLongArray dueTimes = new AtomicLongArray(MAX_IDS);
+        private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(DNSMessage.MAX_MESSAGE_SIZE);
+        private final Thread reader;
+        private int nextId;
+
+        Sender(InetSocketAddress server, int index) throws IOException {
+            this.channel = DatagramChannel.open();
+            channel.connect(server);
+            this.reader = new Thread(this, "load-reader-" + index);
+            reader.setDaemon(true);
+        }
+
+        void start() {
+            reader.start();
+        }
+
+        void send(byte[] query, long dueNanos) {
+            int id = nextId++ & (MAX_IDS - 1);
+            if (dueTimes.getAndSet(id, dueNanos) != 0)
+                lost.increment(); // the query that last had this ID was never answered
+            sendBuffer.clear();
+            sendBuffer.put(query);
+            sendBuffer.putShort(0, (short) id);
+            sendBuffer.flip();
+            try {
+                channel.write(sendBuffer);
+            }
+            catch (IOException ioe) {
+                dueTimes.set(id, 0);
+                lost.increment();
+            }
+        }
+
+        /**
+         * The read loop
+         */
+        @Override
+        public void run() {
+            ByteBuffer buf = ByteBuffer.allocateDirect(DNSMessage.MAX_MESSAGE_SIZE);
+            while (channel.isOpen()) {
+                try {
+                    buf.clear();
+                    channel.read(buf);
+                    long now = System.nanoTime();
+                    if (buf.position() < 12)
+                        continue;
+                    long due = dueTimes.getAndSet(buf.getShort(0) & 0xffff, 0);
+                    if (due == 0)
+                        continue; // a duplicate, or an answer that came in after its ID was reused
+                    latency.record(now - due);
+                    answered.increment();
+                    if ((buf.get(3) & 0x0f) != DNSHeader.RCODE_NOERROR)
+                        errors.increment();
+                    if ((buf.get(2) & 0x02) != 0)
+                        truncated.increment();
+                }
+                catch (IOException ioe) {
+                    // closed at the end of the run, or the server is not up (yet)
+                }
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            }
+            catch (IOException ignored) {
+                // nothing left to do with it
+            }
+            for (int id = 0; id < MAX_IDS; id++)
+                if (dueTimes.getAndSet(id, 0) != 0)
+                    lost.increment();
+        }
+    }
+}
@@ -0,0 +1,652 @@
+package dnsresolver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Names we answer ourselves, with authority, before looking in the cache, e.g. internal service names the upstream
+ * has never heard of. They are loaded from a file that may mix hosts file lines and zone file lines:
+ * <pre>
+ *   10.0.0.5        build.corp.example build       # address, then names (the first one also gets a PTR record)
+ *   $ORIGIN corp.example.
+ *   $TTL 60
+ *   wiki            IN A     10.0.0.6              ; relative names are under the $ORIGIN
+ *   docs       300  IN CNAME wiki
+ *   _ldap._tcp      IN SRV   0 0 389 dc1
+ * </pre>
+ * Supported types are A, AAAA, CNAME, PTR, NS, MX, TXT, SRV and SOA, one record per line.
+ * <p>
+ * The file is compiled into an immutable index: every answer is encoded once, up front, and a lookup is a probe of an
+ * open-addressing table keyed on the question's hash, which takes no lock and allocates nothing. A name that is here
+ * answers types it has no records of with NODATA rather than going upstream, with the zone's SOA (or a made-up one
+ * for names from a hosts file) in the authority section so the requester can cache it (RFC 2308 3), and a CNAME is
+ * followed through the local names. A watcher thread rebuilds the index whenever the file changes and swaps it in with a single volatile
+ * write, so requests never wait for a reload; if the new file does not parse, the old index stays.
+ */
+public final class LocalZone {
+
+    // Turn on with -Ddns.localData=PATH. Records that give no TTL get -Ddns.localData.ttl=N (seconds)
+    private static final String DATA_FILE = System.getProperty("dns.localData");
+    private static final long DEFAULT_TTL = Long.getLong("dns.localData.ttl", 300);
+    private static final long RELOAD_DELAY_MILLIS = 200; // lets whoever is writing the file finish first
+
+    private static final int CLASS_IN = 1;
+    private static final int ANY_OTHER_TYPE = 0; // the key of a name's answer to the types it has no records of
+    private static final int MAX_CNAME_CHAIN = 8;
+    private static final DNSRecord[] NO_RECORDS = new DNSRecord[0];
+
+    private static final Map<String, Integer> TYPES = Map.of(
+            "A", DNSRecord.TYPE_A, "AAAA", DNSRecord.TYPE_AAAA, "CNAME", DNSRecord.TYPE_CNAME,
+            "PTR", DNSRecord.TYPE_PTR, "NS", DNSRecord.TYPE_NS, "MX", DNSRecord.TYPE_MX,
+            "TXT", DNSRecord.TYPE_TXT, "SRV", DNSRecord.TYPE_SRV, "SOA", DNSRecord.TYPE_SOA);
+
+    private static volatile LocalZone current; // null until a file has loaded
+
+    private final int[] hashes;
+    private final Answer[] answers;
+    private final int mask;
+    private final int nameCount;
+
+    /**
+     * A pre-encoded response: header, question and answers, without the additional section. Only the transaction
+     * ID, flags, question and additional section differ from one request to the next.
+     */
+    public static final class Answer {
+        private final DomainName name;
+        private final int qType;
+        private final int rCode;
+        private final byte[] bytes;
+
+        private Answer(DomainName name, int qType, int rCode, DNSRecord[] records) {
+            this(name, qType, rCode, records, NO_RECORDS);
+        }
+
+        private Answer(DomainName name, int qType, int rCode, DNSRecord[] records, DNSRecord[] authorityRecords) {
+            this.name = name;
+            this.qType = qType;
+            this.rCode = rCode;
+            DNSQuestion question = DNSQuestion.buildQuestion(name, qType, CLASS_IN);
+            this.bytes = DNSMessage.buildResponse(DNSMessage.buildQuery(question, (short) 0), rCode, records,
+                                                  authorityRecords).toBytes();
+        }
+
+        /**
+         * Write the response to a request: copy the pre-encoded bytes, patch in the request's transaction ID, flags
+         * and question (its spelling of the name, and its type, which for a NODATA answer may be any), and append
+         * our OPT record if the request used EDNS
+         * @param request the DNS request message; must have exactly one question, the one this answers
+         * @param out the buffer to write into; cleared first and flipped afterwards
+         * @return the same buffer, ready to be sent
+         */
+        public ByteBuffer writeResponse(DNSMessage request, ByteBuffer out) {
+            DNSQuestion question = request.getQuestions()[0];
+            DomainName requestName = question.getName();
+
+            out.clear();
+            out.put(bytes);
+
+            DNSHeader reqHeader = request.getHeader();
+            out.putShort(0, reqHeader.getId());
+            out.put(2, (byte) (0x84 | (reqHeader.getOpCode() << 3) | reqHeader.getRd())); // qr = aa = 1, tc = 0
+            out.put(12, requestName.getWire()); // same length: the names only differ in case
+            out.putShort(12 + requestName.getWireLength(), (short) question.getQType());
+
+            CachedResponse.writeAdditionalRecords(request, out);
+            out.flip();
+            return out;
+        }
+
+        public int getRCode() {
+            return rCode;
+        }
+    }
+
+    private LocalZone(List<Answer> answerList, int nameCount) {
+        int size = Integer.highestOneBit(Math.max(2, 2 * answerList.size()) - 1) << 1; // at most half full
+        this.hashes = new int[size];
+        this.answers = new Answer[size];
+        this.mask = size - 1;
+        this.nameCount = nameCount;
+        for (Answer answer : answerList) {
+            int hash = hash(answer.name, answer.qType);
+            int slot = spread(hash) & mask;
+            while (answers[slot] != null)
+                slot = (slot + 1) & mask;
+            hashes[slot] = hash;
+            answers[slot] = answer;
+        }
+    }
+
+    /**
+     * Load the configured file, if there is one, and start watching it for changes. A file that does not exist yet
+     * is picked up once it is created.
+     */
+    public static void start() {
+        if (DATA_FILE == null)
+            return;
+
+        Path file = Paths.get(DATA_FILE).toAbsolutePath();
+        reload(file);
+
+        Thread watcher = new Thread(() -> watch(file), "dns-local-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * @param question a question from a request
+     * @return our answer to it, or null if the name is not one of ours (or no local data is loaded)
+     */
+    public static Answer lookup(DNSQuestion question) {
+        LocalZone zone = current;
+        return zone == null ? null : zone.find(question);
+    }
+
+    /**
+     * @return how many names the local data currently holds
+     */
+    public static int getLocalNameCount() {
+        LocalZone zone = current;
+        return zone == null ? 0 : zone.nameCount;
+    }
+
+    /**
+     * @param question a question from a request
+     * @return the answer to it, or null if the name is not in this index
+     */
+    public Answer find(DNSQuestion question) {
+        if (question.getQClass() != CLASS_IN)
+            return null;
+        Answer answer = find(question.getName(), question.getQType());
+        return answer != null ? answer : find(question.getName(), ANY_OTHER_TYPE);
+    }
+
+    private Answer find(DomainName name, int qType) {
+        int hash = hash(name, qType);
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            Answer answer = answers[slot];
+            if (answer == null)
+                return null;
+            if (hashes[slot] == hash && answer.qType == qType && answer.name.equals(name))
+                return answer;
+        }
+    }
+
+    /**
+     * @return the number of names in this index
+     */
+    public int getNameCount() {
+        return nameCount;
+    }
+
+    private static int hash(DomainName name, int qType) {
+        return name.hashCode() * 31 + qType; // the same as DNSQuestion's
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Load the file and swap the new index in, keeping the old one if it cannot be loaded
+     */
+    private static void reload(Path file) {
+        try {
+            long start = System.nanoTime();
+            LocalZone zone = load(file);
+            current = zone;
+            System.out.println("Loaded " + zone.nameCount + " local names from " + file + " in "
+                               + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        }
+        catch (NoSuchFileException nsfe) {
+            System.out.println("No local data at " + file + " yet.");
+        }
+        catch (IOException ioe) {
+            System.out.println("Local data " + file + " cannot be loaded"
+                               + (current != null ? ", keeping the old data: " : ": ") + ioe.getMessage());
+        }
+        catch (RuntimeException re) { // a parser bug must not take startup or the watcher thread down either
+            System.out.println("Something's wrong with loading local data " + file
+                               + (current != null ? ", keeping the old data: " : ": ") + re);
+        }
+    }
+
+    /**
+     * Watch the file's directory, and reload the file whenever it is written, created, or moved into place
+     */
+    private static void watch(Path file) {
+        try (WatchService watcher = file.getFileSystem().newWatchService()) {
+            file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                      StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true) {
+                if (!isAbout(watcher.take(), file))
+                    continue;
+                // a file is usually written in several steps: wait for them, and for the events they raise
+                Thread.sleep(RELOAD_DELAY_MILLIS);
+                for (WatchKey more = watcher.poll(); more != null; more = watcher.poll())
+                    isAbout(more, file);
+                reload(file);
+            }
+        }
+        catch (IOException ioe) {
+            System.out.println("Local data " + file + " cannot be watched, changes need a restart: "
+                               + ioe.getMessage());
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            // shutting down
+        }
+    }
+
+    /**
+     * Take a key's events and ready it for more
+     * @return true if any of them may be about the file
+     */
+    private static boolean isAbout(WatchKey key, Path file) {
+        boolean about = false;
+        for (WatchEvent<?> event : key.pollEvents())
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context()))
+                about = true;
+        key.reset();
+        return about;
+    }
+
+    /**
+     * Read a hosts or zone file and compile it into an index
+     * @param file the file
+     * @return the index
+     * @throws IOException if the file cannot be read, or a line of it cannot be parsed
+     */
+    public static LocalZone load(Path file) throws IOException {
+        return compile(readRecords(file));
+    }
+
+    /**
+     * Read a hosts or zone file
+     * @param file the file
+     * @return its records, grouped by name and then by type, in file order
+     * @throws IOException if the file cannot be read, or a line of it cannot be parsed
+     */
+    static Map<DomainName, Map<Integer, List<DNSRecord>>> readRecords(Path file) throws IOException {
+        Map<DomainName, Map<Integer, List<DNSRecord>>> names = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+            Parser parser = new Parser(names);
+            String line;
+            while ((line = reader.readLine()) != null)
+                parser.parseLine(line);
+        }
+        return names;
+    }
+
+    /**
+     * Encode the answer to every question the names can be asked: each type a name has records of, its CNAME if it
+     * has one, and any other type. The NODATA answers to other types carry an SOA, so that downstream resolvers can
+     * cache them (RFC 2308 5).
+     */
+    private static LocalZone compile(Map<DomainName, Map<Integer, List<DNSRecord>>> names) {
+        List<Answer> answers = new ArrayList<>();
+        for (Map.Entry<DomainName, Map<Integer, List<DNSRecord>>> entry : names.entrySet()) {
+            DomainName name = entry.getKey();
+            Map<Integer, List<DNSRecord>> rrSets = entry.getValue();
+            List<DNSRecord> cname = rrSets.get(DNSRecord.TYPE_CNAME);
+            if (cname == null) {
+                for (Map.Entry<Integer, List<DNSRecord>> rrSet : rrSets.entrySet())
+                    answers.add(new Answer(name, rrSet.getKey(), DNSHeader.RCODE_NOERROR,
+                                           rrSet.getValue().toArray(NO_RECORDS)));
+                answers.add(new Answer(name, ANY_OTHER_TYPE, DNSHeader.RCODE_NOERROR, NO_RECORDS,
+                                       negativeSoa(names, name))); // NODATA
+                continue;
+            }
+
+            // A name with a CNAME has no other records (RFC 1034 3.6.2): any others are ignored. Follow the chain
+            // as far as it goes through local names, and answer the types its end has with the whole chain
+            List<DNSRecord> chain = new ArrayList<>();
+            chain.add(cname.get(0));
+            Map<Integer, List<DNSRecord>> target = names.get(cname.get(0).getRDataName());
+            while (target != null && target.containsKey(DNSRecord.TYPE_CNAME) && chain.size() < MAX_CNAME_CHAIN) {
+                DNSRecord next = target.get(DNSRecord.TYPE_CNAME).get(0);
+                chain.add(next);
+                target = names.get(next.getRDataName());
+            }
+            if (target != null && !target.containsKey(DNSRecord.TYPE_CNAME)) {
+                for (Map.Entry<Integer, List<DNSRecord>> rrSet : target.entrySet()) {
+                    List<DNSRecord> records = new ArrayList<>(chain);
+                    records.addAll(rrSet.getValue());
+                    answers.add(new Answer(name, rrSet.getKey(), DNSHeader.RCODE_NOERROR,
+                                           records.toArray(NO_RECORDS)));
+                }
+            }
+            answers.add(new Answer(name, DNSRecord.TYPE_CNAME, DNSHeader.RCODE_NOERROR,
+                                   new DNSRecord[] {cname.get(0)}));
+            // NODATA if the chain ends at a local name; if it leads out of the local data, the requester follows it
+            DNSRecord[] authorityRecords = target != null && !target.containsKey(DNSRecord.TYPE_CNAME)
+                                           ? negativeSoa(names, chain.get(chain.size() - 1).getRDataName())
+                                           : NO_RECORDS;
+            answers.add(new Answer(name, ANY_OTHER_TYPE, DNSHeader.RCODE_NOERROR, chain.toArray(NO_RECORDS),
+                                   authorityRecords));
+        }
+        return new LocalZone(answers, names.size());
+    }
+
+    /**
+     * The SOA for a negative answer about a local name: that of the closest zone above or at it that has one in the
+     * file, or one made up for the name itself, e.g. for names from hosts lines. Its TTL is the negative TTL, the
+     * smaller of its own and its MINIMUM field.
+     * @return the authority section of the negative answer
+     */
+    private static DNSRecord[] negativeSoa(Map<DomainName, Map<Integer, List<DNSRecord>>> names, DomainName name) {
+        for (DomainName zone = name; ; zone = zone.parent()) {
+            Map<Integer, List<DNSRecord>> rrSets = names.get(zone);
+            List<DNSRecord> soa = rrSets != null ? rrSets.get(DNSRecord.TYPE_SOA) : null;
+            if (soa != null) {
+                DNSRecord record = soa.get(0);
+                long negativeTtl = Math.min(record.getTtl(), record.getSoaMinimum());
+                return new DNSRecord[] {DNSRecord.buildLocalRecord(zone, DNSRecord.TYPE_SOA, negativeTtl,
+                                                                   record.getRData())};
+            }
+            if (zone.isRoot())
+                break;
+        }
+
+        ByteBuffer rData = ByteBuffer.allocate(2 * DomainName.MAX_LENGTH + 20);
+        DomainName.fromString("localhost").writeUncompressed(rData);      // mName
+        DomainName.fromString("nobody.invalid").writeUncompressed(rData); // rName
+        rData.putInt(1).putInt(3600).putInt(600).putInt(86400);           // serial, refresh, retry, expire
+        rData.putInt((int) DEFAULT_TTL);                                  // minimum
+        return new DNSRecord[] {DNSRecord.buildLocalRecord(name, DNSRecord.TYPE_SOA, DEFAULT_TTL,
+                                                           Arrays.copyOf(rData.array(), rData.position()))};
+    }
+
+    /**
+     * Turns the lines of a hosts or zone file into records, grouped by name and then by type, in file order
+     */
+    private static class Parser {
+        private final Map<DomainName, Map<Integer, List<DNSRecord>>> names;
+        private int lineNumber;
+        private DomainName origin;
+        private long ttl = DEFAULT_TTL;
+        private DomainName lastOwner;
+
+        Parser(Map<DomainName, Map<Integer, List<DNSRecord>>> names) {
+            this.names = names;
+        }
+
+        void parseLine(String line) throws IOException {
+            lineNumber++;
+            List<String> tokens = tokenize(line);
+            if (tokens.isEmpty())
+                return;
+
+            try {
+                String first = tokens.get(0);
+                if (first.equalsIgnoreCase("$ORIGIN"))
+                    origin = DomainName.fromString(argument(tokens));
+                else if (first.equalsIgnoreCase("$TTL"))
+                    ttl = parseTtl(argument(tokens));
+                else if (first.startsWith("$"))
+                    throw error(first + " is not supported");
+                else if (parseAddress(first) != null)
+                    parseHostsLine(tokens);
+                else if (Character.isWhitespace(line.charAt(0)))
+                    parseRecord(lastOwner, tokens, 0); // the owner is the previous record's
+                else
+                    parseRecord(lastOwner = name(first), tokens, 1);
+            }
+            catch (IllegalArgumentException iae) {
+                throw error(iae.getMessage());
+            }
+        }
+
+        /**
+         * An address and the names that have it
+         */
+        private void parseHostsLine(List<String> tokens) throws IOException {
+            byte[] address = parseAddress(tokens.get(0));
+            int rType = address.length == 4 ? DNSRecord.TYPE_A : DNSRecord.TYPE_AAAA;
+            if (tokens.size() < 2)
+                throw error("no names for " + tokens.get(0));
+            for (int i = 1; i < tokens.size(); i++)
+                add(DomainName.fromString(tokens.get(i)), rType, ttl, address);
+            add(reverseName(address), DNSRecord.TYPE_PTR, ttl, wire(DomainName.fromString(tokens.get(1))));
+        }
+
+        /**
+         * A zone file record: [TTL] [class] type rData, the TTL and class in either order
+         * @param owner the owner name
+         * @param index where the TTL, class or type is in the tokens
+         */
+        private void parseRecord(DomainName owner, List<String> tokens, int index) throws IOException {
+            if (owner == null)
+                throw error("no owner name");
+            long recordTtl = ttl;
+            for (int i = 0; i < 2 && index < tokens.size(); i++) {
+                String token = tokens.get(index);
+                if (Character.isDigit(token.charAt(0))) {
+                    recordTtl = parseTtl(token);
+                    index++;
+                }
+                else if (token.equalsIgnoreCase("IN")) {
+                    index++;
+                }
+            }
+            if (index >= tokens.size())
+                throw error("no record type");
+            Integer rType = TYPES.get(tokens.get(index).toUpperCase(Locale.ROOT));
+            if (rType == null)
+                throw error("record type " + tokens.get(index) + " is not supported");
+            List<String> data = tokens.subList(index + 1, tokens.size());
+            add(owner, rType, recordTtl, parseRData(rType, data));
+        }
+
+        private byte[] parseRData(int rType, List<String> data) throws IOException {
+            if (data.isEmpty())
+                throw error("no record data");
+            ByteBuffer rData = ByteBuffer.allocate(DNSMessage.MAX_MESSAGE_SIZE);
+            switch (rType) {
+                case DNSRecord.TYPE_A, DNSRecord.TYPE_AAAA -> {
+                    byte[] address = parseAddress(data.get(0));
+                    if (address == null || (address.length == 4) != (rType == DNSRecord.TYPE_A))
+                        throw error(data.get(0) + " is not an " + (rType == DNSRecord.TYPE_A ? "IPv4" : "IPv6")
+                                    + " address");
+                    rData.put(address);
+                }
+                case DNSRecord.TYPE_CNAME, DNSRecord.TYPE_PTR, DNSRecord.TYPE_NS ->
+                        name(data.get(0)).writeUncompressed(rData);
+                case DNSRecord.TYPE_MX -> {
+                    expect(data, 2);
+                    rData.putShort((short) parseNumber(data.get(0), 0xffff));
+                    name(data.get(1)).writeUncompressed(rData);
+                }
+                case DNSRecord.TYPE_SOA -> {
+                    expect(data, 7);
+                    name(data.get(0)).writeUncompressed(rData); // mName
+                    name(data.get(1)).writeUncompressed(rData); // rName
+                    for (int i = 2; i < 7; i++) // serial, refresh, retry, expire, minimum
+                        rData.putInt((int) parseNumber(data.get(i), 0xffffffffL));
+                }
+                case DNSRecord.TYPE_SRV -> {
+                    expect(data, 4);
+                    for (int i = 0; i < 3; i++) // priority, weight, port
+                        rData.putShort((short) parseNumber(data.get(i), 0xffff));
+                    name(data.get(3)).writeUncompressed(rData);
+                }
+                default -> { // TXT: one or more strings
+                    for (String string : data) {
+                        if (string.startsWith("\"")) {
+                            if (string.length() < 2 || !string.endsWith("\""))
+                                throw error("unclosed quote in TXT string " + string);
+                            string = string.substring(1, string.length() - 1);
+                        }
+                        byte[] bytes = string.getBytes(StandardCharsets.ISO_8859_1);
+                        if (bytes.length > 255)
+                            throw error("TXT string longer than 255 bytes");
+                        rData.put((byte) bytes.length).put(bytes);
+                    }
+                }
+            }
+            return Arrays.copyOf(rData.array(), rData.position());
+        }
+
+        private void add(DomainName owner, int rType, long recordTtl, byte[] rData) {
+            List<DNSRecord> rrSet = names.computeIfAbsent(owner, name -> new LinkedHashMap<>())
+                                         .computeIfAbsent(rType, type -> new ArrayList<>());
+            for (DNSRecord record : rrSet)
+                if (Arrays.equals(record.getRData(), rData))
+                    return; // e.g. the same name on two hosts lines with the same address
+            rrSet.add(DNSRecord.buildLocalRecord(owner, rType, recordTtl, rData));
+        }
+
+        /**
+         * @return the name, under the $ORIGIN unless it ends in a dot ("@" is the $ORIGIN itself)
+         */
+        private DomainName name(String token) throws IOException {
+            if (token.equals("@")) {
+                if (origin == null)
+                    throw error("@ without an $ORIGIN");
+                return origin;
+            }
+            if (token.endsWith(".") || origin == null)
+                return DomainName.fromString(token);
+            return origin.isRoot() ? DomainName.fromString(token) : DomainName.fromString(token + "." + origin);
+        }
+
+        private String argument(List<String> tokens) throws IOException {
+            expect(tokens, 2);
+            return tokens.get(1);
+        }
+
+        private void expect(List<String> tokens, int count) throws IOException {
+            if (tokens.size() < count)
+                throw error("expected " + count + " fields");
+        }
+
+        private long parseTtl(String token) throws IOException {
+            return parseNumber(token, 0x7fffffffL); // RFC 2181 8
+        }
+
+        private long parseNumber(String token, long max) throws IOException {
+            try {
+                long number = Long.parseLong(token);
+                if (number >= 0 && number <= max)
+                    return number;
+            }
+            catch (NumberFormatException ignored) {
+                // reported below
+            }
+            throw error(token + " is not a number from 0 to " + max);
+        }
+
+        private IOException error(String message) {
+            return new IOException("line " + lineNumber + ": " + message);
+        }
+    }
+
+    /**
+     * Split a line into fields at whitespace, leaving out the comment (from a ';' or '#' outside quotes). A quoted
+     * string is one field, quotes included.
+     */
+    private static List<String> tokenize(String line) {
+        List<String> tokens = new ArrayList<>();
+        int index = 0;
+        while (index < line.length()) {
+            char c = line.charAt(index);
+            if (Character.isWhitespace(c)) {
+                index++;
+            }
+            else if (c == ';' || c == '#') {
+                break;
+            }
+            else {
+                int start = index;
+                if (c == '"') {
+                    int close = line.indexOf('"', index + 1);
+                    index = close < 0 ? line.length() : close + 1;
+                }
+                while (index < line.length() && !Character.isWhitespace(line.charAt(index)))
+                    index++;
+                tokens.add(line.substring(start, index));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * @return the bytes of an IPv4 or IPv6 address literal, or null if the token is not one. Never does a lookup.
+     */
+    private static byte[] parseAddress(String token) {
+        if (token.indexOf(':') < 0)
+            return parseIPv4(token);
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c != ':' && c != '.' && Character.digit(c, 16) < 0)
+                return null; // not a literal, and InetAddress would go and resolve it
+        }
+        try {
+            return InetAddress.getByName(token).getAddress(); // an IPv4-mapped address comes back as 4 bytes
+        }
+        catch (UnknownHostException uhe) {
+            return null;
+        }
+    }
+
+    private static byte[] parseIPv4(String token) {
+        String[] parts = token.split("\\.", -1);
+        if (parts.length != 4)
+            return null;
+        byte[] address = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            String part = parts[i];
+            if (part.isEmpty() || part.length() > 3)
+                return null;
+            int value = 0;
+            for (int k = 0; k < part.length(); k++) {
+                int digit = Character.digit(part.charAt(k), 10);
+                if (digit < 0)
+                    return null;
+                value = 10 * value + digit;
+            }
+            if (value > 255)
+                return null;
+            address[i] = (byte) value;
+        }
+        return address;
+    }
+
+    /**
+     * @return the name a PTR record for the address lives at, e.g. 5.0.0.10.in-addr.arpa for 10.0.0.5
+     */
+    private static DomainName reverseName(byte[] address) {
+        StringBuilder name = new StringBuilder();
+        for (int i = address.length - 1; i >= 0; i--) {
+            if (address.length == 4)
+                name.append(address[i] & 0xff).append('.');
+            else
+                name.append(Character.forDigit(address[i] & 0xf, 16)).append('.')
+                    .append(Character.forDigit((address[i] >> 4) & 0xf, 16)).append('.');
+        }
+        return DomainName.fromString(name.append(address.length == 4 ? "in-addr.arpa" : "ip6.arpa").toString());
+    }
+
+    private static byte[] wire(DomainName name) {
+        return name.getWire().clone();
+    }
+}
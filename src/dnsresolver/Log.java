@@ -0,0 +1,10 @@
+package dnsresolver;
+
+/**
+ * Console logging switches. Per-request logging is synchronous console I/O on the hot path, so it is off by
+ * default; turn it on with -Ddns.verbose=true when debugging.
+ */
+public class Log {
+
+    public static final boolean VERBOSE = Boolean.getBoolean("dns.verbose");
+}
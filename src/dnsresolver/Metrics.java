@@ -0,0 +1,165 @@
+package dnsresolver;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Server-wide counters and latency histograms. Everything here is lock-free, so it is cheap to update on every
+ * request. The stats can be dumped to the console periodically (-Ddns.stats.intervalSeconds, 0 to turn off)
+ * and served as plain text at http://127.0.0.1:PORT/stats (-Ddns.stats.port, off by default).
+ */
+public class Metrics {
+
+    private static final long DUMP_INTERVAL_SECONDS = Long.getLong("dns.stats.intervalSeconds", 60);
+    private static final int STATS_PORT = Integer.getInteger("dns.stats.port", 0);
+
+    public static final LongAdder requests = new LongAdder();
+    public static final LongAdder malformedRequests = new LongAdder();
+    public static final LongAdder droppedRequests = new LongAdder(); // shed because the worker queue was full
+    public static final LongAdder staleRequests = new LongAdder();   // shed because they waited too long in the queue
+    public static final LongAdder throttledRequests = new LongAdder();
+    public static final LongAdder refusedResponses = new LongAdder();
+    public static final LongAdder truncatedResponses = new LongAdder();
+    public static final LongAdder localAnswers = new LongAdder();
+    public static final LongAdder udpBatches = new LongAdder();
+    public static final LongAdder udpBatchedRequests = new LongAdder();
+    public static final LongAdder udpDroppedReplies = new LongAdder();
+    public static final LongAdder tcpRequests = new LongAdder();
+    public static final LongAdder tcpConnections = new LongAdder();
+    public static final LongAdder tcpRejectedConnections = new LongAdder();
+    public static final LongAdder upstreamTimeouts = new LongAdder();
+    public static final LongAdder upstreamErrors = new LongAdder();
+    public static final LongAdder mismatchedReplies = new LongAdder(); // right ID, wrong question: dropped
+
+    public static final LatencyHistogram decodeTime = new LatencyHistogram();
+    public static final LatencyHistogram encodeTime = new LatencyHistogram();
+    public static final LatencyHistogram upstreamRtt = new LatencyHistogram();
+
+    private static volatile IntSupplier queueDepth = () -> 0;
+    private static volatile InFlightQueries inFlightQueries;
+    private static volatile UpstreamClient upstreamClient;
+    private static volatile IterativeResolver iterativeResolver;
+
+    /**
+     * @param gauge reports how many requests are waiting in the worker queue
+     */
+    public static void setQueueDepthGauge(IntSupplier gauge) {
+        queueDepth = gauge;
+    }
+
+    /**
+     * @param queries the single-flight table whose counters should be reported
+     */
+    public static void setInFlightQueries(InFlightQueries queries) {
+        inFlightQueries = queries;
+    }
+
+    /**
+     * @param client the upstream client whose per-upstream state and counters should be reported
+     */
+    public static void setUpstreamClient(UpstreamClient client) {
+        upstreamClient = client;
+    }
+
+    /**
+     * @param resolver the iterative resolver whose counters should be reported (null when forwarding)
+     */
+    public static void setIterativeResolver(IterativeResolver resolver) {
+        iterativeResolver = resolver;
+    }
+
+    /**
+     * Start the periodic console dump and the stats endpoint, as configured
+     * @throws IOException if the stats endpoint cannot be opened
+     */
+    public static void start() throws IOException {
+        if (DUMP_INTERVAL_SECONDS > 0) {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "dns-stats-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleAtFixedRate(() -> System.out.println(report()), DUMP_INTERVAL_SECONDS,
+                                       DUMP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+
+        if (STATS_PORT > 0) {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), STATS_PORT), 0);
+            server.createContext("/stats", exchange -> {
+                byte[] body = report().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start(); // the endpoint's thread is not a daemon, but the server never exits on its own anyway
+            System.out.println("Stats are up on http://127.0.0.1:" + STATS_PORT + "/stats");
+        }
+    }
+
+    /**
+     * @return a human-readable snapshot of every counter and histogram
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder("=== DNS server stats ===\n");
+        report.append("requests: ").append(requests.sum())
+              .append(", malformed: ").append(malformedRequests.sum())
+              .append(", queue depth: ").append(queueDepth.getAsInt()).append('\n');
+        report.append("overload: ").append(droppedRequests.sum()).append(" shed on a full queue, ")
+              .append(staleRequests.sum()).append(" shed after waiting too long, ")
+              .append(throttledRequests.sum()).append(" throttled, ")
+              .append(refusedResponses.sum()).append(" answered REFUSED\n");
+        long batches = udpBatches.sum();
+        report.append("udp: ").append(udpBatchedRequests.sum()).append(" requests in ").append(batches)
+              .append(String.format(" batches (%.1f per batch), ",
+                                    batches == 0 ? 0.0 : (double) udpBatchedRequests.sum() / batches))
+              .append(udpDroppedReplies.sum()).append(" replies dropped on a full socket buffer\n");
+        report.append("tcp: ").append(tcpRequests.sum()).append(" requests over ")
+              .append(tcpConnections.sum()).append(" connections (").append(tcpRejectedConnections.sum())
+              .append(" rejected), ").append(truncatedResponses.sum()).append(" truncated udp responses\n");
+        report.append("local: ").append(localAnswers.sum()).append(" answered from ")
+              .append(LocalZone.getLocalNameCount()).append(" local names\n");
+        report.append("cache: ").append(DNSCache.getHits()).append(" hits, ")
+              .append(DNSCache.getNegativeHits()).append(" negative hits, ")
+              .append(DNSCache.getMisses()).append(" misses (").append(DNSCache.getExpired()).append(" expired), ")
+              .append(String.format("hit ratio %.3f, negative hit ratio %.3f, ",
+                                    DNSCache.getHitRatio(), DNSCache.getNegativeHitRatio()))
+              .append(DNSCache.size()).append(" entries, ").append(DNSCache.sizeInBytes()).append(" bytes");
+        if (DNSCache.isTinyLfu())
+            report.append(", ").append(DNSCache.getAdmissionRejections()).append(" rejected by admission");
+        report.append('\n');
+        report.append("prefetch: ").append(DNSCache.getPrefetchesStarted()).append(" started, ")
+              .append(DNSCache.getPrefetchesSkipped()).append(" skipped, ")
+              .append(DNSCache.getPrefetchesFailed()).append(" failed, ")
+              .append(DNSCache.getPrefetchesInFlight()).append(" in flight\n");
+        InFlightQueries queries = inFlightQueries;
+        if (queries != null)
+            report.append("upstream: ").append(queries.getUpstreamQueries()).append(" queries, ")
+                  .append(queries.getCoalescedQueries()).append(" coalesced, ")
+                  .append(upstreamTimeouts.sum()).append(" timeouts, ")
+                  .append(upstreamErrors.sum()).append(" errors, ")
+                  .append(mismatchedReplies.sum()).append(" replies to other questions dropped\n");
+        IterativeResolver resolver = iterativeResolver;
+        if (resolver != null)
+            report.append("iterative: ").append(resolver.summary()).append('\n');
+        report.append("upstream rtt: ").append(upstreamRtt.summary()).append('\n');
+        UpstreamClient client = upstreamClient;
+        if (client != null)
+            for (Upstream upstream : client.getUpstreams())
+                report.append("  ").append(upstream.summary()).append('\n');
+        report.append("decode: ").append(decodeTime.summary()).append('\n');
+        report.append("encode: ").append(encodeTime.summary()).append('\n');
+        return report.toString();
+    }
+}
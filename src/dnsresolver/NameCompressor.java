@@ -0,0 +1,407 @@
+package dnsresolver;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Domain name compression (RFC 1035 4.1.4) for the message being encoded. Every suffix of every name written is
+ * remembered with its offset, e.g. "www.example.com", "example.com" and "com", so that a later name ending the same
+ * way goes out as its own first labels and a pointer to the rest. The longest suffix already in the message is the
+ * one used, which gives the smallest encoding pointers allow.
+ * Most names in a response are a name written just before, e.g. the owners of an RRset, or one label more than one,
+ * e.g. the NS and MX targets under the question name, or the end of the question name, e.g. the zone of an SOA
+ * record. Those are tried first, by comparing their bytes: the hash of a name one label over a recent one follows
+ * from the recent one's in a step, so only other names have their labels walked and every suffix hashed.
+ * Suffixes are kept in an open-addressing table of longs, each packing a hash of the suffix with its offset, and a
+ * hash match is confirmed against the bytes already in the message, ignoring case. A lookup builds no strings and
+ * allocates nothing. A compressor is reused from one message to the next: clear() it before each one.
+ */
+public final class NameCompressor {
+
+    private static final int MAX_POINTER_OFFSET = 0x3fff; // a pointer has 14 bits for the offset
+    private static final int MAX_LABELS = DomainName.MAX_LENGTH / 2;
+
+    // Each slot: generation (18 bits) | hash (32 bits) | offset (14 bits). A slot from an earlier generation, i.e.
+    // an earlier message, counts as empty, so clearing the table is a counter increment
+    private static final int OFFSET_BITS = 14, HASH_BITS = 32;
+    private static final int MAX_GENERATION = (1 << 18) - 1;
+
+    private long[] table = new long[64];
+    private int mask = table.length - 1;
+    private int count;
+    private long generation = 1;
+
+    // The last few whole names written, with where they are and their suffix hash, oldest replaced first
+    private static final int RECENT_NAMES = 8;
+    private final byte[][] recentWires = new byte[RECENT_NAMES][];
+    private final int[] recentStarts = new int[RECENT_NAMES];
+    private final int[] recentLengths = new int[RECENT_NAMES];
+    private final int[] recentOffsets = new int[RECENT_NAMES];
+    private final int[] recentHashes = new int[RECENT_NAMES];
+    private int recentCount, nextRecent;
+
+    // The last DomainName written, e.g. the question name and then each record's owner, which the next owner most
+    // often is: equals() tells, and mostly fails on the cached hash without comparing any bytes
+    private DomainName lastName;
+    private int lastNameOffset;
+    private int writtenAt; // where the name just written can be pointed to, or -1
+
+    // The first name in the message, normally the question, which is written whole: any name it ends in can point
+    // straight into it
+    private byte[] firstWire;
+    private int firstStart, firstEnd, firstOffset, firstLabels;
+    private final int[] firstLabelStarts = new int[MAX_LABELS];
+    private final int[] firstSuffixHashes = new int[MAX_LABELS];
+
+    // scratch for the name being written
+    private final int[] labelStarts = new int[MAX_LABELS];
+    private final int[] suffixHashes = new int[MAX_LABELS];
+
+    /**
+     * Forget every name, to start on a new message
+     */
+    public void clear() {
+        count = 0;
+        Arrays.fill(recentWires, 0, recentCount, null);
+        recentCount = 0;
+        nextRecent = 0;
+        lastName = null;
+        firstWire = null;
+        if (++generation > MAX_GENERATION) { // wrapped around: slots from long ago would look current again
+            Arrays.fill(table, 0);
+            generation = 1;
+        }
+    }
+
+    /**
+     * Write a domain name, compressed against the names already written
+     * @param out the buffer the message is being encoded into. The message must start at position 0,
+     *            since positions are used as compression offsets
+     * @param name the domain name
+     */
+    public void writeName(ByteBuffer out, DomainName name) {
+        if (name.equals(lastName)) {
+            out.putShort((short) (0xc000 | lastNameOffset));
+            return;
+        }
+        byte[] wire = name.getWire();
+        writeName(out, wire, 0, wire.length);
+        lastName = writtenAt >= 0 ? name : null;
+        lastNameOffset = writtenAt;
+    }
+
+    /**
+     * Write a domain name that sits uncompressed in an array, e.g. inside a record's rData
+     * @param out the buffer the message is being encoded into, starting at position 0
+     * @param wire the array holding the name
+     * @param start index of the name's first length octet
+     * @return the index just past the name in the array
+     */
+    public int writeName(ByteBuffer out, byte[] wire, int start) {
+        int index = start;
+        while (wire[index] != 0)
+            index += wire[index] + 1;
+        return writeName(out, wire, start, index + 1);
+    }
+
+    /**
+     * Write a domain name whose end is already known, e.g. one that runs to the end of a record's rData
+     * @param out the buffer the message is being encoded into, starting at position 0
+     * @param wire the array holding the name
+     * @param start index of the name's first length octet
+     * @param end the index just past the name in the array
+     * @return end
+     */
+    public int writeName(ByteBuffer out, byte[] wire, int start, int end) {
+        writtenAt = -1;
+        if (end - start == 1) {
+            out.put((byte) 0); // the root, which is shorter than any pointer
+            return end;
+        }
+        if (firstWire == null) {
+            int position = out.position();
+            int labels = writeSuffixes(out, wire, start, end, firstLabelStarts, firstSuffixHashes);
+            if (writtenAt >= 0) {
+                firstWire = wire;
+                firstStart = start;
+                firstEnd = end;
+                firstOffset = position;
+                firstLabels = labels;
+            }
+        }
+        else if (!writeFirstNameSuffix(out, wire, start, end) && !writeRecentName(out, wire, start, end)) {
+            writeSuffixes(out, wire, start, end, labelStarts, suffixHashes);
+        }
+        return end;
+    }
+
+    /**
+     * Write the name as a pointer into the first name in the message, if that ends in it, e.g. "example.com" after
+     * a question for "www.example.com"
+     * @return false if the first name does not end in this one, and nothing was written
+     */
+    private boolean writeFirstNameSuffix(ByteBuffer out, byte[] wire, int start, int end) {
+        byte[] first = firstWire;
+        int length = end - start;
+        int suffixStart = firstEnd - length;
+        if (suffixStart <= firstStart || first[suffixStart] != wire[start]
+            || !equalsIgnoreCase(first, suffixStart, wire, start, length))
+            return false;
+        for (int label = 1; label < firstLabels; label++) {
+            if (firstLabelStarts[label] == suffixStart) { // the bytes match, and they start on one of its labels
+                int pointer = firstOffset + suffixStart - firstStart;
+                if (pointer > MAX_POINTER_OFFSET)
+                    return false;
+                out.putShort((short) (0xc000 | pointer));
+                remember(wire, start, length, pointer, firstSuffixHashes[label]);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the name as a pointer to one of the recent names, if it is one, or else as its first label and a
+     * pointer to one, if the rest of it is one, e.g. "ns1.example.com" after "example.com". In that case the name
+     * could still be in the message, e.g. from before the recent names, so the table is asked for it first.
+     * @return false if neither the name nor the rest of it is a recent name, and nothing was written
+     */
+    private boolean writeRecentName(ByteBuffer out, byte[] wire, int start, int end) {
+        int length = end - start;
+        int labelLength = wire[start];
+        int restLength = length - labelLength - 1;
+        for (int i = 0; i < recentCount; i++) {
+            int recentLength = recentLengths[i];
+            if (recentLength == length) {
+                if (equalsIgnoreCase(wire, start, recentWires[i], recentStarts[i], length)) {
+                    out.putShort((short) (0xc000 | recentOffsets[i]));
+                    writtenAt = recentOffsets[i]; // where it was remembered from
+                    return true;
+                }
+            }
+            else if (recentLength == restLength
+                     && equalsIgnoreCase(wire, start + labelLength + 1, recentWires[i], recentStarts[i], restLength)) {
+                int hash = hashLabel(recentHashes[i], wire, start);
+                int pointer = find(out, hash, wire, start, recentOffsets[i]);
+                int position = out.position();
+                if (pointer >= 0) {
+                    out.putShort((short) (0xc000 | pointer));
+                    remember(wire, start, length, pointer, hash);
+                    return true;
+                }
+                out.put(wire, start, labelLength + 1);
+                out.putShort((short) (0xc000 | recentOffsets[i]));
+                if (position <= MAX_POINTER_OFFSET)
+                    add(hash, position);
+                remember(wire, start, length, position, hash);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the name against every suffix in the message, remembering each of its own suffixes that is written out
+     * @param starts filled with where each label of the name starts
+     * @param hashes filled with the hash of each suffix of the name, by the label it starts with
+     * @return the number of labels in the name
+     */
+    private int writeSuffixes(ByteBuffer out, byte[] wire, int start, int end, int[] starts, int[] hashes) {
+        int labels = 0;
+        for (int index = start; wire[index] != 0; index += wire[index] + 1)
+            starts[labels++] = index;
+
+        // hash each suffix from the right (see hashLabel). Every suffix of a suffix in the table is in it too, so the
+        // first suffix missing from the table ends the search, e.g. a name under a new top-level domain costs one
+        // lookup however many labels it has
+        int h = 1;
+        int matched = labels;
+        int pointer = -1;
+        boolean searching = count > 0;
+        for (int label = labels - 1; label >= 0; label--) {
+            h = hashLabel(h, wire, starts[label]);
+            hashes[label] = h;
+            if (searching) {
+                int offset = find(out, h, wire, starts[label], pointer);
+                if (offset >= 0) {
+                    matched = label;
+                    pointer = offset;
+                }
+                else {
+                    searching = false;
+                }
+            }
+        }
+
+        // the shortest new suffix is the furthest in: if it cannot be pointed to, none of them are added, so that
+        // the table keeps every suffix of what it holds
+        int position = out.position();
+        if (matched > 0 && position + starts[matched - 1] - start <= MAX_POINTER_OFFSET) {
+            for (int label = 0; label < matched; label++)
+                add(hashes[label], position + starts[label] - start);
+        }
+        int uncompressedEnd = matched < labels ? starts[matched] : end - 1;
+        out.put(wire, start, uncompressedEnd - start);
+        if (pointer >= 0)
+            out.putShort((short) (0xc000 | pointer));
+        else
+            out.put((byte) 0); // the root, which every name ends in that has nothing to point to
+
+        // a name that was there already in full is remembered where it was, not where our pointer is
+        remember(wire, start, end - start, matched == 0 ? pointer : position, hashes[0]);
+        return labels;
+    }
+
+    /**
+     * @param h the hash of the rest of the name, or 1 for the root
+     * @return the hash of the suffix starting with the label at labelStart, on the label's length and first and last
+     * bytes: cheap, and a hash match is checked in full anyway. Folding in 0x20 makes ASCII letters hash the same in
+     * either case.
+     */
+    private static int hashLabel(int h, byte[] wire, int labelStart) {
+        int length = wire[labelStart];
+        return 31 * (31 * (31 * h + length) + (wire[labelStart + 1] | 0x20)) + (wire[labelStart + length] | 0x20);
+    }
+
+    /**
+     * Add a name just written to the recent names, in place of the oldest one once there are enough
+     * @param offset where the name's labels are in the message, i.e. where a pointer to it should point
+     * @param hash the name's suffix hash
+     */
+    private void remember(byte[] wire, int start, int length, int offset, int hash) {
+        if (offset > MAX_POINTER_OFFSET)
+            return;
+        writtenAt = offset;
+        int i = nextRecent;
+        nextRecent = (i + 1) % RECENT_NAMES;
+        if (recentCount < RECENT_NAMES)
+            recentCount++;
+        recentWires[i] = wire;
+        recentStarts[i] = start;
+        recentLengths[i] = length;
+        recentOffsets[i] = offset;
+        recentHashes[i] = hash;
+    }
+
+    /**
+     * @param rest the offset of the suffix after this one's first label, or -1 if that is the root
+     * @return the offset of the suffix starting at start, if the message already has it, otherwise -1
+     */
+    private int find(ByteBuffer out, int hash, byte[] wire, int start, int rest) {
+        long current = generation << (HASH_BITS + OFFSET_BITS);
+        long key = current | (hash & 0xffffffffL) << OFFSET_BITS;
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            long entry = table[slot];
+            if ((entry & ~0L << (HASH_BITS + OFFSET_BITS)) != current)
+                return -1;
+            int offset = (int) entry & MAX_POINTER_OFFSET;
+            if ((entry & ~(long) MAX_POINTER_OFFSET) == key && isWrittenAt(out, offset, wire, start, rest))
+                return offset;
+        }
+    }
+
+    private void add(int hash, int offset) {
+        if (2 * (count + 1) > table.length)
+            grow();
+        long current = generation << (HASH_BITS + OFFSET_BITS);
+        int slot = spread(hash) & mask;
+        while ((table[slot] & ~0L << (HASH_BITS + OFFSET_BITS)) == current)
+            slot = (slot + 1) & mask;
+        table[slot] = current | (hash & 0xffffffffL) << OFFSET_BITS | offset;
+        count++;
+    }
+
+    /**
+     * Double the table, for a message with more names than usual
+     */
+    private void grow() {
+        long[] old = table;
+        long current = generation << (HASH_BITS + OFFSET_BITS);
+        table = new long[2 * old.length];
+        mask = table.length - 1;
+        count = 0;
+        for (long entry : old)
+            if ((entry & ~0L << (HASH_BITS + OFFSET_BITS)) == current)
+                add((int) (entry >>> OFFSET_BITS), (int) entry & MAX_POINTER_OFFSET);
+    }
+
+    /**
+     * @param rest where the name after its first label was found in the message, or -1 if that is the root. If the
+     *             first label is followed by it, or by a pointer to it, only that label needs comparing.
+     * @return true if the name written at offset in the message, following any pointers in it, is the name starting
+     * at start in the array, label by label, ignoring ASCII case
+     */
+    private static boolean isWrittenAt(ByteBuffer out, int offset, byte[] wire, int start, int rest) {
+        // read a heap buffer's array directly: this runs for every suffix found, and get(int) checks every byte
+        byte[] message = out.hasArray() ? out.array() : null;
+        int base = message != null ? out.arrayOffset() : 0;
+        int length = wire[start];
+        if (byteAt(out, message, base, offset) == length) { // a pointer at offset never equals a label length
+            if (!labelEquals(out, message, base, offset, wire, start))
+                return false;
+            int next = offset + length + 1;
+            int b = byteAt(out, message, base, next);
+            if (rest < 0 ? b == 0
+                         : next == rest || (b & 0xc0) == 0xc0
+                                           && ((b & 0x3f) << 8 | (byteAt(out, message, base, next + 1) & 0xff)) == rest)
+                return true;
+        }
+        int index = start;
+        while (true) {
+            length = byteAt(out, message, base, offset);
+            if ((length & 0xc0) == 0xc0) {
+                offset = (length & 0x3f) << 8 | (byteAt(out, message, base, offset + 1) & 0xff);
+                continue;
+            }
+            if (length != wire[index])
+                return false;
+            if (length == 0)
+                return true;
+            if (!labelEquals(out, message, base, offset, wire, index))
+                return false;
+            offset += length + 1;
+            index += length + 1;
+        }
+    }
+
+    /**
+     * @return true if the label at offset in the message has the same bytes as the one of the same length at index
+     * in the array, ignoring ASCII case
+     */
+    private static boolean labelEquals(ByteBuffer out, byte[] message, int base, int offset, byte[] wire, int index) {
+        int length = wire[index];
+        if (message != null)
+            return equalsIgnoreCase(message, base + offset + 1, wire, index + 1, length);
+        for (int k = 1; k <= length; k++) {
+            byte a = out.get(offset + k), b = wire[index + k];
+            if (a != b && toLowerCase(a) != toLowerCase(b))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the two runs of bytes are the same, ignoring ASCII case. The runs are no longer than a
+     * name, too short for Arrays.mismatch() to make up for its range checks and setup
+     */
+    private static boolean equalsIgnoreCase(byte[] a, int aStart, byte[] b, int bStart, int length) {
+        for (int k = 0; k < length; k++) {
+            byte x = a[aStart + k], y = b[bStart + k];
+            if (x != y && toLowerCase(x) != toLowerCase(y))
+                return false;
+        }
+        return true;
+    }
+
+    private static byte byteAt(ByteBuffer out, byte[] message, int base, int index) {
+        return message != null ? message[base + index] : out.get(index);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+}
@@ -0,0 +1,207 @@
+package dnsresolver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends queries to whichever authoritative servers an iterative resolution leads to, over a small pool of
+ * unconnected sockets, each with its own reader thread. A reply is only taken for the query it answers if it comes
+ * from the address the query went to, with the transaction ID the query was sent with. A smoothed RTT is kept per
+ * server, so that the resolver can pick the quickest of a zone's servers.
+ */
+public class NameserverClient implements Closeable {
+
+    private static final int MAX_TRACKED_SERVERS = 10_000; // the RTT table is cleared when it gets this big
+
+    private final NameserverSocket[] sockets;
+    private final AtomicInteger nextSocket = new AtomicInteger();
+    private final long timeoutMillis;
+    private final ConcurrentHashMap<InetSocketAddress, Long> smoothedRttNanos = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @param numSockets number of sockets to spread queries over
+     * @param timeoutMillis how long to wait for a server to answer before failing the query
+     * @throws SocketException if a socket cannot be opened
+     */
+    public NameserverClient(int numSockets, long timeoutMillis) throws SocketException {
+        this.timeoutMillis = timeoutMillis;
+        this.sockets = new NameserverSocket[Math.max(1, numSockets)];
+        for (int i = 0; i < sockets.length; i++) {
+            sockets[i] = new NameserverSocket(i);
+            sockets[i].start();
+        }
+    }
+
+    /**
+     * Send a query to a server. The transaction ID is overwritten with one that is unique on the chosen socket.
+     * A truncated reply is asked for again over TCP.
+     * @param server the server to ask
+     * @param query the query packet; its ID is overwritten
+     * @return a future completed with the decoded reply, or exceptionally with a TimeoutException if no reply
+     * arrives in time or an IOException if the query cannot be sent or the reply cannot be decoded
+     */
+    public CompletableFuture<DNSMessage> query(InetSocketAddress server, byte[] query) {
+        if (closed)
+            return CompletableFuture.failedFuture(new IOException("Nameserver client is closed"));
+
+        NameserverSocket socket = sockets[Math.floorMod(nextSocket.getAndIncrement(), sockets.length)];
+        return socket.send(server, query).thenCompose(response -> {
+            if (!response.getHeader().isTruncated())
+                return CompletableFuture.completedFuture(response);
+            return Upstream.queryTcp(server, query, query.length, timeoutMillis);
+        });
+    }
+
+    /**
+     * @param server a server
+     * @return its smoothed RTT in nanoseconds, or 0 if it has not been asked yet, so that new servers get tried
+     */
+    public long getSmoothedRttNanos(InetSocketAddress server) {
+        Long srtt = smoothedRttNanos.get(server);
+        return srtt == null ? 0 : srtt;
+    }
+
+    private void answered(InetSocketAddress server, long rttNanos) {
+        Metrics.upstreamRtt.record(rttNanos);
+        updateRtt(server, rttNanos);
+    }
+
+    /**
+     * A server that did not answer counts as one that answers at the timeout, so it drifts down the order
+     */
+    private void timedOut(InetSocketAddress server) {
+        updateRtt(server, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    }
+
+    private void updateRtt(InetSocketAddress server, long rttNanos) {
+        if (smoothedRttNanos.size() >= MAX_TRACKED_SERVERS)
+            smoothedRttNanos.clear();
+        smoothedRttNanos.merge(server, rttNanos, (srtt, rtt) -> srtt + (rtt - srtt) / 8);
+    }
+
+    /**
+     * @return the number of queries waiting for an answer
+     */
+    public int pendingQueries() {
+        int pending = 0;
+        for (NameserverSocket socket : sockets)
+            pending += socket.pending.size();
+        return pending;
+    }
+
+    /**
+     * Close all sockets and fail every query still waiting for an answer
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (NameserverSocket socket : sockets)
+            socket.close();
+    }
+
+    /**
+     * A query waiting for its answer
+     */
+    private static class PendingQuery {
+        final InetSocketAddress server;
+        final CompletableFuture<DNSMessage> future = new CompletableFuture<>();
+        final long sentNanos = System.nanoTime();
+
+        PendingQuery(InetSocketAddress server) {
+            this.server = server;
+        }
+    }
+
+    /**
+     * One pooled socket. Outstanding queries on it are keyed by the transaction ID they were sent with.
+     */
+    private class NameserverSocket extends Thread {
+        private final DatagramSocket socket;
+        private final ConcurrentHashMap<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+
+        NameserverSocket(int index) throws SocketException {
+            super("dns-nameserver-" + index);
+            setDaemon(true);
+            socket = new DatagramSocket();
+        }
+
+        CompletableFuture<DNSMessage> send(InetSocketAddress server, byte[] query) {
+            PendingQuery pendingQuery = new PendingQuery(server);
+            int id = Upstream.reserveId(pending, pendingQuery);
+            if (id < 0)
+                return CompletableFuture.failedFuture(new IOException("No free transaction ID on " + getName()));
+            query[0] = (byte) (id >> 8);
+            query[1] = (byte) id;
+
+            int sentId = id;
+            pendingQuery.future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                               .whenComplete((response, error) -> {
+                                   pending.remove(sentId, pendingQuery);
+                                   if (error != null && UpstreamClient.isTimeout(error))
+                                       timedOut(server);
+                               });
+
+            try {
+                socket.send(new DatagramPacket(query, query.length, server));
+            }
+            catch (IOException ioe) {
+                pendingQuery.future.completeExceptionally(ioe);
+            }
+            return pendingQuery.future;
+        }
+
+        /**
+         * The reader loop: match every reply to its pending query by transaction ID and sender
+         */
+        @Override
+        public void run() {
+            byte[] buf = new byte[UpstreamClient.MAX_RESPONSE_SIZE];
+            DatagramPacket rcvPacket = new DatagramPacket(buf, buf.length);
+            while (!closed) {
+                try {
+                    rcvPacket.setLength(buf.length);
+                    socket.receive(rcvPacket);
+                    if (rcvPacket.getLength() < 12)
+                        continue;
+
+                    int id = ((buf[0] & 0xff) << 8) | (buf[1] & 0xff);
+                    PendingQuery query = pending.get(id);
+                    if (query == null || !query.server.equals(rcvPacket.getSocketAddress())
+                        || !pending.remove(id, query))
+                        continue; // late, or not from the server we asked
+                    answered(query.server, System.nanoTime() - query.sentNanos);
+
+                    try {
+                        byte[] reply = Arrays.copyOf(buf, rcvPacket.getLength()); // the message keeps its buffer
+                        query.future.complete(DNSMessage.decodeMessage(reply));
+                    }
+                    catch (IOException ioe) {
+                        query.future.completeExceptionally(ioe);
+                    }
+                }
+                catch (IOException ioe) {
+                    if (closed)
+                        break;
+                }
+            }
+        }
+
+        void close() {
+            socket.close();
+            IOException closedException = new IOException("Nameserver client is closed");
+            for (PendingQuery query : pending.values())
+                query.future.completeExceptionally(closedException);
+            pending.clear();
+        }
+    }
+}
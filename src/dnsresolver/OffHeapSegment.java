@@ -0,0 +1,327 @@
+package dnsresolver;
+
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+
+/**
+ * One stripe of the off-heap cache. Entries are encoded (in the snapshot entry format) into direct ByteBuffer slabs,
+ * and found through an open-addressing index, itself a direct buffer. However many entries it holds, the stripe is a
+ * handful of objects to the garbage collector; the cost is that every hit is decoded from the slab.
+ * <p>
+ * Slabs are filled one after the other and reused in a ring, like a log. Replacing or removing an entry leaves its
+ * old bytes behind as garbage. When the stripe needs room, whether for bytes or for entries, entries are dropped from
+ * the tail of the log, oldest first, skipping the garbage. So eviction here is first in, first out rather than least
+ * recently used.
+ * <p>
+ * Index slot layout: hash (4), entry location (8: slab number and offset), expiry in seconds (4), refresh-ahead time
+ * in seconds (4), hit count (4, the top bit marks a refresh in flight). Hash 0 marks an empty slot. Slots are
+ * probed linearly and removed by shifting the rest of the run back, so there are no tombstones.
+ * Slab entry layout: length (4), hash (4), then the entry as CacheSnapshot writes it.
+ * Not thread-safe on its own: DNSCache calls every method under the stripe's lock.
+ */
+class OffHeapSegment {
+
+    private static final int SLOT_SIZE = 24;
+    private static final int HASH = 0, LOCATION = 4, EXPIRY = 12, PREFETCH_AT = 16, HITS = 20;
+    private static final int ENTRY_HEADER_SIZE = 8;
+    private static final int PREFETCHING = 0x80000000;
+
+    private final int maxEntries;
+    private final int slabSize;
+    private final ByteBuffer index;
+    private final int slotMask;
+    private final ByteBuffer[] slabs;
+    private final int[] slabUsed;
+    private int currentSlab;
+    private int tailSlab, tailOffset; // the oldest entry still in the log
+    private int entries;
+    private long bytes;
+
+    /**
+     * @param maxEntries the most entries the stripe holds
+     * @param maxBytes the most slab memory the stripe takes up
+     * @param slabSize the size of one slab; larger entries are not cached
+     */
+    OffHeapSegment(int maxEntries, long maxBytes, int slabSize) {
+        this.maxEntries = maxEntries;
+        this.slabSize = slabSize;
+        int slots = Integer.highestOneBit(Math.max(16, maxEntries + maxEntries / 3) - 1) << 1; // at most 3/4 full
+        this.index = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+        this.slotMask = slots - 1;
+        this.slabs = new ByteBuffer[(int) Math.max(2, maxBytes / slabSize)];
+        this.slabUsed = new int[slabs.length];
+    }
+
+    /**
+     * @param question the question to look up
+     * @param hash the question's hash, never 0
+     * @param now the current time in milliseconds
+     * @return the slot of the entry, -1 if there is none, or -2 if it had expired (it is removed)
+     */
+    int find(DNSQuestion question, int hash, long now) {
+        int slot = findSlot(question, hash);
+        if (slot < 0)
+            return -1;
+        if (entryBuffer(slot).getLong(expiryOffset(slot, question)) <= now) {
+            removeSlot(slot);
+            return -2;
+        }
+        return slot;
+    }
+
+    /**
+     * @return the response held in a slot, decoded from its slab
+     */
+    CachedResponse read(int slot) {
+        ByteBuffer entry = entryBuffer(slot).duplicate();
+        entry.position(entryOffset(slot) + ENTRY_HEADER_SIZE);
+        CacheSnapshot.readQuestion(entry); // the question was already matched; skip past it
+        return CacheSnapshot.readResponse(entry);
+    }
+
+    /**
+     * Count a hit on a slot, and claim its refresh-ahead if it is due
+     * @param slot the slot that was hit
+     * @param minHits how many hits an entry needs before it is refreshed ahead
+     * @param now the current time in milliseconds
+     * @return true if the caller should refresh the entry, and release it afterwards
+     */
+    boolean hit(int slot, int minHits, long now) {
+        int at = slot * SLOT_SIZE;
+        int hits = index.getInt(at + HITS);
+        int count = (hits & ~PREFETCHING) + 1;
+        boolean claim = (hits & PREFETCHING) == 0 && count >= minHits
+                        && now / 1000 >= Integer.toUnsignedLong(index.getInt(at + PREFETCH_AT));
+        index.putInt(at + HITS, Math.min(count, ~PREFETCHING) | (claim ? PREFETCHING : hits & PREFETCHING));
+        return claim;
+    }
+
+    /**
+     * Let a later hit refresh the entry again, after a refresh was skipped or failed
+     */
+    void releasePrefetch(DNSQuestion question, int hash) {
+        int slot = findSlot(question, hash);
+        if (slot >= 0)
+            index.putInt(slot * SLOT_SIZE + HITS, index.getInt(slot * SLOT_SIZE + HITS) & ~PREFETCHING);
+    }
+
+    /**
+     * @param question the question
+     * @param hash the question's hash, never 0
+     * @param response its response
+     * @param prefetchAtMillis when a hot entry should be refreshed ahead of expiry
+     * @return false if the entry is too large for a slab, and was not cached
+     */
+    boolean insert(DNSQuestion question, int hash, CachedResponse response, long prefetchAtMillis) {
+        int length = ENTRY_HEADER_SIZE + CacheSnapshot.entrySize(question, response);
+        if (length > slabSize)
+            return false;
+
+        int slot = findSlot(question, hash);
+        if (slot >= 0)
+            removeSlot(slot);
+        while (entries >= maxEntries)
+            evictOldest();
+        if (slabUsed[currentSlab] + length > slabSize) {
+            int next = (currentSlab + 1) % slabs.length;
+            if (tailSlab == next) { // the log has come round to its tail: drop what is left of it first
+                while (tailOffset < slabUsed[next])
+                    tailOffset += dropEntry(next, tailOffset);
+                tailSlab = (next + 1) % slabs.length;
+                tailOffset = 0;
+            }
+            slabUsed[next] = 0;
+            currentSlab = next;
+        }
+        if (slabs[currentSlab] == null)
+            slabs[currentSlab] = ByteBuffer.allocateDirect(slabSize);
+
+        ByteBuffer slab = slabs[currentSlab];
+        int offset = slabUsed[currentSlab];
+        slab.position(offset);
+        slab.putInt(length);
+        slab.putInt(hash);
+        CacheSnapshot.writeEntry(slab, question, response);
+        slabUsed[currentSlab] += length;
+        bytes += length;
+
+        slot = freeSlot(hash);
+        int at = slot * SLOT_SIZE;
+        index.putInt(at + HASH, hash);
+        index.putLong(at + LOCATION, (long) currentSlab << 32 | offset);
+        index.putInt(at + EXPIRY, (int) Math.min(response.getExpiryMillis() / 1000 + 1, 0xffffffffL));
+        index.putInt(at + PREFETCH_AT, (int) Math.min(prefetchAtMillis / 1000, 0xffffffffL));
+        index.putInt(at + HITS, 0);
+        entries++;
+        return true;
+    }
+
+    /**
+     * Remove every entry whose expiry second has passed
+     */
+    void sweepExpired(long now) {
+        long nowSeconds = now / 1000;
+        for (int slot = 0; slot <= slotMask; slot++) {
+            int at = slot * SLOT_SIZE;
+            // removing shifts the next entry of the run into this slot, so look at the slot again
+            while (index.getInt(at + HASH) != 0 && Integer.toUnsignedLong(index.getInt(at + EXPIRY)) <= nowSeconds)
+                removeSlot(slot);
+        }
+    }
+
+    /**
+     * Copy the bytes of every entry into one heap buffer, to be decoded later outside the stripe's lock
+     * @return the copied entries, between position 0 and the limit, each prefixed with its length
+     */
+    ByteBuffer copyEntries() {
+        long total = 0;
+        for (int slot = 0; slot <= slotMask; slot++)
+            if (index.getInt(slot * SLOT_SIZE + HASH) != 0)
+                total += entryLength(slot);
+        ByteBuffer copy = ByteBuffer.allocate((int) Math.min(total, Integer.MAX_VALUE - 8));
+        for (int slot = 0; slot <= slotMask; slot++) {
+            if (index.getInt(slot * SLOT_SIZE + HASH) == 0)
+                continue;
+            int length = entryLength(slot);
+            if (copy.remaining() < length)
+                break;
+            copy.put(copy.position(), entryBuffer(slot), entryOffset(slot), length);
+            copy.position(copy.position() + length);
+        }
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Decode the entries copied by copyEntries
+     */
+    static void forEachCopied(ByteBuffer copy, BiConsumer<DNSQuestion, CachedResponse> action) {
+        while (copy.hasRemaining()) {
+            int end = copy.position() + copy.getInt();
+            copy.getInt(); // hash
+            DNSQuestion question = CacheSnapshot.readQuestion(copy);
+            CachedResponse response = CacheSnapshot.readResponse(copy);
+            if (response.isValid())
+                action.accept(question, response);
+            copy.position(end);
+        }
+    }
+
+    int size() {
+        return entries;
+    }
+
+    /**
+     * @return the bytes taken up by the entries in the slabs, not counting garbage left by removed ones
+     */
+    long sizeInBytes() {
+        return bytes;
+    }
+
+    private int findSlot(DNSQuestion question, int hash) {
+        for (int slot = slotFor(hash); ; slot = (slot + 1) & slotMask) {
+            int slotHash = index.getInt(slot * SLOT_SIZE + HASH);
+            if (slotHash == 0)
+                return -1;
+            if (slotHash == hash && matches(slot, question))
+                return slot;
+        }
+    }
+
+    private int freeSlot(int hash) {
+        int slot = slotFor(hash);
+        while (index.getInt(slot * SLOT_SIZE + HASH) != 0)
+            slot = (slot + 1) & slotMask;
+        return slot;
+    }
+
+    private int slotFor(int hash) {
+        return (hash * 0x9E3779B9 >>> 7) & slotMask; // the low bits already picked the stripe
+    }
+
+    private boolean matches(int slot, DNSQuestion question) {
+        ByteBuffer slab = entryBuffer(slot);
+        int nameAt = entryOffset(slot) + ENTRY_HEADER_SIZE;
+        if (!question.getName().matches(slab, nameAt))
+            return false;
+        int typeAt = nameAt + question.getName().getWireLength();
+        return (slab.getShort(typeAt) & 0xffff) == question.getQType()
+               && (slab.getShort(typeAt + 2) & 0xffff) == question.getQClass();
+    }
+
+    private int expiryOffset(int slot, DNSQuestion question) {
+        return entryOffset(slot) + ENTRY_HEADER_SIZE + question.getName().getWireLength() + 4 + 1;
+    }
+
+    private ByteBuffer entryBuffer(int slot) {
+        return slabs[(int) (index.getLong(slot * SLOT_SIZE + LOCATION) >>> 32)];
+    }
+
+    private int entryOffset(int slot) {
+        return (int) index.getLong(slot * SLOT_SIZE + LOCATION);
+    }
+
+    private int entryLength(int slot) {
+        return entryBuffer(slot).getInt(entryOffset(slot));
+    }
+
+    /**
+     * Remove the entry in a slot, then shift back the entries after it in the same probe run that would no longer
+     * be found across the hole
+     */
+    private void removeSlot(int slot) {
+        bytes -= entryLength(slot);
+        entries--;
+        int hole = slot;
+        for (int next = (hole + 1) & slotMask; ; next = (next + 1) & slotMask) {
+            int nextHash = index.getInt(next * SLOT_SIZE + HASH);
+            if (nextHash == 0)
+                break;
+            int home = slotFor(nextHash);
+            // move the entry back unless its home slot lies cyclically in (hole, next]
+            boolean homeAfterHole = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (homeAfterHole)
+                continue;
+            index.put(hole * SLOT_SIZE, index, next * SLOT_SIZE, SLOT_SIZE);
+            hole = next;
+        }
+        index.putInt(hole * SLOT_SIZE + HASH, 0);
+    }
+
+    /**
+     * Drop the oldest entry still living in the log, moving the tail past it and past any garbage before it
+     * @return false if the log holds nothing more
+     */
+    private boolean evictOldest() {
+        while (true) {
+            if (tailOffset >= slabUsed[tailSlab]) {
+                if (tailSlab == currentSlab)
+                    return false;
+                tailSlab = (tailSlab + 1) % slabs.length;
+                tailOffset = 0;
+                continue;
+            }
+            int entriesBefore = entries;
+            tailOffset += dropEntry(tailSlab, tailOffset);
+            if (entries < entriesBefore)
+                return true;
+        }
+    }
+
+    /**
+     * Remove the entry written at a place in the log from the index, if it is still the live one for its question
+     * @return the length of the entry, to step over it
+     */
+    private int dropEntry(int slabNumber, int offset) {
+        ByteBuffer slab = slabs[slabNumber];
+        long location = (long) slabNumber << 32 | offset;
+        int hash = slab.getInt(offset + 4);
+        for (int slot = slotFor(hash); index.getInt(slot * SLOT_SIZE + HASH) != 0; slot = (slot + 1) & slotMask) {
+            if (index.getLong(slot * SLOT_SIZE + LOCATION) == location) {
+                removeSlot(slot);
+                break;
+            }
+        }
+        return slab.getInt(offset);
+    }
+}
@@ -0,0 +1,67 @@
+package dnsresolver;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-client token buckets, so that one client sending too much cannot crowd out the others. Each bucket fills up
+ * at a steady rate to a burst size, and every request takes a token out.
+ * The buckets live in a fixed table indexed by a hash of the client address, each one a single long (tokens and
+ * last refill time) updated with compare-and-set, so checking a request takes no lock and allocates nothing.
+ * Clients whose addresses hash to the same bucket share it; with a table much larger than the number of busy
+ * clients that is rare, and it only ever makes the limit stricter.
+ */
+public class RateLimiter {
+
+    private static final long MILLI_TOKENS = 1000; // tokens are counted in thousandths, so slow rates still refill
+
+    private final long ratePerSecond;
+    private final long burstMilliTokens;
+    private final long fillMillis; // time for an empty bucket to fill up; no refill is longer than this
+    private final AtomicLongArray buckets;
+    private final int mask;
+    // starts at 1 ms, so an empty bucket refilled now is not mistaken for an unused one (0) in the first millisecond
+    private final long startNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * @param ratePerSecond requests per second allowed per client, on average
+     * @param burst requests a client may send at once after a quiet spell
+     * @param tableSize number of buckets, rounded up to a power of two
+     */
+    public RateLimiter(int ratePerSecond, int burst, int tableSize) {
+        this.ratePerSecond = Math.max(1, ratePerSecond);
+        this.burstMilliTokens = Math.max(1, Math.min(burst, 4_000_000)) * MILLI_TOKENS; // must fit in 32 bits
+        this.fillMillis = (burstMilliTokens + this.ratePerSecond - 1) / this.ratePerSecond; // milli-tokens per ms
+        int size = Integer.highestOneBit(Math.max(2, tableSize) - 1) << 1;
+        this.buckets = new AtomicLongArray(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Take a token for a request, if the client has one
+     * @param client the address the request came from
+     * @return true if the request is within the client's limit
+     */
+    public boolean tryAcquire(InetAddress client) {
+        int hash = client.hashCode() * 0x9E3779B9;
+        int index = (hash ^ (hash >>> 16)) & mask;
+        long nowMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) & 0xffffffffL;
+
+        while (true) {
+            long bucket = buckets.get(index);
+            long tokens = burstMilliTokens; // a bucket not used yet is full
+            if (bucket != 0) {
+                // clamped first, so the refill cannot overflow however long the bucket sat idle
+                long elapsedMillis = Math.min(fillMillis, (nowMillis - (bucket & 0xffffffffL)) & 0xffffffffL);
+                tokens = Math.min(burstMilliTokens, (bucket >>> 32) + elapsedMillis * ratePerSecond);
+            }
+            boolean allowed = tokens >= MILLI_TOKENS;
+            if (allowed)
+                tokens -= MILLI_TOKENS;
+            long updated = tokens << 32 | nowMillis;
+            if (buckets.compareAndSet(index, bucket, updated == 0 ? 1 : updated))
+                return allowed;
+        }
+    }
+}
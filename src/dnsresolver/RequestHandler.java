@@ -0,0 +1,18 @@
+package dnsresolver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * What the listeners do with each request they read, whichever transport it came in on
+ */
+public interface RequestHandler {
+
+    /**
+     * @param request the request bytes, from index 0 up to the buffer's limit. The buffer is reused for the next
+     *                request once this returns, so it must not be held on to
+     * @param channel where the response goes
+     * @throws IOException if a response cannot be sent
+     */
+    void handle(ByteBuffer request, ResponseChannel channel) throws IOException;
+}
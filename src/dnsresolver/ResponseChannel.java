@@ -0,0 +1,38 @@
+package dnsresolver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Where the response to a request goes: back to the requester over UDP, or down the TCP connection the request
+ * came in on
+ */
+public interface ResponseChannel {
+
+    /**
+     * @param response the encoded response, between position 0 and the buffer's limit
+     * @throws IOException if the response cannot be sent
+     */
+    void send(ByteBuffer response) throws IOException;
+
+    /**
+     * @param request the request being answered
+     * @return the largest response that can be sent whole. A larger one goes out truncated, with the TC bit set
+     */
+    int maxResponseSize(DNSMessage request);
+
+    /**
+     * @return the address the request came from
+     */
+    InetAddress getClientAddress();
+
+    /**
+     * A listener may reuse one channel object for every request it reads, changing where it points in between.
+     * Whatever keeps a channel past the request handler's return, e.g. to answer a cache miss later, must keep this.
+     * @return a channel to the same requester that stays valid; this one, unless it is reused
+     */
+    default ResponseChannel detach() {
+        return this;
+    }
+}
@@ -0,0 +1,136 @@
+package dnsresolver;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A tiny offline stand-in for authoritative servers, so that iterative resolution can be exercised without internet
+ * access. It serves zone files in the format LocalZone reads, each with an SOA record at its apex, and answers the
+ * way an authoritative server does: with authority for the names it has, with a referral (the NS records, and the
+ * glue addresses it has for them) for names below a delegation, and with NXDOMAIN or NODATA otherwise.
+ * Several stubs on different loopback addresses and the same port make a root, a TLD and a zone's servers:
+ * <pre>
+ * java dnsresolver.StubAuthority 127.0.0.10:5300 root.zone
+ * java dnsresolver.StubAuthority 127.0.0.11:5300 example.zone
+ * java -Ddns.iterative=true -Ddns.iterative.roots=127.0.0.10:5300 -Ddns.iterative.port=5300 dnsresolver.DNSServer
+ * </pre>
+ * Usage: java dnsresolver.StubAuthority address:port zonefile [zonefile...]
+ */
+public class StubAuthority {
+
+    private static final DNSRecord[] NO_RECORDS = new DNSRecord[0];
+
+    private final Map<DomainName, Map<DomainName, Map<Integer, List<DNSRecord>>>> zones = new LinkedHashMap<>();
+
+    /**
+     * @param zoneFiles the zone files to serve
+     * @throws IOException if a file cannot be read or has no SOA record
+     */
+    public StubAuthority(List<String> zoneFiles) throws IOException {
+        for (String file : zoneFiles) {
+            Map<DomainName, Map<Integer, List<DNSRecord>>> records = LocalZone.readRecords(Paths.get(file));
+            DomainName apex = null;
+            for (Map.Entry<DomainName, Map<Integer, List<DNSRecord>>> entry : records.entrySet())
+                if (entry.getValue().containsKey(DNSRecord.TYPE_SOA))
+                    apex = entry.getKey();
+            if (apex == null)
+                throw new IOException(file + " has no SOA record");
+            zones.put(apex, records);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java dnsresolver.StubAuthority address:port zonefile [zonefile...]");
+            return;
+        }
+        StubAuthority authority = new StubAuthority(List.of(args).subList(1, args.length));
+        try (DatagramSocket socket = new DatagramSocket(DNSServer.parseAddress(args[0]))) {
+            System.out.println("Stub authority for " + authority.zones.keySet() + " is up on " + args[0] + "\n");
+
+            byte[] buf = new byte[DNSMessage.MAX_MESSAGE_SIZE];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            while (true) {
+                packet.setLength(buf.length);
+                socket.receive(packet);
+                byte[] reply;
+                try {
+                    reply = authority.answer(DNSMessage.decodeMessage(buf, packet.getLength()));
+                }
+                catch (IOException ioe) {
+                    continue; // malformed
+                }
+                socket.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+            }
+        }
+    }
+
+    /**
+     * @param request a query
+     * @return the response packet
+     */
+    public byte[] answer(DNSMessage request) {
+        DNSQuestion question = request.getQuestions()[0];
+        DomainName name = question.getName();
+
+        DomainName apex = null;
+        for (DomainName zone : zones.keySet())
+            if (name.isSubdomainOf(zone) && (apex == null || zone.getWireLength() > apex.getWireLength()))
+                apex = zone;
+        if (apex == null)
+            return respond(request, DNSHeader.RCODE_REFUSED, NO_RECORDS, NO_RECORDS, NO_RECORDS, false);
+        Map<DomainName, Map<Integer, List<DNSRecord>>> records = zones.get(apex);
+
+        // the highest delegation between the apex and the name, if there is one, takes the question elsewhere
+        List<DomainName> above = new ArrayList<>();
+        for (DomainName cut = name; !cut.equals(apex); cut = cut.parent())
+            above.add(0, cut);
+        for (DomainName cut : above) {
+            Map<Integer, List<DNSRecord>> rrSets = records.get(cut);
+            if (rrSets != null && rrSets.containsKey(DNSRecord.TYPE_NS))
+                return referral(request, records, rrSets.get(DNSRecord.TYPE_NS));
+        }
+
+        DNSRecord[] soa = records.get(apex).get(DNSRecord.TYPE_SOA).toArray(NO_RECORDS);
+        Map<Integer, List<DNSRecord>> rrSets = records.get(name);
+        if (rrSets == null) {
+            for (DomainName owner : records.keySet())
+                if (owner.isSubdomainOf(name)) // a name with only names below it exists, it just has no records
+                    return respond(request, DNSHeader.RCODE_NOERROR, NO_RECORDS, soa, NO_RECORDS, true);
+            return respond(request, DNSHeader.RCODE_NXDOMAIN, NO_RECORDS, soa, NO_RECORDS, true);
+        }
+        List<DNSRecord> answers = rrSets.get(question.getQType());
+        if (answers == null)
+            answers = rrSets.get(DNSRecord.TYPE_CNAME);
+        if (answers == null)
+            return respond(request, DNSHeader.RCODE_NOERROR, NO_RECORDS, soa, NO_RECORDS, true);
+        return respond(request, DNSHeader.RCODE_NOERROR, answers.toArray(NO_RECORDS), NO_RECORDS, NO_RECORDS, true);
+    }
+
+    private static byte[] referral(DNSMessage request, Map<DomainName, Map<Integer, List<DNSRecord>>> records,
+                                   List<DNSRecord> nameservers) {
+        List<DNSRecord> glue = new ArrayList<>();
+        for (DNSRecord ns : nameservers) {
+            Map<Integer, List<DNSRecord>> rrSets = records.get(ns.getRDataName());
+            if (rrSets != null && rrSets.containsKey(DNSRecord.TYPE_A))
+                glue.addAll(rrSets.get(DNSRecord.TYPE_A));
+        }
+        return respond(request, DNSHeader.RCODE_NOERROR, NO_RECORDS, nameservers.toArray(NO_RECORDS),
+                       glue.toArray(NO_RECORDS), false);
+    }
+
+    private static byte[] respond(DNSMessage request, int rCode, DNSRecord[] answers, DNSRecord[] authorityRecords,
+                                  DNSRecord[] additionalRecords, boolean authoritative) {
+        byte[] response = DNSMessage.buildResponse(request, rCode, answers, authorityRecords, additionalRecords)
+                                    .toBytes();
+        if (authoritative)
+            response[2] |= 0x04; // aa = 1
+        return response;
+    }
+}
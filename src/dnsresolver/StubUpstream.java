@@ -0,0 +1,282 @@
+package dnsresolver;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A tiny offline stand-in for the upstream resolver. It answers every question with A records pointing at a
+ * fixed address, so the server and UpstreamClient can be exercised without internet access. It can also hold each
+ * answer back for a while and drop a share of the queries, to stand in for a slow or lossy upstream, and answer
+ * with many records to exercise truncation: UDP answers larger than the query's EDNS payload size (512 bytes
+ * without EDNS) come back with the TC bit set, and the same port answers in full over TCP.
+ * Usage: java dnsresolver.StubUpstream [port] [ipv4 address] [ttl] [delay millis] [loss percent] [answers]
+ * then start the server with -Ddns.upstream=127.0.0.1:port (several stubs can be listed, comma-separated).
+ * Tests start stubs in the same JVM with start(), and change their delay and loss while they run.
+ */
+public class StubUpstream implements Closeable {
+
+    private final DatagramSocket socket;
+    private final byte[] address;
+    private final int ttl;
+    private final int answers;
+    private volatile long delayMillis;
+    private volatile double lossPercent;
+    private final LongAdder queries = new LongAdder();
+    private final ScheduledExecutorService delayer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stub-upstream-delay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5353;
+        byte[] address = InetAddress.getByName(args.length > 1 ? args[1] : "127.0.0.1").getAddress();
+        int ttl = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        long delayMillis = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        double lossPercent = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+        int answers = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+
+        try (StubUpstream stub = new StubUpstream(new InetSocketAddress(port), address, ttl, answers)) {
+            stub.setDelayMillis(delayMillis);
+            stub.setLossPercent(lossPercent);
+            Thread tcp = new Thread(() -> serveTcp(port, address, ttl, answers), "stub-upstream-tcp");
+            tcp.setDaemon(true);
+            tcp.start();
+            System.out.println("Stub upstream is up on port " + port + " (delay " + delayMillis + "ms, loss "
+                               + lossPercent + "%, " + answers + " answers)\n");
+            stub.serve();
+        }
+    }
+
+    /**
+     * Open the stub's UDP socket. It answers nothing until serve() or start() is called.
+     * @param bindAddress where to listen, e.g. port 0 on the loopback address for a test
+     * @param address the IPv4 address to answer with
+     * @param ttl the TTL of the answers
+     * @param answers the number of A records in each answer
+     * @throws SocketException if the socket cannot be opened
+     */
+    public StubUpstream(InetSocketAddress bindAddress, byte[] address, int ttl, int answers) throws SocketException {
+        this.socket = new DatagramSocket(bindAddress);
+        this.address = address;
+        this.ttl = ttl;
+        this.answers = answers;
+    }
+
+    /**
+     * Answer queries on a daemon thread of its own, until closed
+     * @return this stub
+     */
+    public StubUpstream start() {
+        Thread thread = new Thread(this::serve, "stub-upstream-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Answer queries on the calling thread, until closed
+     */
+    public void serve() {
+        byte[] buf = new byte[DNSMessage.MAX_MESSAGE_SIZE];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buf.length);
+                socket.receive(packet);
+                queries.increment();
+                if (ThreadLocalRandom.current().nextDouble(100) < lossPercent)
+                    continue;
+
+                byte[] reply = buildAnswer(buf, packet.getLength(), address, ttl, answers);
+                if (reply == null)
+                    continue;
+                if (reply.length > udpPayloadSize(buf, packet.getLength()))
+                    reply = truncate(reply);
+                DatagramPacket replyPacket = new DatagramPacket(reply, reply.length, packet.getSocketAddress());
+                long delay = delayMillis;
+                if (delay <= 0) {
+                    socket.send(replyPacket);
+                    continue;
+                }
+                delayer.schedule(() -> {
+                    try {
+                        socket.send(replyPacket);
+                    }
+                    catch (IOException ignored) {
+                        // the stub is shutting down
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+            catch (IOException ioe) {
+                if (socket.isClosed())
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @param delayMillis how long to hold each answer back from now on, 0 to answer at once
+     */
+    public void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * @param lossPercent the share of queries to drop without an answer from now on, 0 to 100
+     */
+    public void setLossPercent(double lossPercent) {
+        this.lossPercent = lossPercent;
+    }
+
+    /**
+     * @return the number of queries received, the dropped ones included
+     */
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    /**
+     * @return the UDP port the stub listens on
+     */
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Stop answering. Answers still being held back are not sent.
+     */
+    @Override
+    public void close() {
+        socket.close();
+        delayer.shutdownNow();
+    }
+
+    /**
+     * Answer length-prefixed queries over TCP, one connection at a time
+     */
+    private static void serveTcp(int port, byte[] address, int ttl, int answers) {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            while (true) {
+                try (Socket socket = serverSocket.accept()) {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    while (true) {
+                        byte[] query = new byte[in.readUnsignedShort()];
+                        in.readFully(query);
+                        byte[] reply = buildAnswer(query, query.length, address, ttl, answers);
+                        if (reply == null)
+                            break;
+                        out.writeShort(reply.length);
+                        out.write(reply);
+                        out.flush();
+                    }
+                }
+                catch (IOException ignored) {
+                    // the client hung up
+                }
+            }
+        }
+        catch (IOException ioe) {
+            System.out.println("Stub upstream cannot listen on TCP port " + port);
+        }
+    }
+
+    /**
+     * @return the payload size advertised in the query's OPT record, if it has one right after the question
+     */
+    private static int udpPayloadSize(byte[] query, int length) {
+        int index = questionEnd(query, length);
+        if (index < 0 || (query[11] == 0 && query[10] == 0) || index + 5 > length)
+            return 512;
+        if (query[index] != 0 || query[index + 1] != 0 || query[index + 2] != DNSRecord.TYPE_OPT)
+            return 512;
+        return Math.max(512, ((query[index + 3] & 0xff) << 8) | (query[index + 4] & 0xff));
+    }
+
+    /**
+     * @return the header and question of a reply with the TC bit set and no records
+     */
+    private static byte[] truncate(byte[] reply) {
+        ByteBuffer truncated = ByteBuffer.allocate(questionEnd(reply, reply.length));
+        truncated.put(reply, 0, truncated.capacity());
+        truncated.put(2, (byte) (reply[2] | 0x02)); // tc = 1
+        truncated.putShort(6, (short) 0);           // anCount
+        return truncated.array();
+    }
+
+    /**
+     * @return the index just past the first question (an uncompressed name followed by qType and qClass),
+     * or -1 if it runs past the end of the packet
+     */
+    private static int questionEnd(byte[] packet, int length) {
+        int questionEnd = 12;
+        while (questionEnd < length && packet[questionEnd] != 0)
+            questionEnd += (packet[questionEnd] & 0xff) + 1;
+        questionEnd += 5;
+        return questionEnd > length ? -1 : questionEnd;
+    }
+
+    /**
+     * Build an answer to a query: the query's header and question, followed by one A record whose name points
+     * back at the question. Any additional records in the query are left out.
+     * @param query the query packet
+     * @param length the number of valid bytes in query
+     * @param address the IPv4 address to answer with
+     * @param ttl the TTL of the answer
+     * @return the reply packet, or null if the query cannot be parsed
+     */
+    public static byte[] buildAnswer(byte[] query, int length, byte[] address, int ttl) {
+        return buildAnswer(query, length, address, ttl, 1);
+    }
+
+    /**
+     * Build an answer to a query with several A records, at consecutive addresses starting from address
+     * @param query the query packet
+     * @param length the number of valid bytes in query
+     * @param address the IPv4 address of the first record
+     * @param ttl the TTL of the answers
+     * @param answers the number of records
+     * @return the reply packet, or null if the query cannot be parsed
+     */
+    public static byte[] buildAnswer(byte[] query, int length, byte[] address, int ttl, int answers) {
+        int questionEnd = questionEnd(query, length);
+        if (questionEnd < 0)
+            return null;
+
+        ByteBuffer reply = ByteBuffer.allocate(questionEnd + answers * 16);
+        reply.put(query, 0, questionEnd);
+        reply.put(2, (byte) (0x80 | (query[2] & 0x79))); // qr = 1, keep opCode and rd
+        reply.put(3, (byte) 0x80);                        // ra = 1, rCode = 0
+        reply.putShort(4, (short) 1);                     // qdCount
+        reply.putShort(6, (short) answers);               // anCount
+        reply.putShort(8, (short) 0);                     // nsCount
+        reply.putShort(10, (short) 0);                    // arCount
+
+        for (int i = 0; i < answers; i++) {
+            reply.putShort((short) 0xc00c); // pointer to the question name
+            reply.putShort((short) 1);      // type A
+            reply.putShort((short) 1);      // class IN
+            reply.putInt(ttl);
+            reply.putShort((short) address.length);
+            reply.put(address, 0, address.length - 1);
+            reply.put((byte) (address[address.length - 1] + i));
+        }
+        return reply.array();
+    }
+}
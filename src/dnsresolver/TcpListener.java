@@ -0,0 +1,162 @@
+package dnsresolver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * DNS over TCP (RFC 7766), for clients retrying a truncated UDP response. Every message is prefixed with its
+ * length in two bytes. Connections are kept open and may carry several queries back to back without waiting for
+ * the answers (pipelining); the answers go back as soon as they are ready, so possibly out of order.
+ * Each connection is read by its own thread. Requests are handed to the same code as UDP ones, cache included.
+ */
+public class TcpListener implements Runnable {
+
+    // Configurable with -Ddns.tcp.maxConnections=N and -Ddns.tcp.idleTimeoutMillis=N
+    private static final int MAX_CONNECTIONS = Integer.getInteger("dns.tcp.maxConnections", 128);
+    private static final int IDLE_TIMEOUT_MILLIS = Integer.getInteger("dns.tcp.idleTimeoutMillis", 10_000);
+
+    private final ServerSocket serverSocket;
+    private final RequestHandler handler;
+    private final Semaphore connectionSlots = new Semaphore(MAX_CONNECTIONS);
+    private final Set<Socket> openConnections = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+
+    /**
+     * @param port the TCP port to listen on
+     * @param handler what to do with each request
+     * @throws IOException if the port cannot be opened
+     */
+    public TcpListener(int port, RequestHandler handler) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.handler = handler;
+    }
+
+    /**
+     * The accept loop
+     */
+    @Override
+    public void run() {
+        while (running) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            }
+            catch (IOException ioe) {
+                if (!running)
+                    break;
+                System.out.println("Something's wrong with the TCP socket...");
+                continue;
+            }
+
+            if (!connectionSlots.tryAcquire()) {
+                Metrics.tcpRejectedConnections.increment();
+                closeQuietly(socket);
+                continue;
+            }
+            Metrics.tcpConnections.increment();
+            openConnections.add(socket);
+            Thread reader = new Thread(() -> serveConnection(socket), "dns-tcp-" + socket.getPort());
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    /**
+     * Read length-prefixed requests off one connection until the client closes it or it sits idle too long
+     * @param socket the connection
+     */
+    private void serveConnection(Socket socket) {
+        try {
+            socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            TcpChannel channel = new TcpChannel(socket);
+            while (running) {
+                int length = in.readUnsignedShort();
+                byte[] request = new byte[length];
+                in.readFully(request);
+                Metrics.tcpRequests.increment();
+                handler.handle(ByteBuffer.wrap(request), channel);
+            }
+        }
+        catch (EOFException | SocketTimeoutException e) {
+            // the client is done, or has gone quiet
+        }
+        catch (IOException ioe) {
+            if (Log.VERBOSE)
+                System.out.println("\tTCP connection failed: " + ioe);
+        }
+        finally {
+            openConnections.remove(socket);
+            closeQuietly(socket);
+            connectionSlots.release();
+        }
+    }
+
+    /**
+     * Stop accepting connections and close the open ones
+     */
+    public void close() {
+        running = false;
+        closeQuietly(serverSocket);
+        for (Socket socket : openConnections)
+            closeQuietly(socket);
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        }
+        catch (Exception ignored) {
+            // nothing left to do with it
+        }
+    }
+
+    /**
+     * Writes responses down a connection. Answers to pipelined queries may be ready on several threads at once,
+     * so each length-prefixed response is written whole under a lock.
+     */
+    private static class TcpChannel implements ResponseChannel {
+        private final Socket socket;
+        private final DataOutputStream out;
+
+        TcpChannel(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        @Override
+        public void send(ByteBuffer response) throws IOException {
+            if (socket.isClosed())
+                throw new SocketException("Connection is closed");
+            synchronized (out) {
+                out.writeShort(response.limit());
+                out.write(response.array(), response.arrayOffset(), response.limit());
+                out.flush();
+            }
+        }
+
+        @Override
+        public int maxResponseSize(DNSMessage request) {
+            return DNSMessage.MAX_MESSAGE_SIZE;
+        }
+
+        @Override
+        public InetAddress getClientAddress() {
+            return socket.getInetAddress();
+        }
+    }
+}
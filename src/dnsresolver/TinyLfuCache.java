@@ -0,0 +1,159 @@
+package dnsresolver;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * A bounded map that evicts with W-TinyLFU: new entries go into a small LRU window (about 1% of the room), and
+ * an entry pushed out of the window only gets into the main LRU region if it has been asked for more often lately
+ * than the entries it would push out of there, according to a FrequencySketch of every lookup, misses included.
+ * So a burst of names asked for once, e.g. random subdomains, passes through the window without pushing the hot
+ * working set out, while a name that keeps being asked for gets in.
+ * <p>
+ * Without a sketch it is a plain LRU map. Limits are on both the number of entries and their total weight in
+ * bytes. Not thread-safe: DNSCache uses each one under its stripe's lock.
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+final class TinyLfuCache<K, V> {
+
+    private final FrequencySketch sketch; // null for plain LRU
+    private final ToIntFunction<V> weigher;
+    private final int windowMaxEntries, mainMaxEntries;
+    private final long windowMaxBytes, mainMaxBytes;
+    private final LinkedHashMap<K, V> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, V> main = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowBytes, mainBytes;
+    private long rejected;
+
+    /**
+     * @param maxEntries the most entries to hold
+     * @param maxBytes the most bytes to hold, as the weigher counts them
+     * @param windowPercent the share of both limits for the window, or 0 with no sketch for plain LRU
+     * @param sketch the frequency sketch to decide admission with, or null for plain LRU
+     * @param weigher the size of a value in bytes
+     */
+    TinyLfuCache(int maxEntries, long maxBytes, int windowPercent, FrequencySketch sketch, ToIntFunction<V> weigher) {
+        this.sketch = sketch;
+        this.weigher = weigher;
+        this.windowMaxEntries = sketch == null ? 0 : Math.max(1, maxEntries * windowPercent / 100);
+        this.windowMaxBytes = sketch == null ? 0 : Math.max(1, maxBytes * windowPercent / 100);
+        this.mainMaxEntries = Math.max(1, maxEntries - windowMaxEntries);
+        this.mainMaxBytes = Math.max(1, maxBytes - windowMaxBytes);
+    }
+
+    /**
+     * Look a key up, counting the request in the sketch whether it is there or not
+     * @return the value, or null
+     */
+    V get(K key) {
+        if (sketch != null)
+            sketch.increment(key.hashCode());
+        V value = window.get(key);
+        return value != null ? value : main.get(key);
+    }
+
+    /**
+     * Add or replace an entry. A replaced entry stays in the region it is in; a new one goes into the window.
+     */
+    void put(K key, V value) {
+        int weight = weigher.applyAsInt(value);
+        if (main.containsKey(key)) {
+            mainBytes += weight - weigher.applyAsInt(main.put(key, value));
+            evictMain();
+            return;
+        }
+
+        V previous = window.put(key, value);
+        windowBytes += weight - (previous == null ? 0 : weigher.applyAsInt(previous));
+        Iterator<Map.Entry<K, V>> eldest = window.entrySet().iterator();
+        while ((window.size() > windowMaxEntries || windowBytes > windowMaxBytes) && eldest.hasNext()) {
+            Map.Entry<K, V> candidate = eldest.next();
+            eldest.remove();
+            windowBytes -= weigher.applyAsInt(candidate.getValue());
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    /**
+     * Move an entry out of the window into the main region, if it is asked for more often than every entry it
+     * would push out of there. Otherwise it is dropped.
+     */
+    private void admit(K key, V value) {
+        int weight = weigher.applyAsInt(value);
+        if (weight > mainMaxBytes)
+            return; // would never fit
+        if (sketch != null) {
+            int frequency = sketch.frequency(key.hashCode());
+            int entriesOver = main.size() + 1 - mainMaxEntries;
+            long bytesOver = mainBytes + weight - mainMaxBytes;
+            for (Iterator<Map.Entry<K, V>> victims = main.entrySet().iterator();
+                 (entriesOver > 0 || bytesOver > 0) && victims.hasNext(); ) {
+                Map.Entry<K, V> victim = victims.next();
+                if (sketch.frequency(victim.getKey().hashCode()) >= frequency) {
+                    rejected++;
+                    return;
+                }
+                entriesOver--;
+                bytesOver -= weigher.applyAsInt(victim.getValue());
+            }
+        }
+        main.put(key, value);
+        mainBytes += weight;
+        evictMain();
+    }
+
+    private void evictMain() {
+        Iterator<V> leastRecentlyUsed = main.values().iterator();
+        while ((main.size() > mainMaxEntries || mainBytes > mainMaxBytes) && leastRecentlyUsed.hasNext()) {
+            V eldest = leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            mainBytes -= weigher.applyAsInt(eldest);
+        }
+    }
+
+    /**
+     * Remove an entry, if the key still maps to that value
+     * @return true if it was removed
+     */
+    boolean remove(K key, V value) {
+        if (window.remove(key, value)) {
+            windowBytes -= weigher.applyAsInt(value);
+            return true;
+        }
+        if (main.remove(key, value)) {
+            mainBytes -= weigher.applyAsInt(value);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return every value, least recently used first within the window and then the main region
+     */
+    List<V> values() {
+        List<V> values = new ArrayList<>(window.size() + main.size());
+        values.addAll(window.values());
+        values.addAll(main.values());
+        return values;
+    }
+
+    int size() {
+        return window.size() + main.size();
+    }
+
+    long sizeInBytes() {
+        return windowBytes + mainBytes;
+    }
+
+    /**
+     * @return the number of entries dropped on their way out of the window, for being asked for too rarely
+     */
+    long getRejected() {
+        return rejected;
+    }
+}
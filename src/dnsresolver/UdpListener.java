@@ -0,0 +1,311 @@
+package dnsresolver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * DNS over UDP, read by several threads so that one receive loop does not cap the packets per second.
+ * Where the kernel supports SO_REUSEPORT, every receive thread gets a channel of its own bound to the same port,
+ * and the kernel spreads the clients over them (by source address and port, so one client always lands on the
+ * same channel). Elsewhere the threads share a single channel.
+ * <p>
+ * The channels are non-blocking. Each time a thread wakes up it drains every datagram waiting on its channel (up to
+ * a batch), handles them one after the other, then sends the replies to the cache hits together. Requests and
+ * replies live in direct buffers that each thread allocates once and reuses for every batch, and every request is
+ * handed the same response channel, pointed at its client. Replies to cache misses are sent by whichever thread gets
+ * the upstream answer, straight away.
+ */
+public class UdpListener {
+
+    // One receive thread per core by default. Configurable with -Ddns.udp.channels=N and -Ddns.udp.batchSize=N
+    private static final int NUM_CHANNELS = Integer.getInteger("dns.udp.channels",
+                                                               Runtime.getRuntime().availableProcessors());
+    private static final int BATCH_SIZE = Math.max(1, Integer.getInteger("dns.udp.batchSize", 64));
+
+    private final DatagramChannel[] channels;
+    private final Receiver[] receivers;
+    private final RequestHandler handler;
+    private volatile boolean running = true;
+
+    /**
+     * @param port the UDP port to listen on
+     * @param handler what to do with each request
+     * @throws IOException if the port cannot be opened
+     */
+    public UdpListener(int port, RequestHandler handler) throws IOException {
+        this.handler = handler;
+        this.receivers = new Receiver[Math.max(1, NUM_CHANNELS)];
+
+        DatagramChannel first = DatagramChannel.open();
+        boolean reusePort = receivers.length > 1
+                            && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        this.channels = new DatagramChannel[reusePort ? receivers.length : 1];
+        channels[0] = first;
+        try {
+            for (int i = 0; i < channels.length; i++) {
+                if (channels[i] == null)
+                    channels[i] = DatagramChannel.open();
+                if (reusePort)
+                    channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channels[i].bind(new InetSocketAddress(port));
+                channels[i].configureBlocking(false);
+            }
+            for (int i = 0; i < receivers.length; i++)
+                receivers[i] = new Receiver(channels[i % channels.length]);
+        }
+        catch (IOException ioe) {
+            close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Start the receive threads
+     */
+    public void start() {
+        for (int i = 0; i < receivers.length; i++) {
+            receivers[i].thread = new Thread(receivers[i], "dns-udp-" + i);
+            receivers[i].thread.setDaemon(true);
+            receivers[i].thread.start();
+        }
+    }
+
+    /**
+     * Wait until the listener is closed and every receive thread is done
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        for (Receiver receiver : receivers)
+            if (receiver.thread != null)
+                receiver.thread.join();
+    }
+
+    /**
+     * @return a description of the listener, e.g. "4 channels with SO_REUSEPORT"
+     */
+    public String describe() {
+        if (channels.length > 1)
+            return channels.length + " channels with SO_REUSEPORT";
+        return receivers.length + (receivers.length == 1 ? " thread" : " threads") + " on one channel";
+    }
+
+    /**
+     * Stop receiving and close the channels
+     */
+    public void close() {
+        running = false;
+        for (Receiver receiver : receivers)
+            if (receiver != null)
+                receiver.selector.wakeup();
+        for (DatagramChannel channel : channels) {
+            if (channel == null)
+                continue;
+            try {
+                channel.close();
+            }
+            catch (IOException ignored) {
+                // nothing left to do with it
+            }
+        }
+    }
+
+    /**
+     * One receive thread, with its selector and its reusable request and reply buffers
+     */
+    private class Receiver implements Runnable {
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private final SelectionKey key;
+        private final ByteBuffer[] requests = new ByteBuffer[BATCH_SIZE];
+        private final SocketAddress[] clients = new SocketAddress[BATCH_SIZE];
+        private final ByteBuffer[] replies = new ByteBuffer[BATCH_SIZE];
+        private final SocketAddress[] replyTo = new SocketAddress[BATCH_SIZE];
+        private final UdpChannel requestChannel = new UdpChannel(this, null, true);
+        private int pendingReplies, sentReplies;
+        private boolean batching;
+        private Thread thread;
+
+        Receiver(DatagramChannel channel) throws IOException {
+            this.channel = channel;
+            this.selector = Selector.open();
+            this.key = channel.register(selector, SelectionKey.OP_READ);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                requests[i] = ByteBuffer.allocateDirect(Edns.PAYLOAD_SIZE);
+                replies[i] = ByteBuffer.allocateDirect(Edns.PAYLOAD_SIZE);
+            }
+        }
+
+        /**
+         * The receive loop. Replies that did not fit the socket's send buffer are sent first, as soon as it has
+         * room; no new requests are read until they are out.
+         */
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    try {
+                        selector.select(key -> { }); // the only key is our channel's; nothing to do with it here
+                        if (pendingReplies > sentReplies && !flush())
+                            continue;
+                        handleBatch(receiveBatch());
+                        flush();
+                    }
+                    catch (ClosedChannelException | ClosedSelectorException e) {
+                        break; // closed on shutdown
+                    }
+                    catch (IOException ioe) {
+                        if (!running)
+                            break;
+                        System.out.println("Something's wrong with the socket...");
+                    }
+                }
+            }
+            finally {
+                try {
+                    selector.close();
+                }
+                catch (IOException ignored) {
+                    // nothing left to do with it
+                }
+            }
+        }
+
+        /**
+         * @return the number of datagrams read, at most a batch
+         */
+        private int receiveBatch() throws IOException {
+            int received = 0;
+            while (received < BATCH_SIZE) {
+                ByteBuffer request = requests[received];
+                request.clear();
+                SocketAddress client = channel.receive(request);
+                if (client == null)
+                    break;
+                request.flip();
+                clients[received++] = client;
+            }
+            if (received > 0) {
+                Metrics.udpBatches.increment();
+                Metrics.udpBatchedRequests.add(received);
+            }
+            return received;
+        }
+
+        /**
+         * Handle the datagrams read, queueing the replies that are ready right away
+         * @param received the number of datagrams read
+         */
+        private void handleBatch(int received) {
+            batching = true;
+            for (int i = 0; i < received; i++) {
+                requestChannel.client = clients[i];
+                try {
+                    handler.handle(requests[i], requestChannel);
+                }
+                catch (IOException ioe) {
+                    System.out.println("Something's wrong with the data stream...");
+                }
+                clients[i] = null;
+            }
+            requestChannel.client = null;
+            batching = false;
+        }
+
+        /**
+         * Queue a reply to be sent with the rest of the batch, if it comes from this thread while handling one
+         * @return false if the reply has to be sent on its own
+         */
+        private boolean queueReply(ByteBuffer response, SocketAddress client) {
+            if (Thread.currentThread() != thread || !batching || pendingReplies == BATCH_SIZE
+                || response.remaining() > replies[pendingReplies].capacity())
+                return false;
+            ByteBuffer reply = replies[pendingReplies];
+            reply.clear();
+            reply.put(response);
+            reply.flip();
+            replyTo[pendingReplies++] = client;
+            return true;
+        }
+
+        /**
+         * Send the queued replies, until the socket's send buffer is full
+         * @throws ClosedChannelException if the channel was closed
+         * @return true if they are all out; otherwise the rest go out once the channel is writable again
+         */
+        private boolean flush() throws ClosedChannelException {
+            while (sentReplies < pendingReplies) {
+                try {
+                    if (channel.send(replies[sentReplies], replyTo[sentReplies]) == 0) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return false;
+                    }
+                }
+                catch (ClosedChannelException cce) {
+                    throw cce;
+                }
+                catch (IOException ioe) {
+                    // this client cannot be reached, the others still get their replies
+                    Metrics.udpDroppedReplies.increment();
+                }
+                replyTo[sentReplies++] = null;
+            }
+            pendingReplies = 0;
+            sentReplies = 0;
+            key.interestOps(SelectionKey.OP_READ);
+            return true;
+        }
+    }
+
+    /**
+     * Sends responses back to the address the request came from, over the channel it came in on. Each receive
+     * thread hands the same one to every request it reads, so one that has to outlive its request is detached.
+     */
+    private static class UdpChannel implements ResponseChannel {
+        private final Receiver receiver;
+        private final boolean reusable;
+        private SocketAddress client;
+
+        UdpChannel(Receiver receiver, SocketAddress client, boolean reusable) {
+            this.receiver = receiver;
+            this.client = client;
+            this.reusable = reusable;
+        }
+
+        /**
+         * Queue the response with the receiving thread's batch, or send it now when it comes from another thread.
+         * The channel is non-blocking, so a response sent now is dropped if the socket's send buffer is full, as a
+         * datagram would be anywhere else on the way; the client retries.
+         */
+        @Override
+        public void send(ByteBuffer response) throws IOException {
+            if (receiver.queueReply(response, client))
+                return;
+            if (receiver.channel.send(response, client) == 0)
+                Metrics.udpDroppedReplies.increment();
+        }
+
+        @Override
+        public int maxResponseSize(DNSMessage request) {
+            return Edns.maxUdpResponseSize(request);
+        }
+
+        @Override
+        public InetAddress getClientAddress() {
+            return ((InetSocketAddress) client).getAddress();
+        }
+
+        @Override
+        public ResponseChannel detach() {
+            return reusable ? new UdpChannel(receiver, client, false) : this;
+        }
+    }
+}
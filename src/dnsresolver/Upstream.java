@@ -0,0 +1,409 @@
+package dnsresolver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One upstream resolver: a small pool of long-lived sockets to it, a smoothed RTT estimate, a health state and
+ * its own counters. UpstreamClient picks between upstreams using the RTT and health.
+ */
+public class Upstream implements Closeable {
+
+    // Health. After this many failures in a row the upstream is considered down until its back-off runs out;
+    // one more failure after that sends it straight back down for twice as long.
+    // Configurable with -Ddns.upstream.maxFailures=N
+    private static final int MAX_FAILURES = Integer.getInteger("dns.upstream.maxFailures", 3);
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    // While an upstream is passed over for others, its smoothed RTT halves every this many milliseconds, so one
+    // that was penalised for a bad spell gets tried again after a while, however many queries go by meanwhile.
+    // Configurable with -Ddns.upstream.rttHalfLifeMillis=N
+    private static final long RTT_HALF_LIFE_MILLIS = Long.getLong("dns.upstream.rttHalfLifeMillis", 10_000);
+    private static final long RTT_DECAY_STEP_MILLIS = 100; // decaying more often than this would only cost time
+
+    // Runs the occasional blocking TCP query, for answers that came back truncated over UDP
+    private static final ExecutorService TCP_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "dns-upstream-tcp");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Random transaction IDs tried for a query before its socket counts as full. A free one is found at the first
+    // or second try unless nearly all 65536 are pending, and a worker never spins on a socket that has none left
+    private static final int MAX_ID_ATTEMPTS = 64;
+
+    private static final int HEDGE_DELAY_REFRESH_SAMPLES = 64; // how often the RTT percentile is read again
+    private static final int HEDGE_DELAY_MIN_SAMPLES = 20;     // too few answers to trust a percentile before that
+
+    private final InetSocketAddress address;
+    private final long timeoutMillis;
+    private final UpstreamSocket[] sockets;
+    private final AtomicInteger nextSocket = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    private final LatencyHistogram rtt = new LatencyHistogram();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder answers = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder tcpQueries = new LongAdder();
+
+    // Updated under the lock on this; the volatile fields are read without it
+    private volatile long smoothedRttNanos = 0; // as in RFC 6298, 0 until the first answer
+    private volatile long rttUpdatedMillis = System.currentTimeMillis(); // when it was last measured or decayed
+    private long answerCount = 0;
+    private int consecutiveFailures = 0;
+    private long backoffMillis = MIN_BACKOFF_MILLIS;
+    private volatile long downUntilMillis = 0;
+    private volatile long hedgeDelayNanos;
+
+    /**
+     * @param address address of the upstream resolver
+     * @param numSockets number of sockets to spread queries over
+     * @param timeoutMillis how long to wait for an answer before failing the query
+     * @throws SocketException if a socket cannot be opened
+     */
+    public Upstream(InetSocketAddress address, int numSockets, long timeoutMillis) throws SocketException {
+        this.address = address;
+        this.timeoutMillis = timeoutMillis;
+        this.hedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis) / 2;
+        this.sockets = new UpstreamSocket[numSockets];
+        for (int i = 0; i < numSockets; i++) {
+            sockets[i] = new UpstreamSocket(i);
+            sockets[i].start();
+        }
+    }
+
+    /**
+     * Send a query to this upstream. The transaction ID is rewritten to one that is unique on the chosen socket,
+     * and the original ID is put back into the reply before it is decoded. The RTT and health are updated when
+     * the query completes.
+     * @param request the request packet bytes (not modified)
+     * @param length number of valid bytes in request
+     * @return a future completed with the decoded reply, or exceptionally with a TimeoutException if no reply
+     * arrives in time or an IOException if the query cannot be sent or the reply cannot be decoded
+     */
+    public CompletableFuture<DNSMessage> query(byte[] request, int length) {
+        if (closed)
+            return CompletableFuture.failedFuture(new IOException("Upstream client is closed"));
+
+        queries.increment();
+        UpstreamSocket socket = sockets[Math.floorMod(nextSocket.getAndIncrement(), sockets.length)];
+        return socket.send(request, length);
+    }
+
+    /**
+     * Send a query to this upstream over a fresh TCP connection, for answers too large for a datagram. This is
+     * rare, so the connection is not kept open. The RTT and health are left alone, since TCP has its own overhead.
+     * @param request the request packet bytes (not modified)
+     * @param length number of valid bytes in request
+     * @return a future completed with the decoded reply, or exceptionally with an IOException
+     */
+    public CompletableFuture<DNSMessage> queryTcp(byte[] request, int length) {
+        if (closed)
+            return CompletableFuture.failedFuture(new IOException("Upstream client is closed"));
+
+        tcpQueries.increment();
+        return queryTcp(address, request, length, timeoutMillis);
+    }
+
+    /**
+     * Send a query to a server over a fresh TCP connection, on a thread of the shared TCP pool
+     * @param address the server
+     * @param request the request packet bytes (not modified)
+     * @param length number of valid bytes in request
+     * @param timeoutMillis how long to wait to connect, and then for the answer
+     * @return a future completed with the decoded reply, or exceptionally with an IOException
+     */
+    static CompletableFuture<DNSMessage> queryTcp(InetSocketAddress address, byte[] request, int length,
+                                                  long timeoutMillis) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, (int) timeoutMillis);
+                socket.setSoTimeout((int) timeoutMillis);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeShort(length);
+                out.write(request, 0, length);
+                out.flush();
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                byte[] reply = new byte[in.readUnsignedShort()];
+                in.readFully(reply);
+                return DNSMessage.decodeMessage(reply);
+            }
+            catch (IOException ioe) {
+                throw new CompletionException(ioe);
+            }
+        }, TCP_EXECUTOR);
+    }
+
+    /**
+     * @param nowMillis the current time
+     * @return false if the upstream has failed too often lately and its back-off has not run out yet
+     */
+    public boolean isHealthy(long nowMillis) {
+        return nowMillis >= downUntilMillis;
+    }
+
+    /**
+     * @return the smoothed RTT in nanoseconds, 0 until the first answer
+     */
+    public long getSmoothedRttNanos() {
+        return smoothedRttNanos;
+    }
+
+    /**
+     * @return how long to wait for an answer from this upstream before hedging: a high percentile of its RTTs
+     */
+    public long getHedgeDelayNanos() {
+        return hedgeDelayNanos;
+    }
+
+    /**
+     * Called when another upstream is picked over this one: the RTT decays by the time since it was last measured
+     * or decayed, not by the number of queries, so a busy server does not swing back to a slow upstream after a
+     * few hundred queries. Lock-free, so a racing update may be lost, which is harmless for an estimate.
+     * @param now the current time in milliseconds
+     */
+    void decaySmoothedRtt(long now) {
+        long elapsed = now - rttUpdatedMillis;
+        if (elapsed < RTT_DECAY_STEP_MILLIS)
+            return;
+        rttUpdatedMillis = now;
+        smoothedRttNanos = (long) (smoothedRttNanos * Math.pow(0.5, (double) elapsed / RTT_HALF_LIFE_MILLIS));
+    }
+
+    void countHedge() {
+        hedges.increment();
+    }
+
+    private synchronized void answered(long rttNanos) {
+        answers.increment();
+        rtt.record(rttNanos);
+        Metrics.upstreamRtt.record(rttNanos);
+
+        long srtt = smoothedRttNanos;
+        smoothedRttNanos = srtt == 0 ? rttNanos : srtt + (rttNanos - srtt) / 8;
+        rttUpdatedMillis = System.currentTimeMillis();
+        consecutiveFailures = 0;
+        backoffMillis = MIN_BACKOFF_MILLIS;
+        downUntilMillis = 0;
+
+        // reading a percentile walks the whole histogram, so only do it every so often
+        answerCount++;
+        if (answerCount >= HEDGE_DELAY_MIN_SAMPLES
+            && (answerCount - HEDGE_DELAY_MIN_SAMPLES) % HEDGE_DELAY_REFRESH_SAMPLES == 0)
+            hedgeDelayNanos = rtt.getPercentile(UpstreamClient.HEDGE_PERCENTILE);
+    }
+
+    private synchronized void failed(boolean timedOut) {
+        if (timedOut) {
+            timeouts.increment();
+            // a lost answer counts as a very slow one, so a lossy upstream drifts down the preference order
+            long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            long srtt = smoothedRttNanos;
+            smoothedRttNanos = Math.min(timeoutNanos, srtt + Math.max(srtt, timeoutNanos / 8));
+            rttUpdatedMillis = System.currentTimeMillis();
+        }
+        else {
+            errors.increment();
+        }
+
+        if (++consecutiveFailures >= MAX_FAILURES) {
+            downUntilMillis = System.currentTimeMillis() + backoffMillis;
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    /**
+     * @return the address queries are sent to
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the number of queries waiting for an answer
+     */
+    public int pendingQueries() {
+        int pending = 0;
+        for (UpstreamSocket socket : sockets)
+            pending += socket.pending.size();
+        return pending;
+    }
+
+    /**
+     * @return a one-line summary of this upstream's state and counters
+     */
+    public String summary() {
+        return String.format("%s:%d %s srtt=%.1fms, %d queries, %d answers, %d timeouts, %d errors, %d hedges, "
+                             + "%d over tcp, rtt %s", address.getHostString(), address.getPort(),
+                             isHealthy(System.currentTimeMillis()) ? "up" : "down", smoothedRttNanos / 1e6,
+                             queries.sum(), answers.sum(), timeouts.sum(), errors.sum(), hedges.sum(),
+                             tcpQueries.sum(), rtt.summary());
+    }
+
+    /**
+     * Close all sockets and fail every query still waiting for an answer
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (UpstreamSocket socket : sockets)
+            socket.close();
+    }
+
+    /**
+     * Pick a random transaction ID that no other query on the socket is waiting with, and register the query under it
+     * @param pending the queries waiting on the socket, by transaction ID
+     * @param query the query to register
+     * @return the ID, or -1 if none was free after a bounded number of tries: the socket is full
+     */
+    static <T> int reserveId(ConcurrentHashMap<Integer, T> pending, T query) {
+        for (int attempt = 0; attempt < MAX_ID_ATTEMPTS; attempt++) {
+            int id = ThreadLocalRandom.current().nextInt(0x10000);
+            if (pending.putIfAbsent(id, query) == null)
+                return id;
+        }
+        return -1;
+    }
+
+    private static int readId(byte[] packet) {
+        return ((packet[0] & 0xff) << 8) | (packet[1] & 0xff);
+    }
+
+    private static void writeId(byte[] packet, int id) {
+        packet[0] = (byte) (id >> 8);
+        packet[1] = (byte) id;
+    }
+
+    /**
+     * A query waiting for its answer
+     */
+    private static class PendingQuery {
+        final ByteBuffer packet; // as sent, to check the question a reply carries
+        final int originalId;
+        final CompletableFuture<DNSMessage> future = new CompletableFuture<>();
+        final long sentNanos = System.nanoTime();
+
+        PendingQuery(byte[] packet) {
+            this.packet = ByteBuffer.wrap(packet);
+            this.originalId = readId(packet);
+        }
+    }
+
+    /**
+     * One pooled socket. Outstanding queries on it are keyed by the transaction ID they were sent with.
+     */
+    private class UpstreamSocket extends Thread {
+        private final DatagramSocket socket;
+        private final ConcurrentHashMap<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+
+        UpstreamSocket(int index) throws SocketException {
+            super("dns-upstream-" + address.getHostString() + ":" + address.getPort() + "-" + index);
+            setDaemon(true);
+            socket = new DatagramSocket();
+            socket.connect(address); // only accept replies from the upstream
+        }
+
+        CompletableFuture<DNSMessage> send(byte[] request, int length) {
+            byte[] packet = new byte[length];
+            System.arraycopy(request, 0, packet, 0, length);
+            PendingQuery query = new PendingQuery(packet);
+
+            int id = reserveId(pending, query);
+            if (id < 0)
+                return CompletableFuture.failedFuture(new IOException("No free transaction ID on " + getName()));
+            writeId(packet, id);
+
+            int sentId = id;
+            query.future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                        .whenComplete((response, error) -> {
+                            pending.remove(sentId, query);
+                            if (error != null && !closed)
+                                failed(UpstreamClient.isTimeout(error));
+                        });
+
+            try {
+                socket.send(new DatagramPacket(packet, length));
+            }
+            catch (IOException ioe) {
+                query.future.completeExceptionally(ioe);
+            }
+            return query.future;
+        }
+
+        /**
+         * The reader loop: match every reply to its pending query by transaction ID, and drop it unless it carries
+         * the question that was asked
+         */
+        @Override
+        public void run() {
+            byte[] buf = new byte[UpstreamClient.MAX_RESPONSE_SIZE];
+            DatagramPacket rcvPacket = new DatagramPacket(buf, buf.length);
+            while (!closed) {
+                try {
+                    rcvPacket.setLength(buf.length);
+                    socket.receive(rcvPacket);
+                    if (rcvPacket.getLength() < 12)
+                        continue;
+
+                    int id = readId(buf);
+                    PendingQuery query = pending.get(id);
+                    if (query == null)
+                        continue; // late reply to a query that already timed out
+                    if (!DNSMessage.hasSameQuestions(query.packet, ByteBuffer.wrap(buf, 0, rcvPacket.getLength()))) {
+                        Metrics.mismatchedReplies.increment();
+                        continue; // a guess at the ID, not an answer to what we asked: keep waiting
+                    }
+                    if (!pending.remove(id, query))
+                        continue;
+                    answered(System.nanoTime() - query.sentNanos);
+
+                    byte[] reply = new byte[rcvPacket.getLength()];
+                    System.arraycopy(buf, 0, reply, 0, reply.length);
+                    writeId(reply, query.originalId);
+                    try {
+                        query.future.complete(DNSMessage.decodeMessage(reply, reply.length));
+                    }
+                    catch (IOException ioe) {
+                        query.future.completeExceptionally(ioe);
+                    }
+                }
+                catch (IOException ioe) {
+                    if (closed)
+                        break;
+                }
+            }
+        }
+
+        void close() {
+            socket.close();
+            IOException closedException = new IOException("Upstream client is closed");
+            for (PendingQuery query : pending.values())
+                query.future.completeExceptionally(closedException);
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package dnsresolver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends queries to a set of upstream resolvers. Each query goes to the healthy upstream with the lowest smoothed
+ * RTT. If no answer has come back by a high percentile of that upstream's RTT, or the query fails early, the same
+ * query is hedged to the next best upstream, and whichever answer arrives first wins. A truncated answer is
+ * asked for again over TCP.
+ */
+public class UpstreamClient implements Closeable {
+
+    // Upstream replies can be as large as the payload size advertised in the query's OPT record, which may be
+    // the requester's own when a query is forwarded as is
+    public static final int MAX_RESPONSE_SIZE = DNSMessage.MAX_MESSAGE_SIZE;
+
+    // Hedging. The hedge goes out after this percentile of the chosen upstream's RTT (0 to turn hedging off),
+    // but never sooner than the minimum delay. Configurable with -Ddns.upstream.hedgePercentile=N
+    // and -Ddns.upstream.hedgeMinMillis=N
+    static final double HEDGE_PERCENTILE = Integer.getInteger("dns.upstream.hedgePercentile", 95);
+    private static final long HEDGE_MIN_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("dns.upstream.hedgeMinMillis", 5));
+
+    private final Upstream[] upstreams;
+    private final long timeoutMillis;
+    private volatile boolean closed = false;
+
+    /**
+     * Open a small pool of long-lived sockets to each upstream resolver, each with its own reader thread
+     * @param addresses addresses of the upstream resolvers
+     * @param numSockets number of sockets per upstream to spread queries over
+     * @param timeoutMillis how long to wait for an answer, hedge included, before failing the query
+     * @throws SocketException if a socket cannot be opened
+     */
+    public UpstreamClient(List<InetSocketAddress> addresses, int numSockets, long timeoutMillis)
+            throws SocketException {
+        if (addresses.isEmpty())
+            throw new IllegalArgumentException("No upstream resolvers");
+        this.timeoutMillis = timeoutMillis;
+        this.upstreams = new Upstream[addresses.size()];
+        for (int i = 0; i < upstreams.length; i++)
+            upstreams[i] = new Upstream(addresses.get(i), numSockets, timeoutMillis);
+    }
+
+    /**
+     * Send a query upstream, hedging it to a second upstream if the first is slow to answer. If the answer comes
+     * back truncated, the query is sent again over TCP.
+     * @param request the request packet bytes (not modified)
+     * @param length number of valid bytes in request
+     * @return a future completed with the first decoded reply, or exceptionally with a TimeoutException if no reply
+     * arrives in time or an IOException if the query cannot be sent or the reply cannot be decoded
+     */
+    public CompletableFuture<DNSMessage> query(byte[] request, int length) {
+        if (closed)
+            return CompletableFuture.failedFuture(new IOException("Upstream client is closed"));
+
+        return queryUdp(request, length).thenCompose(response -> {
+            if (!response.getHeader().isTruncated())
+                return CompletableFuture.completedFuture(response);
+            return select(null).queryTcp(request, length);
+        });
+    }
+
+    private CompletableFuture<DNSMessage> queryUdp(byte[] request, int length) {
+        Upstream first = select(null);
+        if (HEDGE_PERCENTILE <= 0)
+            return first.query(request, length);
+
+        HedgedQuery query = new HedgedQuery(request, length, first);
+        query.send(first);
+        long hedgeDelayNanos = Math.max(HEDGE_MIN_NANOS, first.getHedgeDelayNanos());
+        if (hedgeDelayNanos < TimeUnit.MILLISECONDS.toNanos(timeoutMillis))
+            CompletableFuture.delayedExecutor(hedgeDelayNanos, TimeUnit.NANOSECONDS).execute(query::hedge);
+        return query.result.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Pick the healthy upstream with the lowest smoothed RTT. If every upstream is down, still pick the one with
+     * the lowest RTT rather than failing the query outright. The RTTs of the upstreams passed over decay with time,
+     * so one that was penalised for a bad spell gets tried again sooner or later.
+     * @param exclude an upstream to skip if there is any other (may be null)
+     * @return the upstream to send to
+     */
+    private Upstream select(Upstream exclude) {
+        long now = System.currentTimeMillis();
+        Upstream best = null, bestUnhealthy = null;
+        for (Upstream upstream : upstreams) {
+            if (upstream == exclude)
+                continue;
+            if (upstream.isHealthy(now)) {
+                if (best == null || upstream.getSmoothedRttNanos() < best.getSmoothedRttNanos())
+                    best = upstream;
+            }
+            else if (bestUnhealthy == null || upstream.getSmoothedRttNanos() < bestUnhealthy.getSmoothedRttNanos()) {
+                bestUnhealthy = upstream;
+            }
+        }
+        if (best != null) {
+            if (exclude == null)
+                for (Upstream upstream : upstreams)
+                    if (upstream != best)
+                        upstream.decaySmoothedRtt(now);
+            return best;
+        }
+        if (bestUnhealthy != null)
+            return bestUnhealthy;
+        return exclude; // only one upstream: hedge to it again, over another socket
+    }
+
+    /**
+     * A query that may be sent twice. The result completes with the first answer, or fails once every attempt
+     * has failed.
+     */
+    private class HedgedQuery {
+        final byte[] request;
+        final int length;
+        final Upstream first;
+        final CompletableFuture<DNSMessage> result = new CompletableFuture<>();
+        final AtomicBoolean hedged = new AtomicBoolean();
+        final AtomicInteger outstanding = new AtomicInteger();
+
+        HedgedQuery(byte[] request, int length, Upstream first) {
+            this.request = request;
+            this.length = length;
+            this.first = first;
+        }
+
+        void send(Upstream upstream) {
+            outstanding.incrementAndGet();
+            upstream.query(request, length).whenComplete((response, error) -> {
+                if (error == null) {
+                    result.complete(response);
+                    return;
+                }
+                if (upstream == first)
+                    hedge(); // the first attempt failed before the hedge was due: send it now
+                if (outstanding.decrementAndGet() == 0)
+                    result.completeExceptionally(error);
+            });
+        }
+
+        void hedge() {
+            if (result.isDone() || closed || !hedged.compareAndSet(false, true))
+                return;
+            Upstream second = select(first);
+            second.countHedge();
+            send(second);
+        }
+    }
+
+    /**
+     * @return every upstream, in the order they were configured
+     */
+    public List<Upstream> getUpstreams() {
+        return List.of(upstreams);
+    }
+
+    /**
+     * @return the number of queries waiting for an answer
+     */
+    public int pendingQueries() {
+        int pending = 0;
+        for (Upstream upstream : upstreams)
+            pending += upstream.pendingQueries();
+        return pending;
+    }
+
+    /**
+     * Close all sockets and fail every query still waiting for an answer
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Upstream upstream : upstreams)
+            upstream.close();
+    }
+
+    /**
+     * @param error the exception a query future completed with
+     * @return true if the query failed because no answer came back in time
+     */
+    public static boolean isTimeout(Throwable error) {
+        while (error != null) {
+            if (error instanceof TimeoutException)
+                return true;
+            error = error.getCause();
+        }
+        return false;
+    }
+}